@@ -0,0 +1,78 @@
+package groovyx.gaelyk.dte;
+
+import groovy.text.GStringTemplateEngine;
+import groovy.text.SimpleTemplateEngine;
+import groovy.text.Template;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the creation of the templates including the compilation of the script
+ * compared to the template engines shipped with Groovy.
+ *
+ * @author Vladimir Orany
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompileBenchmark {
+
+    @Param({ "small", "medium", "huge" })
+    public String size;
+
+    private String                   text;
+    private DebuggableTemplateEngine debuggableEngine;
+    private DebuggableTemplateEngine streamingEngine;
+    private SimpleTemplateEngine     simpleEngine;
+    private GStringTemplateEngine    gstringEngine;
+
+    @Setup
+    public void setUp() {
+        text = TemplateSources.generate(size);
+        // templates compiled by their own class loaders can be unloaded during the benchmark
+        debuggableEngine = new DebuggableTemplateEngine();
+        debuggableEngine.setClassLoaderIsolation(ClassLoaderIsolation.PER_TEMPLATE);
+        streamingEngine = new DebuggableTemplateEngine();
+        streamingEngine.setClassLoaderIsolation(ClassLoaderIsolation.PER_TEMPLATE);
+        streamingEngine.setStreaming(true);
+        simpleEngine = new SimpleTemplateEngine();
+        gstringEngine = new GStringTemplateEngine();
+    }
+
+    @Benchmark
+    public Template debuggable() throws Exception {
+        return debuggableEngine.createTemplate(new StringReader(text));
+    }
+
+    @Benchmark
+    public Template debuggableStreaming() throws Exception {
+        return streamingEngine.createTemplate(new StringReader(text));
+    }
+
+    @Benchmark
+    public Template simple() throws Exception {
+        return simpleEngine.createTemplate(new StringReader(text));
+    }
+
+    @Benchmark
+    public Template gstring() throws Exception {
+        return gstringEngine.createTemplate(new StringReader(text));
+    }
+
+}
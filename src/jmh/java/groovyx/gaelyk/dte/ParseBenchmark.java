@@ -0,0 +1,72 @@
+package groovyx.gaelyk.dte;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the translation of the template into the script and the footprint of the position index.
+ *
+ * Run with <code>-prof gc</code> (the default of the <code>jmh</code> task) to see the bytes allocated
+ * per operation. Comparing {@link #positionIndex()} with {@link #positionsMap()} shows the cost of keeping
+ * the positions as the compact index instead of the map of {@link Position} objects.
+ *
+ * @author Vladimir Orany
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+
+    @Param({ "small", "medium", "huge" })
+    public String size;
+
+    private String text;
+
+    @Setup
+    public void setUp() {
+        text = TemplateSources.generate(size);
+    }
+
+    @Benchmark
+    public String parse() {
+        return new DebuggableTemplate().parse(text);
+    }
+
+    @Benchmark
+    public String parseStreaming() {
+        DebuggableTemplate template = new DebuggableTemplate();
+        template.setStreaming(true);
+        return template.parse(text);
+    }
+
+    @Benchmark
+    public PositionIndex positionIndex() {
+        DebuggableTemplate template = new DebuggableTemplate();
+        template.parse(text);
+        return template.getPositionIndex();
+    }
+
+    @Benchmark
+    public Map<Position, Position> positionsMap() {
+        DebuggableTemplate template = new DebuggableTemplate();
+        template.parse(text);
+        return new HashMap<Position, Position>(template.getPositionsMap());
+    }
+
+}
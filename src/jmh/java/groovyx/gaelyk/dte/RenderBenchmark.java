@@ -0,0 +1,125 @@
+package groovyx.gaelyk.dte;
+
+import groovy.text.GStringTemplateEngine;
+import groovy.text.SimpleTemplateEngine;
+import groovy.text.Template;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures rendering of already compiled templates compared to the template engines shipped with Groovy.
+ * The output is discarded so only the cost of the templates is measured.
+ *
+ * @author Vladimir Orany
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RenderBenchmark {
+
+    @Param({ "small", "medium", "huge" })
+    public String size;
+
+    private Map<String, Object> model;
+    private DebuggableTemplate  debuggable;
+    private DebuggableTemplate  streaming;
+    private Template            simple;
+    private Template            gstring;
+
+    @Setup
+    public void setUp() throws Exception {
+        String text = TemplateSources.generate(size);
+        model = TemplateSources.model();
+        debuggable = new DebuggableTemplateEngine().createTemplate(new StringReader(text));
+        DebuggableTemplateEngine streamingEngine = new DebuggableTemplateEngine();
+        streamingEngine.setStreaming(true);
+        streaming = streamingEngine.createTemplate(new StringReader(text));
+        simple = new SimpleTemplateEngine().createTemplate(new StringReader(text));
+        gstring = new GStringTemplateEngine().createTemplate(new StringReader(text));
+    }
+
+    @Benchmark
+    public Writer debuggable() throws IOException {
+        return debuggable.make(model).writeTo(new NullWriter());
+    }
+
+    @Benchmark
+    public Writer debuggableRender() {
+        Writer writer = new NullWriter();
+        debuggable.render(model, writer);
+        return writer;
+    }
+
+    @Benchmark
+    public Writer debuggableStreaming() {
+        Writer writer = new NullWriter();
+        streaming.render(model, writer);
+        return writer;
+    }
+
+    @Benchmark
+    public OutputStream debuggableStreamingBytes() throws IOException {
+        OutputStream out = new NullOutputStream();
+        streaming.render(model, out);
+        return out;
+    }
+
+    @Benchmark
+    public Writer simple() throws IOException {
+        return simple.make(model).writeTo(new NullWriter());
+    }
+
+    @Benchmark
+    public Writer gstring() throws IOException {
+        return gstring.make(model).writeTo(new NullWriter());
+    }
+
+    private static final class NullWriter extends Writer {
+        @Override public void write(char[] cbuf, int off, int len) {
+            // discard
+        }
+
+        @Override public void write(String str, int off, int len) {
+            // discard
+        }
+
+        @Override public void flush() {
+            // nothing to flush
+        }
+
+        @Override public void close() {
+            // nothing to close
+        }
+    }
+
+    private static final class NullOutputStream extends OutputStream {
+        @Override public void write(int b) {
+            // discard
+        }
+
+        @Override public void write(byte[] b, int off, int len) {
+            // discard
+        }
+    }
+
+}
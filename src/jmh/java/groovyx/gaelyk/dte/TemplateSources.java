@@ -0,0 +1,77 @@
+package groovyx.gaelyk.dte;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Generates the templates and the models used by the benchmarks.
+ *
+ * @author Vladimir Orany
+ */
+final class TemplateSources {
+
+    private TemplateSources() {
+        // utility class
+    }
+
+    /**
+     * Generates HTML template mixing the literal text, ${ } and &lt;%= %&gt; expressions and &lt;% %&gt; sections.
+     * @param size <code>small</code>, <code>medium</code> or <code>huge</code>
+     * @return the template text
+     */
+    static String generate(String size) {
+        int blocks;
+        if ("small".equals(size)) {
+            blocks = 1;
+        } else if ("medium".equals(size)) {
+            blocks = 25;
+        } else if ("huge".equals(size)) {
+            blocks = 250;
+        } else {
+            throw new IllegalArgumentException("Unknown template size: " + size);
+        }
+        StringBuilder text = new StringBuilder();
+        text.append("<!DOCTYPE html>\n<html>\n<head><title>${title}</title></head>\n<body>\n");
+        for (int i = 0; i < blocks; i++) {
+            text.append("<div class=\"block\" id=\"block-").append(i).append("\">\n");
+            text.append("  <h2>Hello ${user.name}, this is block ").append(i).append("</h2>\n");
+            text.append("  <p>Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor incididunt\n");
+            text.append("  ut labore et dolore magna aliqua. Ut enim ad minim veniam, quis nostrud exercitation.</p>\n");
+            text.append("  <ul>\n");
+            text.append("  <% items.each { item -> %>\n");
+            text.append("    <li class=\"<%= item.odd ? 'odd' : 'even' %>\">$item.name costs ${item.price} EUR</li>\n");
+            text.append("  <% } %>\n");
+            text.append("  </ul>\n");
+            text.append("  <% if (user.admin) { %><a href=\"/admin\">Administration</a><% } %>\n");
+            text.append("</div>\n");
+        }
+        text.append("</body>\n</html>\n");
+        return text.toString();
+    }
+
+    /**
+     * Creates the model for the generated templates.
+     * @return the model for the generated templates
+     */
+    static Map<String, Object> model() {
+        Map<String, Object> user = new HashMap<String, Object>();
+        user.put("name", "Grace");
+        user.put("admin", Boolean.TRUE);
+        List<Map<String, Object>> items = new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < 10; i++) {
+            Map<String, Object> item = new HashMap<String, Object>();
+            item.put("name", "Item " + i);
+            item.put("price", Integer.valueOf(i * 10));
+            item.put("odd", Boolean.valueOf(i % 2 == 1));
+            items.add(item);
+        }
+        Map<String, Object> model = new HashMap<String, Object>();
+        model.put("title", "Benchmark");
+        model.put("user", user);
+        model.put("items", items);
+        return model;
+    }
+
+}
@@ -0,0 +1,43 @@
+package groovyx.gaelyk.dte;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Output stream handing the written bytes over to the {@link ChunkSink}.
+ *
+ * The stream does not copy the bytes, it waits until the sink is done with the chunk instead.
+ * Waiting parks the rendering thread without pinning it if it is a virtual thread.
+ *
+ * @author Vladimir Orany
+ */
+final class ChunkOutputStream extends OutputStream {
+
+    private final ChunkSink sink;
+
+    ChunkOutputStream(ChunkSink sink) {
+        this.sink = sink;
+    }
+
+    @Override public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override public void write(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return;
+        }
+        try {
+            sink.write(ByteBuffer.wrap(b, off, len).asReadOnlyBuffer()).toCompletableFuture().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the chunk to be written");
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to write the chunk", e.getCause());
+        }
+    }
+
+}
@@ -0,0 +1,26 @@
+package groovyx.gaelyk.dte;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Receives the encoded chunks of the template document rendered by
+ * {@link DebuggableTemplate#renderAsync(java.util.Map, ChunkSink, java.util.concurrent.Executor)}.
+ *
+ * The next chunk is not produced until the stage returned for the previous chunk completes
+ * so the sink controls how fast the template is rendered. The chunk is read-only and it is only
+ * valid until the returned stage completes, the sink must copy the bytes it needs to keep.
+ *
+ * @author Vladimir Orany
+ */
+public interface ChunkSink {
+
+    /**
+     * Accepts the next chunk of the template document.
+     * @param chunk the encoded chunk of the template document
+     * @return the stage which completes when the sink is ready for the next chunk,
+     * completing exceptionally stops the render
+     */
+    CompletionStage<?> write(ByteBuffer chunk);
+
+}
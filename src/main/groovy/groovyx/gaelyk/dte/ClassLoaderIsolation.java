@@ -0,0 +1,33 @@
+package groovyx.gaelyk.dte;
+
+/**
+ * Tells {@link DebuggableTemplateEngine} which class loader should be used for the compiled templates.
+ *
+ * Classes of the templates can be unloaded only if the class loader which defined them is no longer
+ * reachable. Use {@link #PER_TEMPLATE} or {@link #PER_GENERATION} together with
+ * {@link DebuggableTemplateEngine#invalidateAll()} or {@link DebuggableTemplateEngine#close()}
+ * if the templates are reloaded or created on the fly.
+ *
+ * @author Vladimir Orany
+ */
+public enum ClassLoaderIsolation {
+
+    /**
+     * All templates are compiled by the class loader of the engine's {@link groovy.lang.GroovyShell}
+     * which keeps every template class reachable for its whole life.
+     */
+    SHARED,
+
+    /**
+     * Each template is compiled by its own class loader which can be collected
+     * as soon as the template is no longer used.
+     */
+    PER_TEMPLATE,
+
+    /**
+     * Templates are compiled by the class loader shared by the current generation of the templates.
+     * New generation is started by {@link DebuggableTemplateEngine#invalidateAll()}.
+     */
+    PER_GENERATION
+
+}
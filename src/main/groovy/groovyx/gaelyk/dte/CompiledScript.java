@@ -0,0 +1,79 @@
+package groovyx.gaelyk.dte;
+
+import groovy.lang.GroovyClassLoader;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.codehaus.groovy.control.CompilationUnit;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.Phases;
+import org.codehaus.groovy.control.SourceUnit;
+import org.codehaus.groovy.tools.GroovyClass;
+
+/**
+ * Bytes of the classes compiled from the script of single template, i.e. the script class
+ * and the classes of its closures.
+ *
+ * The classes can be defined by any class loader, so the same bytes can be kept
+ * by {@link DiskTemplateCache} and defined again after the restart.
+ *
+ * @author Vladimir Orany
+ */
+final class CompiledScript {
+
+    private final String              scriptClassName;
+    private final Map<String, byte[]> classes;
+
+    CompiledScript(String scriptClassName, Map<String, byte[]> classes) {
+        this.scriptClassName = scriptClassName;
+        this.classes = classes;
+    }
+
+    /**
+     * Compiles the script the same way as {@link GroovyClassLoader#parseClass(groovy.lang.GroovyCodeSource, boolean)} does
+     * but without holding the lock of the class loader so the templates can be compiled in parallel.
+     * @param loader the loader resolving the classes referenced by the script
+     * @param script the generated script
+     * @param fileName the file name of the script
+     * @param configuration the compiler configuration
+     * @return the compiled classes
+     */
+    static CompiledScript compile(GroovyClassLoader loader, String script, String fileName, CompilerConfiguration configuration) {
+        CompilationUnit unit = new CompilationUnit(configuration, null, loader);
+        SourceUnit source = unit.addSource(fileName, script);
+        unit.compile(Phases.CLASS_GENERATION);
+        Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+        for (Object compiled : unit.getClasses()) {
+            GroovyClass groovyClass = (GroovyClass) compiled;
+            classes.put(groovyClass.getName(), groovyClass.getBytes());
+        }
+        return new CompiledScript(source.getAST().getClasses().get(0).getName(), classes);
+    }
+
+    /**
+     * Defines all the classes and returns the script class.
+     * @param loader the loader the classes are defined in
+     * @return the script class
+     */
+    Class<?> define(GroovyClassLoader.InnerLoader loader) {
+        Class<?> scriptClass = null;
+        for (Map.Entry<String, byte[]> compiled : classes.entrySet()) {
+            Class<?> defined = loader.defineClass(compiled.getKey(), compiled.getValue());
+            if (compiled.getKey().equals(scriptClassName)) {
+                scriptClass = defined;
+            }
+        }
+        return scriptClass;
+    }
+
+    String getScriptClassName() {
+        return scriptClassName;
+    }
+
+    Map<String, byte[]> getClasses() {
+        return Collections.unmodifiableMap(classes);
+    }
+
+}
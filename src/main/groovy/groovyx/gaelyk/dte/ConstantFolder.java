@@ -0,0 +1,295 @@
+package groovyx.gaelyk.dte;
+
+import groovyx.gaelyk.dte.TemplateSegment.Kind;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.codehaus.groovy.ast.expr.ArgumentListExpression;
+import org.codehaus.groovy.ast.expr.BinaryExpression;
+import org.codehaus.groovy.ast.expr.BooleanExpression;
+import org.codehaus.groovy.ast.expr.ConstantExpression;
+import org.codehaus.groovy.ast.expr.ElvisOperatorExpression;
+import org.codehaus.groovy.ast.expr.Expression;
+import org.codehaus.groovy.ast.expr.MethodCallExpression;
+import org.codehaus.groovy.ast.expr.NotExpression;
+import org.codehaus.groovy.ast.expr.TernaryExpression;
+import org.codehaus.groovy.ast.expr.UnaryMinusExpression;
+import org.codehaus.groovy.ast.expr.UnaryPlusExpression;
+import org.codehaus.groovy.ast.stmt.BlockStatement;
+import org.codehaus.groovy.ast.stmt.ExpressionStatement;
+import org.codehaus.groovy.ast.stmt.Statement;
+import org.codehaus.groovy.control.CompilationFailedException;
+import org.codehaus.groovy.control.SourceUnit;
+import org.codehaus.groovy.runtime.InvokerHelper;
+import org.codehaus.groovy.runtime.ScriptBytecodeAdapter;
+import org.codehaus.groovy.runtime.typehandling.DefaultTypeTransformation;
+import org.codehaus.groovy.syntax.Types;
+
+/**
+ * Evaluates the <code>${ }</code>, <code>&lt;%= %&gt;</code> and <code>&lt;%== %&gt;</code> expressions which
+ * don't depend on anything but literals when the template is compiled and turns them into the literal text.
+ *
+ * Only the string, number and boolean literals combined by the arithmetic, comparison, logical and conditional
+ * operators and a few methods of strings and numbers which can't have any side effect are evaluated. The operators
+ * and the methods are invoked in the same way as the script would invoke them, so the folded text is the same as
+ * the text the script would write. The values are escaped by the escaping of the template when they are folded.
+ * The expressions which fail are left to the script, so the failure is reported when the template is rendered.
+ *
+ * The folded segments keep the positions of the expressions so the following segments of the script stay mapped
+ * to the original template lines and columns. The generators join the folded text with the adjacent literal text.
+ *
+ * @author Vladimir Orany
+ */
+final class ConstantFolder {
+
+    private static final Set<String> METHODS     = new HashSet<String>(Arrays.asList("toUpperCase", "toLowerCase", "trim", "length", "size",
+            "substring", "replace", "capitalize", "abs", "intdiv", "toString"));
+
+    private static final Set<String> IDENTIFIERS = new HashSet<String>(METHODS);
+
+    static {
+        IDENTIFIERS.add("true");
+        IDENTIFIERS.add("false");
+    }
+
+    private final char[]             chars;
+    private final Escaping           escaping;
+
+    ConstantFolder(char[] chars, Escaping escaping) {
+        this.chars = chars;
+        this.escaping = escaping;
+    }
+
+    /**
+     * Returns the segments with the constant expressions replaced by the {@link Kind#CONSTANT} segments.
+     * @param segments the segments of the template
+     * @return new list of the segments
+     */
+    List<TemplateSegment> fold(List<TemplateSegment> segments) {
+        List<TemplateSegment> folded = new ArrayList<TemplateSegment>(segments.size());
+        TemplateSegment previous = null;
+        for (TemplateSegment segment : segments) {
+            String value = null;
+            if ((segment.kind == Kind.GSTRING || segment.kind == Kind.EXPRESSION || segment.kind == Kind.RAW_EXPRESSION)
+                    && segment.closed && !isEscaped(previous) && isCandidate(segment)) {
+                value = evaluate(segment);
+            }
+            if (value == null) {
+                folded.add(segment);
+            } else {
+                folded.add(new TemplateSegment(Kind.CONSTANT, segment.start, segment.end, segment.line, segment.column, segment.endLine, segment.endColumn, true, value));
+            }
+            previous = segment;
+        }
+        return folded;
+    }
+
+    /**
+     * Tells whether the expression follows the text ending with single backslash which turns it into literal text.
+     */
+    private boolean isEscaped(TemplateSegment previous) {
+        if (previous == null || previous.kind != Kind.TEXT) {
+            return false;
+        }
+        int backslashes = 0;
+        for (int i = previous.end - 1; i >= previous.start && chars[i] == '\\'; i--) {
+            backslashes++;
+        }
+        return backslashes % 2 == 1;
+    }
+
+    /**
+     * Quickly checks that the expression doesn't reference anything but literals and known methods,
+     * so the variables and the calls of the model are never parsed.
+     */
+    private boolean isCandidate(TemplateSegment segment) {
+        boolean blank = true;
+        int i = segment.start;
+        while (i < segment.end) {
+            char c = chars[i];
+            if (c == '\'' || c == '"') {
+                int close = i + 1;
+                while (close < segment.end && chars[close] != c) {
+                    if (chars[close] == '$' && c == '"') {
+                        return false;
+                    }
+                    close += chars[close] == '\\' ? 2 : 1;
+                }
+                i = close + 1;
+            } else if (Character.isDigit(c)) {
+                // the suffixes, exponents and hexadecimal digits are part of the number
+                while (i < segment.end && (Character.isLetterOrDigit(chars[i]) || chars[i] == '.' && i + 1 < segment.end && Character.isDigit(chars[i + 1]))) {
+                    i++;
+                }
+            } else if (Character.isJavaIdentifierStart(c)) {
+                int identifierEnd = i + 1;
+                while (identifierEnd < segment.end && Character.isJavaIdentifierPart(chars[identifierEnd])) {
+                    identifierEnd++;
+                }
+                if (!IDENTIFIERS.contains(new String(chars, i, identifierEnd - i))) {
+                    return false;
+                }
+                i = identifierEnd;
+            } else if (c == '{' || c == '}') {
+                // closures
+                return false;
+            } else {
+                i++;
+            }
+            blank &= Character.isWhitespace(c);
+        }
+        return !blank;
+    }
+
+    /**
+     * Returns the escaped text of the expression or <code>null</code> if the expression can't be folded.
+     */
+    private String evaluate(TemplateSegment segment) {
+        Expression expression = parse(new String(chars, segment.start, segment.end - segment.start));
+        if (expression == null) {
+            return null;
+        }
+        try {
+            Object value = evaluate(expression);
+            if (value == null) {
+                return null;
+            }
+            StringWriter text = new StringWriter();
+            InvokerHelper.write(text, value);
+            if (segment.kind == Kind.RAW_EXPRESSION || escaping == Escaping.NONE) {
+                return text.toString();
+            }
+            StringWriter escaped = new StringWriter();
+            escaping.escape(text.toString(), 0, text.getBuffer().length(), escaped);
+            return escaped.toString();
+        } catch (RuntimeException e) {
+            // not a constant or failed e.g. by division by zero which is left to fail when the template is rendered
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static Expression parse(String code) {
+        try {
+            SourceUnit unit = SourceUnit.create("ConstantExpression", code);
+            unit.parse();
+            unit.completePhase();
+            unit.convert();
+            BlockStatement block = unit.getAST().getStatementBlock();
+            if (!unit.getAST().getMethods().isEmpty() || block.getStatements().size() != 1) {
+                return null;
+            }
+            Statement statement = block.getStatements().get(0);
+            return statement instanceof ExpressionStatement ? ((ExpressionStatement) statement).getExpression() : null;
+        } catch (CompilationFailedException e) {
+            // reported when the script is compiled
+            return null;
+        }
+    }
+
+    private static Object evaluate(Expression expression) {
+        if (expression instanceof ConstantExpression) {
+            Object value = ((ConstantExpression) expression).getValue();
+            if (value instanceof String || value instanceof Number || value instanceof Boolean || value instanceof Character) {
+                return value;
+            }
+        } else if (expression instanceof BinaryExpression) {
+            return evaluate((BinaryExpression) expression);
+        } else if (expression instanceof NotExpression) {
+            return !DefaultTypeTransformation.castToBoolean(evaluate(((NotExpression) expression).getExpression()));
+        } else if (expression instanceof BooleanExpression) {
+            return DefaultTypeTransformation.castToBoolean(evaluate(((BooleanExpression) expression).getExpression()));
+        } else if (expression instanceof UnaryMinusExpression) {
+            return InvokerHelper.unaryMinus(evaluate(((UnaryMinusExpression) expression).getExpression()));
+        } else if (expression instanceof UnaryPlusExpression) {
+            return InvokerHelper.unaryPlus(evaluate(((UnaryPlusExpression) expression).getExpression()));
+        } else if (expression instanceof ElvisOperatorExpression) {
+            Object value = evaluate(((ElvisOperatorExpression) expression).getTrueExpression());
+            return DefaultTypeTransformation.castToBoolean(value) ? value : evaluate(((ElvisOperatorExpression) expression).getFalseExpression());
+        } else if (expression instanceof TernaryExpression) {
+            TernaryExpression ternary = (TernaryExpression) expression;
+            return evaluate(DefaultTypeTransformation.castToBoolean(evaluate(ternary.getBooleanExpression())) ? ternary.getTrueExpression() : ternary.getFalseExpression());
+        } else if (expression instanceof MethodCallExpression) {
+            return evaluate((MethodCallExpression) expression);
+        }
+        throw new NotConstantException();
+    }
+
+    private static Object evaluate(BinaryExpression expression) {
+        int operation = expression.getOperation().getType();
+        if (operation == Types.LOGICAL_AND || operation == Types.LOGICAL_OR) {
+            boolean left = DefaultTypeTransformation.castToBoolean(evaluate(expression.getLeftExpression()));
+            if (left == (operation == Types.LOGICAL_OR)) {
+                return left;
+            }
+            return DefaultTypeTransformation.castToBoolean(evaluate(expression.getRightExpression()));
+        }
+        Object left = evaluate(expression.getLeftExpression());
+        Object right = evaluate(expression.getRightExpression());
+        switch (operation) {
+        case Types.PLUS:
+            return InvokerHelper.invokeMethod(left, "plus", right);
+        case Types.MINUS:
+            return InvokerHelper.invokeMethod(left, "minus", right);
+        case Types.MULTIPLY:
+            if (left instanceof CharSequence) {
+                // repeated strings could take any amount of memory
+                throw new NotConstantException();
+            }
+            return InvokerHelper.invokeMethod(left, "multiply", right);
+        case Types.DIVIDE:
+            return InvokerHelper.invokeMethod(left, "div", right);
+        case Types.MOD:
+            return InvokerHelper.invokeMethod(left, "mod", right);
+        case Types.COMPARE_EQUAL:
+            return ScriptBytecodeAdapter.compareEqual(left, right);
+        case Types.COMPARE_NOT_EQUAL:
+            return ScriptBytecodeAdapter.compareNotEqual(left, right);
+        case Types.COMPARE_LESS_THAN:
+            return ScriptBytecodeAdapter.compareLessThan(left, right);
+        case Types.COMPARE_LESS_THAN_EQUAL:
+            return ScriptBytecodeAdapter.compareLessThanEqual(left, right);
+        case Types.COMPARE_GREATER_THAN:
+            return ScriptBytecodeAdapter.compareGreaterThan(left, right);
+        case Types.COMPARE_GREATER_THAN_EQUAL:
+            return ScriptBytecodeAdapter.compareGreaterThanEqual(left, right);
+        default:
+            throw new NotConstantException();
+        }
+    }
+
+    private static Object evaluate(MethodCallExpression call) {
+        if (call.isImplicitThis() || call.isSafe() || call.isSpreadSafe() || !METHODS.contains(call.getMethodAsString())
+                || !(call.getArguments() instanceof ArgumentListExpression)) {
+            throw new NotConstantException();
+        }
+        Object receiver = evaluate(call.getObjectExpression());
+        List<Expression> expressions = ((ArgumentListExpression) call.getArguments()).getExpressions();
+        Object[] arguments = new Object[expressions.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = evaluate(expressions.get(i));
+        }
+        return InvokerHelper.invokeMethod(receiver, call.getMethodAsString(), arguments);
+    }
+
+    /**
+     * Thrown when the expression references anything else than the literals, the operators and the known methods.
+     */
+    private static final class NotConstantException extends RuntimeException {
+
+        private static final long serialVersionUID = 3461508218373740125L;
+
+        NotConstantException() {
+            super(null, null, false, false);
+        }
+
+    }
+
+}
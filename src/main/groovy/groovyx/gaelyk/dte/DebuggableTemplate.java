@@ -6,24 +6,76 @@ import groovy.lang.Writable;
 import groovy.text.Template;
 
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.io.Reader;
-import java.io.StringWriter;
+import java.io.UncheckedIOException;
 import java.io.Writer;
-import java.util.Arrays;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
 
-import org.codehaus.groovy.runtime.InvokerHelper;
+/**
+ * Template created by {@link DebuggableTemplateEngine}.
+ * 
+ * Besides the {@link Template} methods the template can be rendered directly
+ * using {@link #render(Map, Writer)} which skips the intermediate {@link Writable}
+ * or using {@link #render(Map, OutputStream)} which writes the static texts of the template
+ * encoded in advance. {@link #renderAsync(Map, ChunkSink, Executor)} renders the template
+ * in the background handing the encoded chunks over to the non-blocking sink.
+ * 
+ * The template remembers the usual length of its documents so {@link #renderToString(Map)}
+ * and {@link #render(Map, OutputStream)} can render into the pooled buffers large enough
+ * for the whole document.
+ * 
+ * @author Vladimir Orany
+ */
+public class DebuggableTemplate implements Template {
 
-class DebuggableTemplate implements Template {
+    static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
 
     DebuggableTemplate(){
         // disallow creation outside this package
     }
     
     private Script script;
+    private ScriptPool scriptPool;
+    private int scriptPoolSize;
     private String fileName;
-    private Map<Position, Position> positionsMap;
+    private volatile PositionIndex positionIndex;
+    private boolean lazyPositionIndex;
+    private char[] source;
+    private int[] lineCheckpoints;
+    private int weight;
+    private boolean streaming;
+    private boolean compactWhitespace;
+    private boolean constantFolding;
+    private Escaping foldedEscaping;
+    private String[] staticTexts;
+    private Charset charset = DEFAULT_CHARSET;
+    private byte[][] encodedStaticTexts;
+    private String templateName;
+    private String sourceName;
+    private String sourceHash;
+    private boolean stackTraceRemapping = true;
+    private volatile StackTraceRemapper stackTraceRemapper;
+    private TemplateListener templateListener;
+    private FlushPolicy flushPolicy = FlushPolicy.END;
+    private Escaping escaping = Escaping.NONE;
+    private FragmentCache fragmentCache;
+    private RenderBufferPool renderBufferPool = RenderBufferPool.NONE;
+    private volatile int estimatedLength;
+    private String[] includeNames;
+    private String layoutName;
+    private Map<String, String> model;
+    private DebuggableTemplate[] includes;
+    private DebuggableTemplate layout;
+    private Map<String, String> dependencies = Collections.emptyMap();
 
     public Writable make() {
         return make(null);
@@ -37,44 +89,8 @@ class DebuggableTemplate implements Template {
              * @see groovy.lang.Writable#writeTo(java.io.Writer)
              */
             public Writer writeTo(Writer writer) {
-                try {
-                    Binding binding;
-                    if (map == null)
-                        binding = new Binding();
-                    else
-                        binding = new Binding(map);
-                    Script scriptObject = InvokerHelper.createScript(script.getClass(), binding);
-                    PrintWriter pw = new PrintWriter(writer);
-                    scriptObject.setProperty("out", pw);
-                    scriptObject.run();
-                    pw.flush();
-                    return writer;  
-                } catch (RuntimeException t) {
-                    StackTraceElement[] elems = t.getStackTrace();
-                    
-                    StackTraceElement updated = null;
-                    int updateIndex = -1;
-                    
-                    for (int i = 0; i < elems.length; i++) {
-                        StackTraceElement elem = elems[i];
-                        if (elem.getFileName().equals(fileName)) {
-                            updated = elem;
-                            updateIndex = i;
-                            break;
-                        }
-                    }
-                    
-                    if (updated != null && updateIndex >= 0) {
-                        Position pos = positionsMap.get(Position.at(updated.getLineNumber(), 1));
-                        updated = new StackTraceElement(updated.getClassName(), updated.getMethodName(), updated.getFileName(), pos.getLineNumber());
-                        elems[updateIndex] = updated;
-                    }
-                    
-                    t.setStackTrace(elems);
-                    
-                    throw t;
-                }
-
+                render(map, writer);
+                return writer;
             }
 
             /**
@@ -83,176 +99,498 @@ class DebuggableTemplate implements Template {
              * @see java.lang.Object#toString()
              */
             public String toString() {
-                StringWriter sw = new StringWriter();
-                writeTo(sw);
-                return sw.toString();
+                return renderToString(map);
             }
         };
     }
 
     /**
-     * Parse the text document looking for <% or <%= and then call out to the appropriate handler, otherwise copy the text directly
-     * into the script while escaping quotes.
-     *
-     * @param reader a reader for the template text
-     * @return the parsed text
-     * @throws IOException if something goes wrong
+     * Write the template document with the binding created from given map to the writer.
+     * 
+     * @param map the variables of the binding, may be <code>null</code>
+     * @param writer the writer to write the template document to
      */
-    String parse(Reader r) throws IOException {
-        LineAndColumnNumberReader reader = new LineAndColumnNumberReader(r);
-        
-        DebuggableStringWriter sw = new DebuggableStringWriter(reader);
-        startScript(sw);
-        int c;
-        while ((c = reader.read()) != -1) {
-            if (c == '<') {
-                reader.mark(1);
-                c = reader.read();
-                if (c != '%') {
-                    sw.write('<');
-                    reader.reset();
-                } else {
-                    reader.mark(1);
-                    c = reader.read();
-                    if (c == '=') {
-                        groovyExpression(reader, sw);
-                    } else {
-                        reader.reset();
-                        groovySection(reader, sw);
-                    }
-                }
-                continue; // at least '<' is consumed ... read next chars.
-            }
-            if (c == '$') {
-                reader.mark(1);
-                c = reader.read();
-                if (c != '{') {
-                    sw.write('$');
-                    reader.reset();
-                } else {
-                    reader.mark(1);
-                    sw.write("${");
-                    processGSstring(reader, sw);
-                }
-                continue; // at least '$' is consumed ... read next chars.
-            }
-            if (c == '\"') {
-                sw.write('\\');
+    public void render(@SuppressWarnings("rawtypes") Map map, Writer writer) {
+        render(map, new TemplateWriter(writer, staticTexts));
+    }
+
+    /**
+     * Renders the template document with the binding created from given map into string.
+     * 
+     * The document is rendered into pooled buffer sized according to the estimated
+     * length of the documents rendered by this template so far.
+     * 
+     * @param map the variables of the binding, may be <code>null</code>
+     * @return the template document
+     */
+    public String renderToString(@SuppressWarnings("rawtypes") Map map) {
+        RenderBufferPool pool = renderBufferPool;
+        RenderBuffer buffer = pool.acquire(getExpectedLength());
+        try {
+            render(map, new TemplateWriter(buffer, staticTexts));
+            return buffer.toString();
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Write the template document with the binding created from given map to the output stream
+     * encoded using the charset of this template. The static texts of the template are written
+     * as the bytes encoded when the template has been compiled so only the values of the expressions
+     * are encoded during the render. The stream is flushed but not closed.
+     * 
+     * @param map the variables of the binding, may be <code>null</code>
+     * @param out the output stream to write the template document to
+     * @throws IOException if the template document cannot be written
+     */
+    public void render(@SuppressWarnings("rawtypes") Map map, OutputStream out) throws IOException {
+        RenderBufferPool pool = renderBufferPool;
+        RenderBuffer buffer = pool.acquire(0);
+        try {
+            TemplateWriter writer = new TemplateWriter(new EncodingWriter(out, charset, buffer.getBytes()), staticTexts, encodedStaticTexts);
+            render(map, writer);
+            if (writer.checkError()) {
+                throw new IOException("Failed to write the template document");
             }
-            /*
-             * Handle raw new line characters.
-             */
-            if (c == '\n' || c == '\r') {
-                if (c == '\r') { // on Windows, "\r\n" is a new line.
-                    reader.mark(1);
-                    c = reader.read();
-                    if (c != '\n') {
-                        reader.reset();
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Write the template document with the binding created from given map to the channel
+     * encoded using the charset of this template.
+     * 
+     * @param map the variables of the binding, may be <code>null</code>
+     * @param channel the channel to write the template document to
+     * @throws IOException if the template document cannot be written
+     * @see #render(Map, OutputStream)
+     */
+    public void render(@SuppressWarnings("rawtypes") Map map, WritableByteChannel channel) throws IOException {
+        render(map, Channels.newOutputStream(channel));
+    }
+
+    /**
+     * Renders the template document using given executor and hands it over to the sink in encoded chunks.
+     * 
+     * The chunks are produced when the output buffer is full and at the boundaries given by the flush policy
+     * of the template, see {@link DebuggableTemplateEngine#setFlushPolicy(FlushPolicy)}. The render waits
+     * until the sink is ready for the next chunk so the executor should use the threads which can block,
+     * e.g. the virtual threads. The first failure of the sink stops the render.
+     * 
+     * @param map the variables of the binding, may be <code>null</code>
+     * @param sink the sink accepting the chunks of the template document
+     * @param executor the executor running the render
+     * @return the stage completed when the whole document has been accepted by the sink or completed
+     * exceptionally with the exception thrown by the template or the failure of the sink
+     */
+    public CompletionStage<Void> renderAsync(@SuppressWarnings("rawtypes") final Map map, final ChunkSink sink, Executor executor) {
+        final CompletableFuture<Void> result = new CompletableFuture<Void>();
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        TemplateWriter writer = new TemplateWriter(new EncodingWriter(new ChunkOutputStream(sink), charset), staticTexts, encodedStaticTexts);
+                        writer.setFailFast(true);
+                        render(map, writer);
+                        result.complete(null);
+                    } catch (UncheckedIOException e) {
+                        result.completeExceptionally(e.getCause());
+                    } catch (Throwable t) {
+                        result.completeExceptionally(t);
                     }
                 }
-                sw.write("\n");
-                continue;
-            }
-            sw.write(c);
+            });
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
         }
-        endScript(sw);
-        positionsMap = sw.getPositionsMap();
-        return sw.toString();
+        return result;
     }
 
-    private void startScript(StringWriter sw) {
-        sw.write("out.print(\"\"\"");
+    private void render(@SuppressWarnings("rawtypes") Map map, TemplateWriter pw) {
+        pw.setFlushPolicy(flushPolicy);
+        Binding binding;
+        if (map == null)
+            binding = new Binding();
+        else
+            binding = new Binding(map);
+        binding.setVariable("out", pw);
+        pw.setBinding(binding);
+        TemplateListener listener = templateListener;
+        long charactersWritten = pw.getCharactersWritten();
+        if (listener == null) {
+            render(binding, pw);
+            pw.flush();
+            recordLength(pw.getCharactersWritten() - charactersWritten);
+            return;
+        }
+        long start = System.nanoTime();
+        Throwable failure = null;
+        try {
+            render(binding, pw);
+            pw.flush();
+            recordLength(pw.getCharactersWritten() - charactersWritten);
+        } catch (RuntimeException e) {
+            failure = e;
+            throw e;
+        } catch (Error e) {
+            failure = e;
+            throw e;
+        } finally {
+            listener.templateRendered(getName(), System.nanoTime() - start, pw.getCharactersWritten() - charactersWritten, failure);
+        }
     }
 
-    private void endScript(StringWriter sw) {
-        sw.write("\"\"\");\n");
-        sw.write("\n/* Generated by SimpleTemplateEngine */");
+    /**
+     * Updates the estimated length of the documents with the length of the document just rendered.
+     * The estimate follows the recent renders so it adapts when the documents get longer or shorter.
+     * @param length the number of characters written by the render
+     */
+    private void recordLength(long length) {
+        int current = (int) Math.min(length, Integer.MAX_VALUE);
+        int estimate = estimatedLength;
+        estimatedLength = estimate == 0 ? current : estimate + (current - estimate) / 8;
     }
 
-    private void processGSstring(Reader reader, StringWriter sw) throws IOException {
-        int c;
-        while ((c = reader.read()) != -1) {
-            if (c != '\n' && c != '\r') {
-                sw.write(c);
-            }
-            if (c == '}') {
-                break;
-            }
+    /**
+     * Returns the capacity of the buffer expected to hold the next document without growing.
+     * @return the estimated length with some headroom
+     */
+    private int getExpectedLength() {
+        int estimate = estimatedLength;
+        return (int) Math.min(estimate + estimate / 4L + 64, Integer.MAX_VALUE - 8);
+    }
+
+    /**
+     * Returns the moving average of the lengths of the documents rendered by this template.
+     * @return the estimated length of the document or zero if the template hasn't been rendered yet
+     */
+    int getEstimatedLength() {
+        return estimatedLength;
+    }
+
+    /**
+     * Renders the template inside its layout if it has any.
+     * @param binding the binding shared by all the templates rendered into the writer
+     * @param pw the writer bound to the <code>out</code> variable
+     */
+    void render(Binding binding, TemplateWriter pw) {
+        if (layout == null) {
+            run(binding, pw);
+            return;
+        }
+        pw.pushBody(this);
+        try {
+            layout.render(binding, pw);
+        } finally {
+            pw.popBody();
+        }
+    }
+
+    /**
+     * Runs the script of the template ignoring its layout.
+     * @param binding the binding shared by all the templates rendered into the writer
+     * @param pw the writer bound to the <code>out</code> variable
+     */
+    void run(Binding binding, TemplateWriter pw) {
+        DebuggableTemplate previous = pw.enter(this);
+        ScriptPool pool = scriptPool;
+        Script scriptObject = pool.acquire(binding);
+        try {
+            scriptObject.run();
+        } catch (RuntimeException t) {
+            throw stackTraceRemapping ? remapStackTrace(t) : t;
+        } catch (Error t) {
+            throw stackTraceRemapping ? remapStackTrace(t) : t;
+        } finally {
+            pool.release(scriptObject);
+            pw.enter(previous);
+        }
+    }
+
+    /**
+     * Rewrites the stack trace frames of this template in the exception, its causes and suppressed
+     * exceptions so they point to the template lines. The exceptions thrown while rendering are remapped
+     * automatically unless the remapping has been disabled by
+     * {@link DebuggableTemplateEngine#setStackTraceRemapping(boolean)}.
+     * 
+     * @param throwable the exception thrown while rendering this template
+     * @return the same exception
+     */
+    public <T extends Throwable> T remapStackTrace(T throwable) {
+        return getStackTraceRemapper().remap(throwable);
+    }
+
+    private StackTraceRemapper getStackTraceRemapper() {
+        StackTraceRemapper remapper = stackTraceRemapper;
+        if (remapper == null) {
+            int[] templateLines = lineCheckpoints != null && positionIndex == null ? lineCheckpoints : StackTraceRemapper.templateLines(getPositionIndex());
+            remapper = new StackTraceRemapper(fileName, templateName, templateLines);
+            stackTraceRemapper = remapper;
         }
+        return remapper;
     }
 
     /**
-     * Closes the currently open write and writes out the following text as a GString expression until it reaches an end %>.
+     * Parse the text document looking for <% or <%= and then call out to the appropriate handler, otherwise copy the text directly
+     * into the script while escaping quotes.
      *
      * @param reader a reader for the template text
-     * @param sw     a StringWriter to write expression content
+     * @return the parsed text
      * @throws IOException if something goes wrong
      */
-    private void groovyExpression(Reader reader, StringWriter sw) throws IOException {
-        sw.write("${");
-        int c;
-        while ((c = reader.read()) != -1) {
-            if (c == '%') {
-                c = reader.read();
-                if (c != '>') {
-                    sw.write('%');
-                } else {
-                    break;
-                }
+    String parse(Reader reader) throws IOException {
+        char[] buffer = new char[8192];
+        int length = 0;
+        int read;
+        while ((read = reader.read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
+            if (length == buffer.length) {
+                char[] grown = new char[buffer.length * 2];
+                System.arraycopy(buffer, 0, grown, 0, length);
+                buffer = grown;
             }
-            if (c != '\n' && c != '\r') {
-                sw.write(c);
+        }
+        return parse(buffer, length);
+    }
+
+    /**
+     * Parse the text document looking for <% or <%= and then call out to the appropriate handler, otherwise copy the text directly
+     * into the script while escaping quotes.
+     *
+     * @param text the template text
+     * @return the parsed text
+     */
+    String parse(CharSequence text) {
+        int length = text.length();
+        char[] chars = new char[length];
+        if (text instanceof String) {
+            ((String) text).getChars(0, length, chars, 0);
+        } else {
+            for (int i = 0; i < length; i++) {
+                chars[i] = text.charAt(i);
             }
         }
-        sw.write("}");
+        return parse(chars, length);
     }
 
     /**
-     * Closes the currently open write and writes the following text as normal Groovy script code until it reaches an end %>.
+     * Parse the text document looking for <% or <%= and then call out to the appropriate handler, otherwise copy the text directly
+     * into the script while escaping quotes.
      *
-     * @param reader a reader for the template text
-     * @param sw     a StringWriter to write expression content
-     * @throws IOException if something goes wrong
+     * @param chars the template characters, the array is not modified
+     * @param length number of characters used in the array
+     * @return the parsed text
      */
-    private void groovySection(Reader reader, StringWriter sw) throws IOException {
-        sw.write("\"\"\");");
-        int c;
-        while ((c = reader.read()) != -1) {
-            if (c == '%') {
-                c = reader.read();
-                if (c != '>') {
-                    sw.write('%');
-                } else {
-                    break;
-                }
+    String parse(char[] chars, int length) {
+        ScriptBuffer sw = new ScriptBuffer(length + length / 8 + 64, lazyPositionIndex);
+        ScriptGenerator generator = generate(chars, length, sw);
+        staticTexts = generator.getStaticTexts();
+        includeNames = generator.getIncludes().toArray(new String[generator.getIncludes().size()]);
+        layoutName = generator.getLayout();
+        model = generator.getModel();
+        encodedStaticTexts = EncodingWriter.encode(staticTexts, charset);
+        if (lazyPositionIndex) {
+            positionIndex = null;
+            lineCheckpoints = sw.getLineCheckpoints();
+            if (chars.length == length) {
+                source = chars;
+            } else {
+                source = new char[length];
+                System.arraycopy(chars, 0, source, 0, length);
             }
-            /* Don't eat EOL chars in sections - as they are valid instruction separators.
-             * See http://jira.codehaus.org/browse/GROOVY-980
-             */
-            // if (c != '\n' && c != '\r') {
-            sw.write(c);
-            //}
+        } else {
+            positionIndex = sw.getPositionIndex();
         }
-        sw.write(";\nout.print(\"\"\"");
+        weight = sw.length();
+        return sw.toString();
     }
-    
+
+    private ScriptGenerator generate(char[] chars, int length, ScriptBuffer sw) {
+        ScriptGenerator generator = streaming ? new StreamingScriptGenerator(chars, sw) : new GStringScriptGenerator(chars, sw);
+        List<TemplateSegment> segments = new TemplateParser(chars, length).parse();
+        if (compactWhitespace) {
+            segments = new WhitespaceCompactor(chars).compact(segments);
+        }
+        if (constantFolding) {
+            segments = new ConstantFolder(chars, escaping).fold(segments);
+            foldedEscaping = escaping;
+        }
+        generator.generate(segments);
+        return generator;
+    }
+
+    /**
+     * Returns index translating compiled positions into the original ones.
+     * @return index translating compiled positions into the original ones
+     */
+    PositionIndex getPositionIndex() {
+        PositionIndex index = positionIndex;
+        if (index == null) {
+            index = buildPositionIndex();
+            positionIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * Returns the index translating compiled positions into the original ones without keeping
+     * the index built lazily.
+     * @return index translating compiled positions into the original ones
+     */
+    PositionIndex buildPositionIndex() {
+        PositionIndex index = positionIndex;
+        if (index != null) {
+            return index;
+        }
+        char[] chars = source;
+        if (chars == null) {
+            throw new IllegalStateException("Parse method hasn't been called yet!");
+        }
+        // the script is generated again from the retained source only to rebuild the index
+        ScriptBuffer sw = new ScriptBuffer(chars.length + chars.length / 8 + 64);
+        generate(chars, chars.length, sw);
+        return sw.getPositionIndex();
+    }
+
+    /**
+     * Sets index translating compiled positions into the original ones.
+     * @param positionIndex index translating compiled positions into the original ones
+     */
+    void setPositionIndex(PositionIndex positionIndex) {
+        this.positionIndex = positionIndex;
+        this.stackTraceRemapper = null;
+    }
+
+    /**
+     * Sets whether the index translating compiled positions into the original ones is built lazily.
+     * In the lazy mode only the template line of each script line is kept together with the template
+     * source and the full index is built when it is requested for the first time.
+     * Must be called before the template is parsed.
+     * @param lazyPositionIndex true if the index should be built lazily
+     */
+    void setLazyPositionIndex(boolean lazyPositionIndex) {
+        this.lazyPositionIndex = lazyPositionIndex;
+    }
+
     /**
      * Returns map translating compiled positions into the original ones.
      * @return map translating compiled positions into the original ones
      */
     Map<Position, Position> getPositionsMap() {
-        if (positionsMap == null) {
-            throw new IllegalStateException("Parse method hasn't been called yet!");
-        }
-        return positionsMap;
+        return getPositionIndex().asMap();
     }
     
+    /**
+     * Sets whether the literal text is written in chunks as it goes or printed
+     * together with the expressions as single GString. Must be called before the template is parsed.
+     * @param streaming true if the literal text should be written in chunks
+     */
+    void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * Sets whether the white space of the literal text is collapsed when the template is parsed.
+     * @param compactWhitespace true if the runs of white space should be collapsed
+     */
+    void setCompactWhitespace(boolean compactWhitespace) {
+        this.compactWhitespace = compactWhitespace;
+    }
+
+    /**
+     * Sets whether the constant expressions are evaluated when the template is parsed.
+     * The escaping must be set before the template is parsed.
+     * @param constantFolding true if the constant expressions should be folded into the literal text
+     */
+    void setConstantFolding(boolean constantFolding) {
+        this.constantFolding = constantFolding;
+    }
+
+    /**
+     * Sets the escaping of the constants folded into the literal text of the precompiled template.
+     * @param foldedEscaping the escaping of the folded constants or <code>null</code> if the constants were not folded
+     */
+    void setFoldedEscaping(Escaping foldedEscaping) {
+        this.foldedEscaping = foldedEscaping;
+    }
+
+    /**
+     * Returns the escaping the constants were folded with which must match the escaping of the template.
+     * @return the escaping of the folded constants or <code>null</code> if the constants were not folded
+     */
+    Escaping getFoldedEscaping() {
+        return foldedEscaping;
+    }
+
+    /**
+     * Returns the static texts written by the script generated in the streaming mode.
+     * @return the static texts written by the script
+     */
+    String[] getStaticTexts() {
+        return staticTexts;
+    }
+
+    /**
+     * Sets the charset used by {@link #render(Map, OutputStream)} and encodes the static texts.
+     * @param charset the charset of the template document written into the output stream
+     */
+    void setCharset(Charset charset) {
+        this.charset = charset;
+        if (staticTexts != null) {
+            encodedStaticTexts = EncodingWriter.encode(staticTexts, charset);
+        }
+    }
+
+    /**
+     * Sets the static texts written by the script generated in the streaming mode.
+     * @param staticTexts the static texts written by the script
+     */
+    void setStaticTexts(String[] staticTexts) {
+        this.staticTexts = staticTexts;
+        this.encodedStaticTexts = EncodingWriter.encode(staticTexts, charset);
+    }
+
+    /**
+     * Returns the static texts encoded using the charset of this template.
+     * @return the static texts encoded using the charset of this template
+     */
+    byte[][] getEncodedStaticTexts() {
+        return encodedStaticTexts;
+    }
+
+    /**
+     * Returns the charset used by {@link #render(Map, OutputStream)}.
+     * @return the charset of the template document written into the output stream
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Returns the weight of this template used by {@link TemplateCache}.
+     * @return the length of the generated script
+     */
+    int getWeight() {
+        return weight;
+    }
+
+    /**
+     * Sets the weight of this template used by {@link TemplateCache}.
+     * @param weight the length of the generated script
+     */
+    void setWeight(int weight) {
+        this.weight = weight;
+    }
+
     /**
      * Sets the script for this template.
      * @param script the script for this template
      */
     void setScript(Script script) {
         this.script = script;
+        this.scriptPool = new ScriptPool(script.getClass(), scriptPoolSize);
     }
     
     /**
@@ -263,12 +601,218 @@ class DebuggableTemplate implements Template {
         return script;
     }
 
+    /**
+     * Sets the maximum number of idle script instances kept for the future renders.
+     * @param scriptPoolSize maximum number of idle script instances, zero disables reusing the scripts
+     */
+    void setScriptPoolSize(int scriptPoolSize) {
+        this.scriptPoolSize = scriptPoolSize;
+        if (script != null) {
+            this.scriptPool = new ScriptPool(script.getClass(), scriptPoolSize);
+        }
+    }
+
+    /**
+     * Returns the class of the script for this template.
+     * @return the class of the script for this template
+     */
+    Class<? extends Script> getScriptClass() {
+        return script.getClass();
+    }
+
     /**
      * Sets the class name of this template.
      * @param className class name of this template
      */
     void setFileName(String className) {
         this.fileName = className;
+        this.stackTraceRemapper = null;
+    }
+
+    String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * Sets the directives found when the template has been parsed by the engine which compiled the script.
+     * @param includeNames the names of the included templates in the order of their indices
+     * @param layoutName the name of the layout or <code>null</code> if the template has no layout
+     * @param model the types of the model variables or <code>null</code> if the template has no model
+     */
+    void setDirectives(String[] includeNames, String layoutName, Map<String, String> model) {
+        this.includeNames = includeNames;
+        this.layoutName = layoutName;
+        this.model = model;
+    }
+
+    /**
+     * Returns the names of the templates included using <code>&lt;%@ include %&gt;</code> directive.
+     * @return the names of the included templates in the order of their indices
+     */
+    String[] getIncludeNames() {
+        return includeNames;
+    }
+
+    /**
+     * Returns the name of the layout set by <code>&lt;%@ layout %&gt;</code> directive.
+     * @return the name of the layout or <code>null</code> if the template has no layout
+     */
+    String getLayoutName() {
+        return layoutName;
+    }
+
+    /**
+     * Returns the types of the variables declared by <code>&lt;%@ model %&gt;</code> directive.
+     * The script of the template declaring its model is compiled statically.
+     * @return the types of the model variables by their names or <code>null</code> if the template has no model
+     */
+    Map<String, String> getModel() {
+        return model;
+    }
+
+    /**
+     * Sets the compiled templates included by this template.
+     * @param includes the included templates in the same order as their names
+     */
+    void setIncludes(DebuggableTemplate[] includes) {
+        this.includes = includes;
+    }
+
+    DebuggableTemplate getInclude(int index) {
+        return includes[index];
+    }
+
+    /**
+     * Sets the compiled layout of this template.
+     * @param layout the layout of this template
+     */
+    void setLayout(DebuggableTemplate layout) {
+        this.layout = layout;
+    }
+
+    /**
+     * Sets the templates this template references directly or through the templates it references.
+     * @param dependencies the hashes of the sources of the referenced templates by their names
+     */
+    void setDependencies(Map<String, String> dependencies) {
+        this.dependencies = dependencies;
+    }
+
+    Map<String, String> getDependencies() {
+        return dependencies;
+    }
+
+    /**
+     * Sets the name of the template reported in the stack traces instead of the script file name.
+     * @param templateName the name the template has been resolved by
+     */
+    void setTemplateName(String templateName) {
+        this.templateName = templateName;
+        this.stackTraceRemapper = null;
+    }
+
+    String getTemplateName() {
+        return templateName;
+    }
+
+    /**
+     * Sets the source the fragments of the cached regions of this template are kept under, so the fragments
+     * don't reference the template and the template compiled again from the same source finds them.
+     * @param sourceName the name of the template or <code>null</code> if the template has no name
+     * @param sourceHash the hash of the template source
+     */
+    void setSource(String sourceName, String sourceHash) {
+        this.sourceName = sourceName;
+        this.sourceHash = sourceHash;
+    }
+
+    String getSourceName() {
+        return sourceName;
+    }
+
+    String getSourceHash() {
+        return sourceHash;
+    }
+
+    /**
+     * Sets whether the exceptions thrown while rendering are remapped to the template lines.
+     * @param stackTraceRemapping false to rethrow the exceptions untouched
+     */
+    void setStackTraceRemapping(boolean stackTraceRemapping) {
+        this.stackTraceRemapping = stackTraceRemapping;
+    }
+
+    /**
+     * Sets the listener notified about every render of this template.
+     * @param templateListener the listener or <code>null</code> to disable the notifications
+     */
+    void setTemplateListener(TemplateListener templateListener) {
+        this.templateListener = templateListener;
+    }
+
+    /**
+     * Returns the name reported to the {@link TemplateListener}.
+     * @return the name of the resolved template or the file name of the script
+     */
+    String getName() {
+        return templateName == null ? fileName : templateName;
+    }
+
+    /**
+     * Returns the approximate number of bytes occupied by the position index or the line checkpoints
+     * without building the lazy index.
+     * @return the approximate number of bytes occupied by the position index
+     */
+    long getPositionIndexMemorySize() {
+        PositionIndex index = positionIndex;
+        if (index != null) {
+            return index.getMemorySize();
+        }
+        return lineCheckpoints == null ? 0 : lineCheckpoints.length * 4L;
+    }
+
+    /**
+     * Sets when the template document is flushed while it is being rendered.
+     * @param flushPolicy the flush policy
+     */
+    void setFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+    }
+
+    /**
+     * Sets the escaping of the values of the expressions.
+     * @param escaping the escaping of the values
+     */
+    void setEscaping(Escaping escaping) {
+        this.escaping = escaping;
+    }
+
+    /**
+     * Sets the cache of the fragments rendered by the regions marked by the cache directives.
+     * @param fragmentCache the fragment cache or <code>null</code> to render the regions every time
+     */
+    void setFragmentCache(FragmentCache fragmentCache) {
+        this.fragmentCache = fragmentCache;
+    }
+
+    FragmentCache getFragmentCache() {
+        return fragmentCache;
+    }
+
+    /**
+     * Returns the escaping of the values of the expressions.
+     * @return the escaping of the values
+     */
+    public Escaping getEscaping() {
+        return escaping;
+    }
+
+    /**
+     * Sets the pool of the buffers used to render the template into string or output stream.
+     * @param renderBufferPool the pool shared by the templates of the engine
+     */
+    void setRenderBufferPool(RenderBufferPool renderBufferPool) {
+        this.renderBufferPool = renderBufferPool;
     }
 
-}
\ No newline at end of file
+}
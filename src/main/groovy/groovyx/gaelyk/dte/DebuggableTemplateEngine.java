@@ -15,22 +15,56 @@
  */
 package groovyx.gaelyk.dte;
 
+import groovy.lang.Binding;
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.GroovyCodeSource;
 import groovy.lang.GroovyRuntimeException;
 import groovy.lang.GroovyShell;
+import groovy.lang.Script;
 import groovy.text.SimpleTemplateEngine;
 import groovy.text.Template;
 import groovy.text.TemplateEngine;
+import groovy.transform.CompileStatic;
 
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.Reader;
-import java.io.StringReader;
+import java.lang.reflect.Field;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.codehaus.groovy.control.CompilationFailedException;
+import org.codehaus.groovy.control.CompilerConfiguration;
 import org.codehaus.groovy.control.MultipleCompilationErrorsException;
+import org.codehaus.groovy.control.customizers.CompilationCustomizer;
+import org.codehaus.groovy.runtime.DefaultGroovyMethods;
 import org.codehaus.groovy.runtime.DefaultGroovyMethodsSupport;
 import org.codehaus.groovy.runtime.IOGroovyMethods;
+import org.codehaus.groovy.runtime.InvokerHelper;
 
 /**
  * {@link DebuggableTemplateEngine} is variation on {@link SimpleTemplateEngine}
@@ -96,11 +130,44 @@ import org.codehaus.groovy.runtime.IOGroovyMethods;
  * @author Alex Tkachman
  * @author Vladimir Orany
  */
-public class DebuggableTemplateEngine extends TemplateEngine {
+public class DebuggableTemplateEngine extends TemplateEngine implements Closeable {
     private boolean verbose;
-    private static int counter = 1;
+    private boolean streaming;
+    private boolean compactWhitespace;
+    private boolean constantFolding;
+    private Charset charset = DebuggableTemplate.DEFAULT_CHARSET;
+    private boolean offHeapPositionIndex;
+    private boolean lazyPositionIndex;
+    private boolean stackTraceRemapping = true;
+    private TemplateCache templateCache;
+    private ClassLoaderIsolation classLoaderIsolation = ClassLoaderIsolation.SHARED;
+    private int scriptPoolSize;
+    private PrecompiledTemplateLoader precompiledTemplateLoader;
+    private TemplateResolver templateResolver;
+    private TemplateListener templateListener;
+    private FlushPolicy flushPolicy = FlushPolicy.END;
+    private Escaping escaping = Escaping.NONE;
+    private FragmentCache fragmentCache;
+    private RenderBufferPool renderBufferPool = new RenderBufferPool(RenderBufferPool.DEFAULT_MAXIMUM_IDLE, RenderBufferPool.DEFAULT_MAXIMUM_RETAINED_CAPACITY);
+    private static final AtomicInteger counter = new AtomicInteger(1);
 
     private GroovyShell groovyShell;
+    private CompilerConfiguration compilerConfiguration;
+    private volatile CompilerConfiguration dynamicCompilerConfiguration;
+    private volatile CompilerConfiguration staticCompilerConfiguration;
+    private int maximumMethodWeight = ScriptSplitter.DEFAULT_MAXIMUM_WEIGHT;
+    private DiskTemplateCache diskTemplateCache;
+    private volatile GroovyClassLoader generationClassLoader;
+
+    /**
+     * The templates referenced by the include and layout directives shared by all the templates of this engine.
+     */
+    private final ConcurrentMap<List<Object>, DebuggableTemplate> resolvedTemplates = new ConcurrentHashMap<List<Object>, DebuggableTemplate>();
+
+    /**
+     * Part of the stamps of the cached templates increased when any shared referenced template changes.
+     */
+    private final AtomicLong dependencyVersion = new AtomicLong();
 
     public DebuggableTemplateEngine() {
         this(GroovyShell.class.getClassLoader());
@@ -112,46 +179,586 @@ public class DebuggableTemplateEngine extends TemplateEngine {
     }
 
     public DebuggableTemplateEngine(ClassLoader parentLoader) {
-        this(new GroovyShell(parentLoader));
+        this(parentLoader, CompilerConfiguration.DEFAULT);
+    }
+
+    public DebuggableTemplateEngine(ClassLoader parentLoader, CompilerConfiguration compilerConfiguration) {
+        this(new GroovyShell(parentLoader, new Binding(), compilerConfiguration));
+        this.compilerConfiguration = compilerConfiguration;
     }
 
+    /**
+     * Creates new engine using the class loader and the compiler configuration of given shell,
+     * so the templates keep the customizers, the imports and the script base class of the shell.
+     * If the configuration cannot be read from the shell, the templates are compiled by the class loader
+     * of the shell without splitting, the disk cache is not used and the templates with the model
+     * are compiled with the default configuration.
+     * 
+     * @param groovyShell the shell providing the class loader and the configuration for the templates
+     */
     public DebuggableTemplateEngine(GroovyShell groovyShell) {
         this.groovyShell = groovyShell;
+        this.compilerConfiguration = getConfiguration(groovyShell);
     }
 
-    @Override public Template createTemplate(File file) throws CompilationFailedException, ClassNotFoundException, IOException {
-        Reader reader = new FileReader(file);
+    /**
+     * Returns the configuration the shell compiles the scripts with. The shell doesn't expose
+     * its configuration so it is read from its field.
+     * @param groovyShell the shell
+     * @return the configuration of the shell or <code>null</code> if it cannot be read
+     */
+    private static CompilerConfiguration getConfiguration(GroovyShell groovyShell) {
         try {
-            return createTemplate(reader, file.getName());
-        } finally {
-            DefaultGroovyMethodsSupport.closeWithWarning(reader);
+            Field config = GroovyShell.class.getDeclaredField("config");
+            config.setAccessible(true);
+            return (CompilerConfiguration) config.get(groovyShell);
+        } catch (NoSuchFieldException e) {
+            return null;
+        } catch (IllegalAccessException e) {
+            return null;
+        } catch (RuntimeException e) {
+            // the field is not accessible e.g. in the restricted environment
+            return null;
         }
     }
+
+    /**
+     * Creates the template from the file decoded using the default charset.
+     * The template is cached under the same key and stamp as if it was created using
+     * {@link #createTemplate(Path, Charset)} with the default charset.
+     */
+    @Override public Template createTemplate(File file) throws CompilationFailedException, ClassNotFoundException, IOException {
+        return createTemplate(file.toPath(), Charset.defaultCharset());
+    }
+
+    /**
+     * Creates the template from the file decoded using given charset.
+     * 
+     * Large files are memory-mapped and decoded directly into the buffer of the parser
+     * so the text of the template is not copied more than once. The template is cached
+     * under the same key and stamp as if it was created using {@link #createTemplate(File)}
+     * when the charset is the default one and it is compiled again if the file, the charset
+     * or any template it references changes.
+     * 
+     * @param path the template file
+     * @param sourceCharset the charset of the template file
+     * @return the compiled template
+     * @throws IOException if the file cannot be read
+     */
+    public DebuggableTemplate createTemplate(final Path path, final Charset sourceCharset) throws CompilationFailedException, IOException {
+        if (templateCache == null) {
+            return compile(TemplateText.read(path, sourceCharset), path.getFileName().toString(), null);
+        }
+        File file = path.toFile();
+        return templateCache.get(file.getAbsoluteFile(), file.lastModified() + ":" + file.length() + ":" + sourceCharset.name() + ":" + dependencyVersion.get(), new Callable<DebuggableTemplate>() {
+            public DebuggableTemplate call() throws Exception {
+                return compile(TemplateText.read(path, sourceCharset), path.getFileName().toString(), null);
+            }
+        });
+    }
     
     public DebuggableTemplate createTemplate(Reader reader) throws CompilationFailedException, IOException {
-        return createTemplate(reader, "DebuggableTemplateScript" + counter++ + ".groovy");
+        final String text = IOGroovyMethods.getText(reader);
+        if (templateCache == null) {
+            return compile(new TemplateText(text), null, null);
+        }
+        final String hash = TemplateCache.hash(text);
+        return templateCache.get(hash, dependencyVersion.get(), new Callable<DebuggableTemplate>() {
+            public DebuggableTemplate call() throws Exception {
+                return compile(new TemplateText(text), null, hash);
+            }
+        });
     }
     
-    public DebuggableTemplate createTemplate(Reader reader, String fileName) throws CompilationFailedException, IOException {
+    public DebuggableTemplate createTemplate(Reader reader, final String fileName) throws CompilationFailedException, IOException {
+        final String text = IOGroovyMethods.getText(reader);
+        final String hash = TemplateCache.hash(text);
+        if (templateCache == null) {
+            return loadOrCompile(text, hash, fileName);
+        }
+        return templateCache.get(fileName, hash + ":" + dependencyVersion.get(), new Callable<DebuggableTemplate>() {
+            public DebuggableTemplate call() throws Exception {
+                return loadOrCompile(text, hash, fileName);
+            }
+        });
+    }
+
+    /**
+     * Loads the template precompiled by {@link TemplatePrecompiler} using the precompiled template loader.
+     * 
+     * @param name the name of the template
+     * @return the precompiled template
+     * @throws FileNotFoundException if there is no such precompiled template
+     * @throws IOException if the precompiled template cannot be read
+     * @see #setPrecompiledTemplateLoader(PrecompiledTemplateLoader)
+     */
+    public DebuggableTemplate createPrecompiledTemplate(String name) throws IOException {
+        if (precompiledTemplateLoader == null) {
+            throw new IllegalStateException("Precompiled template loader is not set");
+        }
+        DebuggableTemplate template = precompiledTemplateLoader.load(name, null);
+        if (template == null) {
+            throw new FileNotFoundException("No precompiled template found for " + name);
+        }
+        if (!isFoldedCompatibly(template)) {
+            throw new IllegalStateException("Template " + name + " was precompiled with the constants escaped by " + template.getFoldedEscaping() + " but the engine escapes by " + escaping);
+        }
+        return configure(template);
+    }
+
+    private DebuggableTemplate loadOrCompile(String text, String hash, String fileName) throws IOException {
+        if (precompiledTemplateLoader != null) {
+            DebuggableTemplate template = precompiledTemplateLoader.load(fileName, hash);
+            if (template != null && isFoldedCompatibly(template)) {
+                return configure(template);
+            }
+        }
+        return compile(new TemplateText(text), fileName, hash);
+    }
+
+    /**
+     * Tells whether the constants of the precompiled template were not folded or were folded with the escaping of this engine.
+     */
+    private boolean isFoldedCompatibly(DebuggableTemplate template) {
+        return template.getFoldedEscaping() == null || template.getFoldedEscaping() == escaping;
+    }
+
+    private DebuggableTemplate configure(DebuggableTemplate template) {
+        template.setCharset(charset);
+        template.setScriptPoolSize(scriptPoolSize);
+        template.setStackTraceRemapping(stackTraceRemapping);
+        template.setTemplateListener(templateListener);
+        template.setFlushPolicy(flushPolicy);
+        template.setEscaping(escaping);
+        template.setFragmentCache(fragmentCache);
+        template.setRenderBufferPool(renderBufferPool);
+        if (offHeapPositionIndex) {
+            template.setPositionIndex(template.getPositionIndex().toOffHeap());
+        }
+        return template;
+    }
+
+    private static String nextFileName() {
+        return "DebuggableTemplateScript" + counter.getAndIncrement() + ".groovy";
+    }
+    
+    private DebuggableTemplate compile(TemplateText text, String fileName, String sourceHash) throws IOException {
+        return compile(text, fileName, sourceHash, null, new HashMap<String, DebuggableTemplate>(), new ArrayList<String>());
+    }
+
+    /**
+     * Compiles the template and the templates it references.
+     * @param fileName the file name of the script or <code>null</code> to generate one
+     * @param sourceHash the hash of the text or <code>null</code> to compute it only if it is needed
+     */
+    private DebuggableTemplate compile(TemplateText text, String fileName, String sourceHash, String templateName, Map<String, DebuggableTemplate> resolved, List<String> resolving) throws IOException {
         DebuggableTemplate template = new DebuggableTemplate();
-        String text = IOGroovyMethods.getText(reader);
-        String script = template.parse(new StringReader(text));
+        template.setStreaming(streaming);
+        template.setCompactWhitespace(compactWhitespace);
+        template.setConstantFolding(constantFolding);
+        template.setCharset(charset);
+        template.setLazyPositionIndex(lazyPositionIndex);
+        template.setTemplateName(templateName);
+        template.setStackTraceRemapping(stackTraceRemapping);
+        template.setTemplateListener(templateListener);
+        template.setFlushPolicy(flushPolicy);
+        template.setEscaping(escaping);
+        template.setFragmentCache(fragmentCache);
+        template.setRenderBufferPool(renderBufferPool);
+        if (sourceHash == null && (fragmentCache != null || diskTemplateCache != null && compilerConfiguration != null)) {
+            // the hash identifies the fragments and the disk cache entries of the template
+            sourceHash = TemplateCache.hash(text.getChars(), text.getLength());
+        }
+        template.setSource(templateName == null ? fileName : templateName, sourceHash);
+        String diskKey = null;
+        if (diskTemplateCache != null && compilerConfiguration != null) {
+            // the generated file names differ between the runs so the entries are stored under the template name
+            diskKey = diskTemplateCache.key(sourceHash, fileName == null ? templateName : fileName, streaming, compactWhitespace, constantFolding ? escaping : null, compilerConfiguration, maximumMethodWeight);
+            template.setScriptPoolSize(scriptPoolSize);
+            if (diskTemplateCache.load(diskKey, template, getTemplateClassLoader())) {
+                if (offHeapPositionIndex) {
+                    template.setPositionIndex(template.getPositionIndex().toOffHeap());
+                }
+                link(template, resolved, resolving);
+                return template;
+            }
+        }
+        if (fileName == null) {
+            fileName = nextFileName();
+        }
+        long parseStart = templateListener == null ? 0 : System.nanoTime();
+        String script = template.parse(text.getChars(), text.getLength());
+        if (offHeapPositionIndex && !lazyPositionIndex) {
+            template.setPositionIndex(template.getPositionIndex().toOffHeap());
+        }
         if (verbose) {
             System.out.println("\n-- script source --");
             System.out.print(script);
             System.out.println("\n-- script end --\n");
         }
+        long compileStart = templateListener == null ? 0 : System.nanoTime();
         try {
             template.setFileName(fileName);
-            template.setScript(groovyShell.parse(script, fileName));
+            template.setScriptPoolSize(scriptPoolSize);
+            template.setScript(parseScript(template, script, fileName, diskKey));
         } catch (MultipleCompilationErrorsException e) {
-            throw new TemplateParsingException(text, script, template.getPositionsMap(), e);
+            throw new TemplateParsingException(text.toString(), script, template.getPositionIndex(), e, templateName);
         } catch (Exception e) {
             throw new GroovyRuntimeException("Failed to parse template script (your template may contain an error or be trying to use expressions not currently supported): " + e.getMessage());
         }
+        if (templateListener != null) {
+            templateListener.templateCompiled(template.getName(), compileStart - parseStart, System.nanoTime() - compileStart, script.length(), template.getPositionIndexMemorySize());
+        }
+        link(template, resolved, resolving);
+        return template;
+    }
+
+    /**
+     * Resolves the templates referenced by the include and layout directives of the template
+     * and records them as the dependencies of the template. Each referenced template is resolved
+     * only once for the template and all the templates it references.
+     */
+    private void link(DebuggableTemplate template, Map<String, DebuggableTemplate> resolved, List<String> resolving) throws IOException {
+        Map<String, String> dependencies = new LinkedHashMap<String, String>();
+        String[] includeNames = template.getIncludeNames();
+        DebuggableTemplate[] includes = new DebuggableTemplate[includeNames.length];
+        for (int i = 0; i < includeNames.length; i++) {
+            includes[i] = resolve(includeNames[i], resolved, resolving);
+            addDependency(dependencies, includeNames[i], includes[i]);
+        }
+        template.setIncludes(includes);
+        if (template.getLayoutName() != null) {
+            DebuggableTemplate layout = resolve(template.getLayoutName(), resolved, resolving);
+            template.setLayout(layout);
+            addDependency(dependencies, template.getLayoutName(), layout);
+        }
+        template.setDependencies(dependencies);
+    }
+
+    private static void addDependency(Map<String, String> dependencies, String name, DebuggableTemplate template) {
+        dependencies.put(name, template.getSourceHash());
+        dependencies.putAll(template.getDependencies());
+    }
+
+    /**
+     * Returns the referenced template of given name. The referenced templates are compiled once and shared
+     * by all the templates of this engine compiled with the same settings. The shared template is compiled again
+     * if its text or the text of any template it references has changed since it was compiled.
+     */
+
+    private DebuggableTemplate resolve(String name, Map<String, DebuggableTemplate> resolved, List<String> resolving) throws IOException {
+        DebuggableTemplate template = resolved.get(name);
+        if (template != null) {
+            return template;
+        }
+        if (resolving.contains(name)) {
+            throw new GroovyRuntimeException("Template " + name + " references itself: " + DefaultGroovyMethods.join(resolving, " -> ") + " -> " + name);
+        }
+        if (templateResolver == null) {
+            throw new GroovyRuntimeException("Template resolver is not set, cannot resolve template " + name);
+        }
+        Reader reader = templateResolver.resolve(name);
+        if (reader == null) {
+            throw new FileNotFoundException("Template not found: " + name);
+        }
+        String text;
+        try {
+            text = IOGroovyMethods.getText(reader);
+        } finally {
+            DefaultGroovyMethodsSupport.closeWithWarning(reader);
+        }
+        String sourceHash = TemplateCache.hash(text);
+        List<Object> key = Arrays.<Object>asList(name, streaming, compactWhitespace, constantFolding, escaping, maximumMethodWeight);
+        resolving.add(name);
+        try {
+            template = resolvedTemplates.get(key);
+            if (template == null || !sourceHash.equals(template.getSourceHash()) || !isLinkedToCurrent(template, resolved, resolving)) {
+                if (template != null) {
+                    invalidateResolved(name);
+                }
+                template = compile(new TemplateText(text), null, sourceHash, name, resolved, resolving);
+                resolvedTemplates.put(key, template);
+            }
+        } finally {
+            resolving.remove(resolving.size() - 1);
+        }
+        resolved.put(name, template);
         return template;
     }
 
+    /**
+     * Tells whether the templates referenced by the shared template haven't changed since it was compiled.
+     */
+    private boolean isLinkedToCurrent(DebuggableTemplate template, Map<String, DebuggableTemplate> resolved, List<String> resolving) throws IOException {
+        for (Map.Entry<String, String> dependency : template.getDependencies().entrySet()) {
+            if (!dependency.getValue().equals(resolve(dependency.getKey(), resolved, resolving).getSourceHash())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes the shared template of given name and the shared templates referencing it, the cached templates
+     * referencing it are compiled again when they are requested.
+     */
+    private void invalidateResolved(String name) {
+        boolean removed = false;
+        Iterator<Map.Entry<List<Object>, DebuggableTemplate>> iterator = resolvedTemplates.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<List<Object>, DebuggableTemplate> entry = iterator.next();
+            if (name.equals(entry.getKey().get(0)) || entry.getValue().getDependencies().containsKey(name)) {
+                iterator.remove();
+                removed = true;
+            }
+        }
+        if (removed) {
+            dependencyVersion.incrementAndGet();
+        }
+    }
+
+    private Script parseScript(DebuggableTemplate template, String script, String fileName, String diskKey) {
+        GroovyClassLoader classLoader = getTemplateClassLoader();
+        boolean staticCompilation = template.getModel() != null;
+        Class<?> scriptClass;
+        if (compilerConfiguration == null && !staticCompilation && diskKey == null) {
+            // the configuration of the shell is not known so the scripts are not split
+            scriptClass = classLoader.parseClass(new GroovyCodeSource(script, fileName, GroovyShell.DEFAULT_CODE_BASE), false);
+        } else {
+            GroovyClassLoader.InnerLoader loader = new GroovyClassLoader.InnerLoader(classLoader);
+            CompiledScript compiled = CompiledScript.compile(loader, script, fileName, getTemplateConfiguration(staticCompilation));
+            scriptClass = compiled.define(loader);
+            if (diskKey != null) {
+                diskTemplateCache.store(diskKey, template, compiled);
+            }
+        }
+        return InvokerHelper.createScript(scriptClass, new Binding());
+    }
+
+    private GroovyClassLoader getTemplateClassLoader() {
+        switch (classLoaderIsolation) {
+        case PER_TEMPLATE:
+            return new GroovyClassLoader(groovyShell.getClassLoader());
+        case PER_GENERATION:
+            return getGenerationClassLoader();
+        default:
+            return groovyShell.getClassLoader();
+        }
+    }
+
+    private CompilerConfiguration getTemplateConfiguration(boolean staticCompilation) {
+        CompilerConfiguration configuration = staticCompilation ? staticCompilerConfiguration : dynamicCompilerConfiguration;
+        if (configuration == null) {
+            configuration = withScriptSplitting(compilerConfiguration == null ? CompilerConfiguration.DEFAULT : compilerConfiguration, maximumMethodWeight);
+            if (staticCompilation) {
+                configuration.addCompilationCustomizers(new StaticCompilationCustomizer());
+                staticCompilerConfiguration = configuration;
+            } else {
+                dynamicCompilerConfiguration = configuration;
+            }
+        }
+        return configuration;
+    }
+
+    /**
+     * Returns copy of the configuration which splits the large scripts into several methods.
+     * @param configuration the configuration of the templates
+     * @param maximumMethodWeight the maximum weight of single method, zero disables splitting
+     * @return the configuration applying {@link ScriptSplitter} to the scripts
+     */
+    static CompilerConfiguration withScriptSplitting(CompilerConfiguration configuration, int maximumMethodWeight) {
+        CompilerConfiguration splittingConfiguration = copyOf(configuration);
+        if (maximumMethodWeight > 0) {
+            splittingConfiguration.addCompilationCustomizers(new ScriptSplitter(maximumMethodWeight));
+        }
+        return splittingConfiguration;
+    }
+
+    /**
+     * Returns copy of the configuration which compiles the scripts of the templates declaring their model statically.
+     * @param configuration the configuration of the dynamic templates
+     * @return the configuration applying {@link CompileStatic} to the scripts
+     */
+    static CompilerConfiguration withStaticCompilation(CompilerConfiguration configuration) {
+        CompilerConfiguration staticConfiguration = copyOf(configuration);
+        staticConfiguration.addCompilationCustomizers(new StaticCompilationCustomizer());
+        return staticConfiguration;
+    }
+
+    private static CompilerConfiguration copyOf(CompilerConfiguration configuration) {
+        CompilerConfiguration copy = new CompilerConfiguration(configuration);
+        // the copy constructor doesn't copy the customizers
+        for (CompilationCustomizer customizer : configuration.getCompilationCustomizers()) {
+            copy.addCompilationCustomizers(customizer);
+        }
+        return copy;
+    }
+
+    private GroovyClassLoader getGenerationClassLoader() {
+        GroovyClassLoader classLoader = generationClassLoader;
+        if (classLoader == null) {
+            synchronized (this) {
+                classLoader = generationClassLoader;
+                if (classLoader == null) {
+                    classLoader = new GroovyClassLoader(groovyShell.getClassLoader());
+                    generationClassLoader = classLoader;
+                }
+            }
+        }
+        return classLoader;
+    }
+
+    /**
+     * Compiles all templates under the root directory matching given glob in parallel using
+     * new {@link ForkJoinPool} with the parallelism equal to the number of available processors.
+     * 
+     * @param root the root directory of the templates
+     * @param glob the glob the paths relative to the root directory must match, e.g. <code>**&#47;*.gtpl</code>
+     * @return the report containing the compiled templates, the failures and the compilation times
+     * @throws IOException if the directory cannot be read
+     * @see #precompileAll(Path, String, ExecutorService)
+     */
+    public PrecompilationReport precompileAll(Path root, String glob) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            return precompileAll(root, glob, pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Compiles all templates under the root directory matching given glob in parallel using given executor.
+     * 
+     * The templates are compiled by {@link #createTemplate(File)} so they are also stored in the template cache
+     * if the cache is set. Templates failing to compile don't stop the other templates being compiled, they are
+     * collected in the report instead.
+     * 
+     * @param root the root directory of the templates
+     * @param glob the glob the paths relative to the root directory must match, e.g. <code>**&#47;*.gtpl</code>
+     * @param executor the executor compiling the templates, it is not shut down
+     * @return the report containing the compiled templates, the failures and the compilation times
+     * @throws IOException if the directory cannot be read
+     */
+    public PrecompilationReport precompileAll(final Path root, String glob, ExecutorService executor) throws IOException {
+        final PathMatcher matcher = root.getFileSystem().getPathMatcher("glob:" + glob);
+        final List<Path> paths = new ArrayList<Path>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && matcher.matches(root.relativize(file))) {
+                    paths.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        final PrecompilationReport report = new PrecompilationReport();
+        long start = System.nanoTime();
+        List<Future<?>> results = new ArrayList<Future<?>>(paths.size());
+        for (final Path path : paths) {
+            results.add(executor.submit(new Runnable() {
+                public void run() {
+                    long templateStart = System.nanoTime();
+                    try {
+                        DebuggableTemplate template = (DebuggableTemplate) createTemplate(path.toFile());
+                        report.compiled(path, template, System.nanoTime() - templateStart);
+                    } catch (Exception e) {
+                        report.failed(path, e, System.nanoTime() - templateStart);
+                    }
+                }
+            }));
+        }
+        for (Future<?> result : results) {
+            try {
+                result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                InterruptedIOException interrupted = new InterruptedIOException("Interrupted while waiting for the templates to be compiled");
+                interrupted.initCause(e);
+                throw interrupted;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException("Failed to compile template", cause);
+            }
+        }
+        report.setElapsedTime(System.nanoTime() - start);
+        return report;
+    }
+
+    /**
+     * Removes the template compiled from given file from the template cache and its fragments from the fragment cache.
+     * 
+     * The classes of the template can be unloaded once the template is no longer referenced
+     * if the classes are not compiled using {@link ClassLoaderIsolation#SHARED} class loader.
+     * 
+     * @param file the template file
+     */
+    public void invalidate(File file) {
+        if (templateCache != null) {
+            templateCache.invalidate(file.getAbsoluteFile());
+        }
+        if (fragmentCache != null) {
+            fragmentCache.invalidate(file.getName());
+        }
+    }
+
+    /**
+     * Removes the template created using {@link #createTemplate(Reader, String)} from the template cache
+     * and its fragments from the fragment cache. If the name is the name of the template referenced
+     * by the include or layout directives, the templates referencing it are compiled again when they are requested.
+     * 
+     * The classes of the template can be unloaded once the template is no longer referenced
+     * if the classes are not compiled using {@link ClassLoaderIsolation#SHARED} class loader.
+     * 
+     * @param fileName the name of the template
+     */
+    public void invalidate(String fileName) {
+        if (templateCache != null) {
+            templateCache.invalidate(fileName);
+        }
+        invalidateResolved(fileName);
+        if (fragmentCache != null) {
+            fragmentCache.invalidate(fileName);
+        }
+    }
+
+    /**
+     * Removes all templates from the template cache, all fragments from the fragment cache and starts new generation of the templates
+     * if {@link ClassLoaderIsolation#PER_GENERATION} is used.
+     * 
+     * The classes of the templates can be unloaded once the templates are no longer referenced
+     * if the classes are not compiled using {@link ClassLoaderIsolation#SHARED} class loader.
+     */
+    public void invalidateAll() {
+        if (templateCache != null) {
+            templateCache.invalidateAll();
+        }
+        if (fragmentCache != null) {
+            fragmentCache.invalidateAll();
+        }
+        resolvedTemplates.clear();
+        dependencyVersion.incrementAndGet();
+        GroovyClassLoader classLoader;
+        synchronized (this) {
+            classLoader = generationClassLoader;
+            generationClassLoader = null;
+        }
+        if (classLoader != null) {
+            classLoader.clearCache();
+        }
+    }
+
+    /**
+     * Releases all templates and class loaders held by this engine. The engine can still be used
+     * after it has been closed.
+     */
+    public void close() {
+        invalidateAll();
+    }
+
     /**
      * @param verbose true if you want the engine to display the template source file for debugging purposes
      */
@@ -162,4 +769,343 @@ public class DebuggableTemplateEngine extends TemplateEngine {
     public boolean isVerbose() {
         return verbose;
     }
+
+    /**
+     * Sets whether the templates compiled from now on write the literal text in chunks as it goes.
+     * 
+     * By default the literal text and the expressions between the sections are printed as single GString
+     * which is fully evaluated before anything is written. In the streaming mode the literal text is kept
+     * as interned static texts of the template and only the expressions are evaluated so the output starts
+     * immediately and the memory used by the render doesn't grow with the size of the template.
+     * 
+     * @param streaming true if you want the templates to write the literal text in chunks
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * Sets whether the templates compiled from now on collapse the white space of their literal text.
+     * 
+     * Each run of white space is replaced by its first new line or by its first character, so the indentation
+     * and the blank lines are not written into the document. The content of <code>pre</code>, <code>textarea</code>,
+     * <code>script</code> and <code>style</code> elements is kept as it is. The text is collapsed when the template
+     * is compiled and the errors are still reported with the lines and columns of the original template.
+     * 
+     * @param compactWhitespace true if the white space of the literal text should be collapsed
+     */
+    public void setCompactWhitespace(boolean compactWhitespace) {
+        this.compactWhitespace = compactWhitespace;
+    }
+
+    public boolean isCompactWhitespace() {
+        return compactWhitespace;
+    }
+
+    /**
+     * Sets whether the templates compiled from now on evaluate their constant expressions when they are compiled.
+     * 
+     * The <code>${ }</code>, <code>&lt;%= %&gt;</code> and <code>&lt;%== %&gt;</code> expressions which only combine
+     * string, number and boolean literals using the operators and a few methods of strings and numbers without side effects,
+     * such as <code>${'Total: ' + (7 * 24)}</code>, are evaluated and escaped once and become part of the literal text.
+     * Expressions referencing any variable are evaluated on every render as usual.
+     * 
+     * @param constantFolding true if the constant expressions should be folded into the literal text
+     */
+    public void setConstantFolding(boolean constantFolding) {
+        this.constantFolding = constantFolding;
+    }
+
+    public boolean isConstantFolding() {
+        return constantFolding;
+    }
+
+    /**
+     * Sets the charset of the templates compiled from now on used when the templates are rendered
+     * into the output stream. The static texts of the templates are encoded using this charset
+     * when the templates are compiled. Defaults to UTF-8.
+     * 
+     * @param charset the charset of the template documents written into the output streams
+     */
+    public void setCharset(Charset charset) {
+        this.charset = charset == null ? DebuggableTemplate.DEFAULT_CHARSET : charset;
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Sets the loader of the templates precompiled by {@link TemplatePrecompiler}. Templates created
+     * using {@link #createTemplate(Reader, String)} are loaded from the precompiled templates if there is
+     * precompiled template of the same name compiled from the same text.
+     * 
+     * @param precompiledTemplateLoader loader of the precompiled templates or <code>null</code> to compile all templates
+     */
+    public void setPrecompiledTemplateLoader(PrecompiledTemplateLoader precompiledTemplateLoader) {
+        this.precompiledTemplateLoader = precompiledTemplateLoader;
+    }
+
+    public PrecompiledTemplateLoader getPrecompiledTemplateLoader() {
+        return precompiledTemplateLoader;
+    }
+
+    /**
+     * Sets the resolver of the templates referenced by <code>&lt;%@ include file="name" %&gt;</code>
+     * and <code>&lt;%@ layout file="name" %&gt;</code> directives.
+     * 
+     * The referenced templates are compiled once and shared by all the templates of the engine
+     * and they are rendered directly into the writer of the referencing template with the same binding.
+     * The referenced templates are read again whenever the template referencing them is compiled
+     * and they are compiled again if they have changed. The cached templates referencing the changed template
+     * are compiled again, use {@link #invalidate(String)} with the name of the changed template to discard them
+     * without waiting for another template referencing it to be compiled. The errors thrown by the referenced
+     * templates are reported with their names and lines.
+     * 
+     * @param templateResolver the resolver of the referenced templates
+     */
+    public void setTemplateResolver(TemplateResolver templateResolver) {
+        this.templateResolver = templateResolver;
+        this.resolvedTemplates.clear();
+        this.dependencyVersion.incrementAndGet();
+    }
+
+    public TemplateResolver getTemplateResolver() {
+        return templateResolver;
+    }
+
+    /**
+     * Sets when the templates compiled from now on flush the document while it is being rendered.
+     * 
+     * Flushing after the static texts sends the beginning of the document to the client as soon as possible,
+     * e.g. when the template is rendered using {@link DebuggableTemplate#renderAsync(java.util.Map, ChunkSink, java.util.concurrent.Executor)}.
+     * Only the templates compiled in the streaming mode are flushed before the end of the render.
+     * 
+     * @param flushPolicy the flush policy, {@link FlushPolicy#END} by default
+     */
+    public void setFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+    }
+
+    public FlushPolicy getFlushPolicy() {
+        return flushPolicy;
+    }
+
+    /**
+     * Sets how the templates compiled from now on escape the values of the <code>${ }</code>,
+     * <code>&lt;%= %&gt;</code> and <code>$name</code> expressions.
+     * 
+     * The values are escaped while they are written so no escaped copies of the values are created.
+     * The values of <code>&lt;%== %&gt;</code> expressions are written without escaping. The literal text
+     * of the template and the strings printed by the template code are never escaped, only the values
+     * of the GStrings printed to <code>out</code> are.
+     * 
+     * @param escaping the escaping of the values, {@link Escaping#NONE} by default
+     */
+    public void setEscaping(Escaping escaping) {
+        this.escaping = escaping == null ? Escaping.NONE : escaping;
+    }
+
+    public Escaping getEscaping() {
+        return escaping;
+    }
+
+    /**
+     * Sets the cache of the fragments shared by the templates compiled from now on.
+     * 
+     * The output of the region between <code>&lt;%@ cache key="expression" ttl="10m" %&gt;</code>
+     * and <code>&lt;%@ endcache %&gt;</code> directives is kept in the cache under the value of the key expression
+     * until the time to live elapses. The key and the time to live are optional, the time to live is given in seconds
+     * or with the <code>ms</code>, <code>s</code>, <code>m</code>, <code>h</code> or <code>d</code> unit. Concurrent renders
+     * of the same missing fragment render it only once. Without the cache the regions are rendered every time.
+     * 
+     * @param fragmentCache the fragment cache or <code>null</code> to render the regions every time
+     */
+    public void setFragmentCache(FragmentCache fragmentCache) {
+        this.fragmentCache = fragmentCache;
+    }
+
+    public FragmentCache getFragmentCache() {
+        return fragmentCache;
+    }
+
+    /**
+     * Sets the maximum number of idle buffers shared by the templates compiled from now on.
+     * 
+     * The templates rendered into string or output stream borrow the buffer from the pool
+     * and return it after the render so the buffers are not allocated and grown again
+     * for every render. Each template estimates the usual length of its documents
+     * and the borrowed buffer is grown to fit the whole document before the render starts.
+     * Buffers holding more than million characters are not returned into the pool.
+     * 
+     * @param renderBufferPoolSize maximum number of idle buffers, {@value RenderBufferPool#DEFAULT_MAXIMUM_IDLE} by default, zero disables reusing the buffers
+     */
+    public void setRenderBufferPoolSize(int renderBufferPoolSize) {
+        if (renderBufferPoolSize < 0) {
+            throw new IllegalArgumentException("Render buffer pool size must not be negative: " + renderBufferPoolSize);
+        }
+        this.renderBufferPool = new RenderBufferPool(renderBufferPoolSize, RenderBufferPool.DEFAULT_MAXIMUM_RETAINED_CAPACITY);
+    }
+
+    public int getRenderBufferPoolSize() {
+        return renderBufferPool.getMaximumIdle();
+    }
+
+    RenderBufferPool getRenderBufferPool() {
+        return renderBufferPool;
+    }
+
+    /**
+     * Sets the listener notified about the compilation and every render of the templates compiled from now on.
+     * 
+     * Without the listener no time is measured so the templates are rendered without any overhead.
+     * 
+     * @param templateListener the listener or <code>null</code> to disable the notifications
+     * @see TemplateStatistics
+     */
+    public void setTemplateListener(TemplateListener templateListener) {
+        this.templateListener = templateListener;
+    }
+
+    public TemplateListener getTemplateListener() {
+        return templateListener;
+    }
+
+    /**
+     * Sets whether the exceptions thrown by the templates compiled from now on are remapped to the template lines.
+     * 
+     * The remapping is enabled by default. Disable it if the exceptions thrown by the templates are usually
+     * caught and handled without being reported, the exceptions can still be remapped on demand
+     * using {@link DebuggableTemplate#remapStackTrace(Throwable)}.
+     * 
+     * @param stackTraceRemapping false to rethrow the exceptions thrown by the templates untouched
+     */
+    public void setStackTraceRemapping(boolean stackTraceRemapping) {
+        this.stackTraceRemapping = stackTraceRemapping;
+    }
+
+    public boolean isStackTraceRemapping() {
+        return stackTraceRemapping;
+    }
+
+    /**
+     * Sets whether the templates compiled from now on build the index translating the script positions
+     * into the template positions only when it is needed.
+     * 
+     * In the lazy mode the template keeps only its source and the template line of each script line
+     * which is enough to report the template lines of the exceptions thrown while rendering. The full
+     * index is built by generating the script again when the template fails to compile or when the index
+     * is requested. Lazy indices are always kept on the heap.
+     * 
+     * @param lazyPositionIndex true if you want the templates to build the position index on demand
+     */
+    public void setLazyPositionIndex(boolean lazyPositionIndex) {
+        this.lazyPositionIndex = lazyPositionIndex;
+    }
+
+    public boolean isLazyPositionIndex() {
+        return lazyPositionIndex;
+    }
+
+    /**
+     * @param offHeapPositionIndex true if you want the engine to keep the position indices of the templates outside of the heap
+     */
+    public void setOffHeapPositionIndex(boolean offHeapPositionIndex) {
+        this.offHeapPositionIndex = offHeapPositionIndex;
+    }
+
+    public boolean isOffHeapPositionIndex() {
+        return offHeapPositionIndex;
+    }
+
+    /**
+     * Sets the directory keeping the compiled templates between the restarts of the application.
+     * 
+     * The templates compiled from now on are looked up in the disk cache before they are compiled
+     * and their classes are defined straight from the cache if the source of the template hasn't changed.
+     * Newly compiled templates are written into the disk cache. The disk cache complements the
+     * {@link #setTemplateCache(TemplateCache) template cache} which keeps the templates in memory.
+     * The disk cache is not used if the configuration of the shell the engine was created for cannot be read.
+     * 
+     * @param diskTemplateCache the disk cache or <code>null</code> to compile the templates on every start
+     */
+    public void setDiskTemplateCache(DiskTemplateCache diskTemplateCache) {
+        this.diskTemplateCache = diskTemplateCache;
+    }
+
+    public DiskTemplateCache getDiskTemplateCache() {
+        return diskTemplateCache;
+    }
+
+    /**
+     * @param templateCache cache of the compiled templates or <code>null</code> if the templates should be compiled on every request
+     */
+    public void setTemplateCache(TemplateCache templateCache) {
+        this.templateCache = templateCache;
+    }
+
+    public TemplateCache getTemplateCache() {
+        return templateCache;
+    }
+
+    /**
+     * @param classLoaderIsolation class loader used for the templates compiled from now on
+     */
+    public void setClassLoaderIsolation(ClassLoaderIsolation classLoaderIsolation) {
+        this.classLoaderIsolation = classLoaderIsolation == null ? ClassLoaderIsolation.SHARED : classLoaderIsolation;
+    }
+
+    public ClassLoaderIsolation getClassLoaderIsolation() {
+        return classLoaderIsolation;
+    }
+
+    /**
+     * Sets the maximum number of idle script instances kept by each template for the future renders.
+     * 
+     * Reused scripts are only rebound to the binding of the next render so only templates which don't keep
+     * any state in the script fields (e.g. declared with <code>@Field</code>) should be compiled with
+     * the pool enabled.
+     * 
+     * @param scriptPoolSize maximum number of idle script instances kept by each template, zero disables reusing the scripts
+     */
+    public void setScriptPoolSize(int scriptPoolSize) {
+        if (scriptPoolSize < 0) {
+            throw new IllegalArgumentException("Script pool size must not be negative: " + scriptPoolSize);
+        }
+        this.scriptPoolSize = scriptPoolSize;
+    }
+
+    public int getScriptPoolSize() {
+        return scriptPoolSize;
+    }
+
+    /**
+     * Sets how large part of the script of the templates compiled from now on can be compiled into single method.
+     * 
+     * The top-level statements of the large templates are split into several methods so the methods are small enough
+     * to be compiled by the JIT. The bodies of the closures and the top-level statements heavier than the maximum weight
+     * on their own are not split, so they can still hit the limit of the method size. The weight is the number
+     * of the expressions and the statements, the default weight {@value ScriptSplitter#DEFAULT_MAXIMUM_WEIGHT} keeps
+     * the methods below the 8000 bytes of bytecode. The variables declared at the top level of the split scripts become
+     * the fields of the script. Scripts of the engine created for given {@link GroovyShell} are never split
+     * if the configuration of the shell cannot be read.
+     * 
+     * @param maximumMethodWeight the maximum weight of single method, zero disables splitting
+     */
+    public void setMaximumMethodWeight(int maximumMethodWeight) {
+        if (maximumMethodWeight < 0) {
+            throw new IllegalArgumentException("Maximum method weight must not be negative: " + maximumMethodWeight);
+        }
+        this.maximumMethodWeight = maximumMethodWeight;
+        this.dynamicCompilerConfiguration = null;
+        this.staticCompilerConfiguration = null;
+    }
+
+    public int getMaximumMethodWeight() {
+        return maximumMethodWeight;
+    }
 }
\ No newline at end of file
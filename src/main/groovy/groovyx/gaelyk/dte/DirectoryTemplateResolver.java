@@ -0,0 +1,41 @@
+package groovyx.gaelyk.dte;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Resolves the names of the templates as the paths relative to the root directory.
+ * Names pointing outside of the root directory are not resolved.
+ *
+ * @author Vladimir Orany
+ */
+public class DirectoryTemplateResolver implements TemplateResolver {
+
+    private final Path    root;
+    private final Charset charset;
+
+    /**
+     * @param root the directory containing the templates
+     * @param charset the charset of the template files
+     */
+    public DirectoryTemplateResolver(Path root, Charset charset) {
+        this.root = root.toAbsolutePath().normalize();
+        this.charset = charset;
+    }
+
+    public Reader resolve(String name) throws IOException {
+        Path path = root.resolve(name).normalize();
+        if (!path.startsWith(root) || !Files.isRegularFile(path)) {
+            return null;
+        }
+        return Files.newBufferedReader(path, charset);
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+}
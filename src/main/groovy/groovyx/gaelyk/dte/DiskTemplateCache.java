@@ -0,0 +1,328 @@
+package groovyx.gaelyk.dte;
+
+import groovy.lang.Binding;
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.GroovySystem;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.customizers.CompilationCustomizer;
+import org.codehaus.groovy.runtime.InvokerHelper;
+
+/**
+ * Directory keeping the compiled templates between the restarts of the application.
+ *
+ * Each entry holds the bytes of the classes compiled from the template together with
+ * the static texts and the {@link PositionIndex} of the template. The entry is stored under the key derived
+ * from the hash of the template source, the name of the template, the streaming mode,
+ * the version of the engine and the version of Groovy so the entry is never used for a different template.
+ * The key also covers the target bytecode, the script base class, the optimization options and the classes
+ * of the compilation customizers of the compiler configuration. The settings of the customizers, such as the imports
+ * of the {@link org.codehaus.groovy.control.customizers.ImportCustomizer}, can't be read back from the customizers,
+ * pass the fingerprint of them to {@link #DiskTemplateCache(Path, String)} or clear the cache when they change.
+ * The classes referenced by the templates are not part of the key, clear the cache if they change incompatibly.
+ *
+ * The entries are written into temporary files and atomically moved to their place, so several engines,
+ * even in different JVMs, can share the same directory without locking. Every entry ends with
+ * the SHA-256 digest of its content. Entries which are truncated, corrupted or written by a different
+ * version of the engine are ignored and the template is compiled again.
+ *
+ * <pre>
+ * engine.setDiskTemplateCache(new DiskTemplateCache(Paths.get("build/template-cache")));
+ * </pre>
+ *
+ * @author Vladimir Orany
+ */
+public class DiskTemplateCache {
+
+    static final String         ENTRY_EXTENSION = ".dtc";
+    static final int            ENTRY_MAGIC     = 0x44544302;
+
+    /** Version of the entries which must be increased when the generated scripts change. */
+    static final int            FORMAT_VERSION  = 2;
+
+    private static final int    DIGEST_LENGTH   = 32;
+
+    private final Path          directory;
+    private final String        fingerprint;
+    private final AtomicLong    hits            = new AtomicLong();
+    private final AtomicLong    misses          = new AtomicLong();
+    private final AtomicLong    stores          = new AtomicLong();
+
+    /**
+     * Creates new cache storing the templates into given directory.
+     * @param directory the directory of the cache which is created if it doesn't exist
+     * @throws IOException if the directory cannot be created
+     */
+    public DiskTemplateCache(Path directory) throws IOException {
+        this(directory, "");
+    }
+
+    /**
+     * Creates new cache storing the templates into given directory under the keys including given fingerprint.
+     * @param directory the directory of the cache which is created if it doesn't exist
+     * @param fingerprint the text identifying the settings of the compiler configuration which are not part of the key,
+     *      e.g. the imports added by the customizers
+     * @throws IOException if the directory cannot be created
+     */
+    public DiskTemplateCache(Path directory, String fingerprint) throws IOException {
+        if (fingerprint == null) {
+            throw new IllegalArgumentException("Fingerprint must not be null");
+        }
+        this.directory = Files.createDirectories(directory);
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Returns the key of the template compiled by given engine configuration.
+     * @param sourceHash the hash of the template source
+     * @param name the file name of the script, the name of the template or <code>null</code> if the template has no name
+     * @param streaming whether the template is compiled in the streaming mode
+     * @param compactWhitespace whether the white space of the literal text is collapsed
+     * @param foldedEscaping the escaping of the constant expressions folded into the literal text or <code>null</code> if the constants are not folded
+     * @param configuration the compiler configuration or <code>null</code> for the default one
+     * @param maximumMethodWeight the maximum weight of the methods the script is split into
+     * @return the key of the entry
+     */
+    String key(String sourceHash, String name, boolean streaming, boolean compactWhitespace, Escaping foldedEscaping, CompilerConfiguration configuration, int maximumMethodWeight) {
+        CompilerConfiguration used = configuration == null ? CompilerConfiguration.DEFAULT : configuration;
+        StringBuilder customizers = new StringBuilder();
+        for (CompilationCustomizer customizer : used.getCompilationCustomizers()) {
+            customizers.append(customizer.getClass().getName()).append(' ');
+        }
+        return TemplateCache.hash(FORMAT_VERSION + "\n" + getEngineVersion() + "\n" + GroovySystem.getVersion() + "\n" + used.getTargetBytecode()
+                + "\n" + used.getScriptBaseClass() + "\n" + new TreeMap<String, Boolean>(used.getOptimizationOptions()) + "\n" + customizers
+                + "\n" + fingerprint + "\n" + maximumMethodWeight + "\n" + name + "\n" + streaming + "\n" + compactWhitespace + "\n" + foldedEscaping + "\n" + sourceHash);
+    }
+
+    /**
+     * Loads the template stored under given key.
+     * @param key the key of the entry
+     * @param template the template which gets the script and the metadata of the entry
+     * @param classLoader the parent of the class loader defining the classes of the template
+     * @return true if the entry has been found and loaded
+     */
+    boolean load(String key, DebuggableTemplate template, GroovyClassLoader classLoader) {
+        byte[] entry;
+        try {
+            entry = Files.readAllBytes(getEntry(key));
+        } catch (IOException e) {
+            misses.incrementAndGet();
+            return false;
+        }
+        if (entry.length < DIGEST_LENGTH || !Arrays.equals(digest(entry, entry.length - DIGEST_LENGTH), Arrays.copyOfRange(entry, entry.length - DIGEST_LENGTH, entry.length))) {
+            misses.incrementAndGet();
+            return false;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry, 0, entry.length - DIGEST_LENGTH));
+            if (in.readInt() != ENTRY_MAGIC || in.readInt() != FORMAT_VERSION || !key.equals(in.readUTF())) {
+                misses.incrementAndGet();
+                return false;
+            }
+            String fileName = in.readUTF();
+            int weight = in.readInt();
+            String[] staticTexts = new String[in.readInt()];
+            for (int i = 0; i < staticTexts.length; i++) {
+                char[] chars = new char[in.readInt()];
+                for (int j = 0; j < chars.length; j++) {
+                    chars[j] = in.readChar();
+                }
+                staticTexts[i] = new String(chars).intern();
+            }
+            String[] includeNames = new String[in.readInt()];
+            for (int i = 0; i < includeNames.length; i++) {
+                includeNames[i] = in.readUTF();
+            }
+            String layoutName = in.readBoolean() ? in.readUTF() : null;
+            Map<String, String> model = null;
+            int modelSize = in.readInt();
+            if (modelSize >= 0) {
+                model = new LinkedHashMap<String, String>();
+                for (int i = 0; i < modelSize; i++) {
+                    model.put(in.readUTF(), in.readUTF());
+                }
+            }
+            PositionIndex positionIndex = PositionIndex.readFrom(in);
+            String scriptClassName = in.readUTF();
+            Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+            int classCount = in.readInt();
+            for (int i = 0; i < classCount; i++) {
+                String className = in.readUTF();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                classes.put(className, bytes);
+            }
+            Class<?> scriptClass = new CompiledScript(scriptClassName, classes).define(new GroovyClassLoader.InnerLoader(classLoader));
+            template.setFileName(fileName);
+            template.setWeight(weight);
+            template.setStaticTexts(staticTexts);
+            template.setDirectives(includeNames, layoutName, model);
+            template.setPositionIndex(positionIndex);
+            template.setScript(InvokerHelper.createScript(scriptClass, new Binding()));
+            hits.incrementAndGet();
+            return true;
+        } catch (IOException e) {
+            misses.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Stores the compiled template under given key. Failures to write the entry are ignored
+     * as the template will be compiled again next time.
+     * @param key the key of the entry
+     * @param template the compiled template
+     * @param compiled the classes of the template
+     */
+    void store(String key, DebuggableTemplate template, CompiledScript compiled) {
+        Path temporary = null;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(template.getWeight() * 4 + 1024);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(ENTRY_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(key);
+            out.writeUTF(template.getFileName());
+            out.writeInt(template.getWeight());
+            String[] staticTexts = template.getStaticTexts();
+            out.writeInt(staticTexts.length);
+            for (String staticText : staticTexts) {
+                out.writeInt(staticText.length());
+                out.writeChars(staticText);
+            }
+            String[] includeNames = template.getIncludeNames();
+            out.writeInt(includeNames.length);
+            for (String includeName : includeNames) {
+                out.writeUTF(includeName);
+            }
+            out.writeBoolean(template.getLayoutName() != null);
+            if (template.getLayoutName() != null) {
+                out.writeUTF(template.getLayoutName());
+            }
+            Map<String, String> model = template.getModel();
+            out.writeInt(model == null ? -1 : model.size());
+            if (model != null) {
+                for (Map.Entry<String, String> variable : model.entrySet()) {
+                    out.writeUTF(variable.getKey());
+                    out.writeUTF(variable.getValue());
+                }
+            }
+            template.buildPositionIndex().writeTo(out);
+            out.writeUTF(compiled.getScriptClassName());
+            out.writeInt(compiled.getClasses().size());
+            for (Map.Entry<String, byte[]> compiledClass : compiled.getClasses().entrySet()) {
+                out.writeUTF(compiledClass.getKey());
+                out.writeInt(compiledClass.getValue().length);
+                out.write(compiledClass.getValue());
+            }
+            out.flush();
+            byte[] content = bytes.toByteArray();
+            bytes.write(digest(content, content.length));
+
+            temporary = Files.createTempFile(directory, key, ".tmp");
+            Files.write(temporary, bytes.toByteArray());
+            try {
+                Files.move(temporary, getEntry(key), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, getEntry(key), StandardCopyOption.REPLACE_EXISTING);
+            }
+            temporary = null;
+            stores.incrementAndGet();
+        } catch (IOException e) {
+            // the template stays compiled only in memory
+        } finally {
+            if (temporary != null) {
+                try {
+                    Files.deleteIfExists(temporary);
+                } catch (IOException e) {
+                    // nothing more to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes all the entries of the cache.
+     * @throws IOException if the directory cannot be read
+     */
+    public void clear() throws IOException {
+        DirectoryStream<Path> entries = Files.newDirectoryStream(directory, "*" + ENTRY_EXTENSION);
+        try {
+            for (Path entry : entries) {
+                Files.deleteIfExists(entry);
+            }
+        } finally {
+            entries.close();
+        }
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns how many templates have been loaded from the cache.
+     * @return how many templates have been loaded from the cache
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Returns how many templates have not been found in the cache or their entries were invalid.
+     * @return how many templates have been compiled because they were not found in the cache
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Returns how many templates have been written into the cache.
+     * @return how many templates have been written into the cache
+     */
+    public long getStoreCount() {
+        return stores.get();
+    }
+
+    Path getEntry(String key) {
+        return directory.resolve(key + ENTRY_EXTENSION);
+    }
+
+    @Override public String toString() {
+        return "DiskTemplateCache[" + directory + ", hits=" + hits.get() + ", misses=" + misses.get() + ", stores=" + stores.get() + "]";
+    }
+
+    private static String getEngineVersion() {
+        String version = DiskTemplateCache.class.getPackage() == null ? null : DiskTemplateCache.class.getPackage().getImplementationVersion();
+        return version == null ? "development" : version;
+    }
+
+    private static byte[] digest(byte[] bytes, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(bytes, 0, length);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+    }
+
+}
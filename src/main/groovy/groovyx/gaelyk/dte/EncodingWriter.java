@@ -0,0 +1,177 @@
+package groovyx.gaelyk.dte;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Writer encoding the characters into the output stream which also accepts
+ * already encoded bytes.
+ *
+ * Both the encoded characters and the bytes go through the same buffer so their
+ * order is kept and the output stream is not flushed between them. Malformed
+ * and unmappable characters are replaced in the same way as {@link String#getBytes(String)} does.
+ *
+ * @author Vladimir Orany
+ */
+final class EncodingWriter extends Writer {
+
+    private static final int     BUFFER_SIZE = 8192;
+
+    private final OutputStream   out;
+    private final CharsetEncoder encoder;
+    private final ByteBuffer     bytes;
+
+    private char                 leftover;
+    private boolean              hasLeftover;
+
+    EncodingWriter(OutputStream out, Charset charset) {
+        this(out, charset, ByteBuffer.allocate(BUFFER_SIZE));
+    }
+
+    /**
+     * Creates new writer encoding the characters using given buffer.
+     * @param out the output stream
+     * @param charset the charset
+     * @param bytes the empty heap buffer reused by the writer
+     */
+    EncodingWriter(OutputStream out, Charset charset, ByteBuffer bytes) {
+        this.out = out;
+        this.encoder = newEncoder(charset);
+        this.bytes = bytes;
+    }
+
+    Charset getCharset() {
+        return encoder.charset();
+    }
+
+    @Override public void write(char[] cbuf, int off, int len) throws IOException {
+        if (hasLeftover) {
+            CharBuffer in = CharBuffer.allocate(len + 1);
+            in.put(leftover).put(cbuf, off, len).flip();
+            hasLeftover = false;
+            encode(in);
+        } else {
+            encode(CharBuffer.wrap(cbuf, off, len));
+        }
+    }
+
+    @Override public void write(String str, int off, int len) throws IOException {
+        if (hasLeftover) {
+            CharBuffer in = CharBuffer.allocate(len + 1);
+            in.put(leftover).put(str, off, off + len).flip();
+            hasLeftover = false;
+            encode(in);
+        } else {
+            encode(CharBuffer.wrap(str, off, off + len));
+        }
+    }
+
+    @Override public void write(int c) throws IOException {
+        write(new char[] { (char) c }, 0, 1);
+    }
+
+    /**
+     * Writes the bytes which has been already encoded using the charset of this writer.
+     * @param encoded the encoded bytes
+     * @throws IOException if the bytes cannot be written
+     */
+    void writeEncoded(byte[] encoded) throws IOException {
+        endCharacters();
+        if (encoded.length > bytes.remaining()) {
+            drain();
+            if (encoded.length > bytes.capacity()) {
+                out.write(encoded);
+                return;
+            }
+        }
+        bytes.put(encoded);
+    }
+
+    @Override public void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    @Override public void close() throws IOException {
+        endCharacters();
+        drain();
+        out.close();
+    }
+
+    private void encode(CharBuffer in) throws IOException {
+        while (true) {
+            CoderResult result = encoder.encode(in, bytes, false);
+            if (result.isOverflow()) {
+                drain();
+            } else if (result.isUnderflow()) {
+                if (in.hasRemaining()) {
+                    // high surrogate waiting for the rest of the pair
+                    leftover = in.get();
+                    hasLeftover = true;
+                }
+                return;
+            } else {
+                result.throwException();
+            }
+        }
+    }
+
+    /**
+     * Encodes the pending high surrogate, if any, before the encoded bytes are written.
+     */
+    private void endCharacters() throws IOException {
+        if (!hasLeftover) {
+            return;
+        }
+        hasLeftover = false;
+        CharBuffer in = CharBuffer.wrap(new char[] { leftover });
+        while (encoder.encode(in, bytes, true).isOverflow()) {
+            drain();
+        }
+        while (encoder.flush(bytes).isOverflow()) {
+            drain();
+        }
+        encoder.reset();
+    }
+
+    private void drain() throws IOException {
+        if (bytes.position() > 0) {
+            out.write(bytes.array(), 0, bytes.position());
+            bytes.clear();
+        }
+    }
+
+    /**
+     * Encodes given texts using given charset.
+     * @param texts the texts to be encoded
+     * @param charset the charset
+     * @return the encoded texts
+     */
+    static byte[][] encode(String[] texts, Charset charset) {
+        CharsetEncoder encoder = newEncoder(charset);
+        byte[][] encoded = new byte[texts.length][];
+        for (int i = 0; i < texts.length; i++) {
+            try {
+                ByteBuffer buffer = encoder.encode(CharBuffer.wrap(texts[i]));
+                encoded[i] = new byte[buffer.remaining()];
+                buffer.get(encoded[i]);
+            } catch (CharacterCodingException e) {
+                throw new IllegalStateException("Characters cannot be encoded with replacement enabled", e);
+            }
+        }
+        return encoded;
+    }
+
+    private static CharsetEncoder newEncoder(Charset charset) {
+        return charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+}
@@ -0,0 +1,247 @@
+package groovyx.gaelyk.dte;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Escaping applied by {@link TemplateWriter} to the values of the <code>${ }</code> and <code>&lt;%= %&gt;</code>
+ * expressions, see {@link DebuggableTemplateEngine#setEscaping(Escaping)}.
+ *
+ * The characters are looked up in the table of replacements and the runs of the characters
+ * which don't need escaping are copied into the writer in bulk, so escaping doesn't create
+ * any new strings. The values of <code>&lt;%== %&gt;</code> expressions are never escaped.
+ *
+ * @author Vladimir Orany
+ */
+public enum Escaping {
+
+    /**
+     * The values are written as they are.
+     */
+    NONE(new char[128][]),
+
+    /**
+     * The markup characters <code>&amp; &lt; &gt; " '</code> are replaced by the entities so the value
+     * can be used in the text of HTML or XML document or inside quoted attribute.
+     */
+    HTML(htmlReplacements(false)),
+
+    /**
+     * Same as {@link #HTML} but the white space, <code>=</code> and <code>`</code> are replaced
+     * by the character references as well so the value can be used as unquoted attribute.
+     */
+    ATTRIBUTE(htmlReplacements(true)),
+
+    /**
+     * The value is escaped to be used inside JavaScript or JSON string literal, even inside <code>&lt;script&gt;</code> element.
+     */
+    JAVASCRIPT(javaScriptReplacements()) {
+        @Override boolean escapes(char c) {
+            return c < 128 ? replacements[c] != null : c == '\u2028' || c == '\u2029';
+        }
+
+        @Override int writeEscaped(char c, char next, Writer out) throws IOException {
+            if (c < 128) {
+                out.write(replacements[c]);
+            } else {
+                out.write(c == '\u2028' ? "\\u2028" : "\\u2029");
+            }
+            return 1;
+        }
+    },
+
+    /**
+     * All characters but the unreserved ones are percent-encoded as UTF-8 so the value can be used
+     * as the component of URL such as the query parameter.
+     */
+    URL(urlReplacements()) {
+        @Override boolean escapes(char c) {
+            return c >= 128 || replacements[c] != null;
+        }
+
+        @Override int writeEscaped(char c, char next, Writer out) throws IOException {
+            if (c < 128) {
+                out.write(replacements[c]);
+                return 1;
+            }
+            if (c < 0x800) {
+                writePercent(0xC0 | c >> 6, out);
+                writePercent(0x80 | c & 0x3F, out);
+                return 1;
+            }
+            if (!Character.isSurrogate(c)) {
+                writePercent(0xE0 | c >> 12, out);
+                writePercent(0x80 | c >> 6 & 0x3F, out);
+                writePercent(0x80 | c & 0x3F, out);
+                return 1;
+            }
+            if (!Character.isHighSurrogate(c) || !Character.isLowSurrogate(next)) {
+                // malformed surrogate is replaced by question mark the same way as URLEncoder does
+                out.write(replacements['?']);
+                return 1;
+            }
+            int codePoint = Character.toCodePoint(c, next);
+            writePercent(0xF0 | codePoint >> 18, out);
+            writePercent(0x80 | codePoint >> 12 & 0x3F, out);
+            writePercent(0x80 | codePoint >> 6 & 0x3F, out);
+            writePercent(0x80 | codePoint & 0x3F, out);
+            return 2;
+        }
+    };
+
+    /**
+     * Replacements of the ASCII characters indexed by the characters, <code>null</code> if the character is kept.
+     */
+    final char[][] replacements;
+
+    private Escaping(char[][] replacements) {
+        this.replacements = replacements;
+    }
+
+    /**
+     * Writes the part of the string escaped into the writer.
+     * @param s the string
+     * @param off the offset of the first character to write
+     * @param len the number of characters to write
+     * @param out the writer
+     * @throws IOException if the writer fails
+     */
+    void escape(String s, int off, int len, Writer out) throws IOException {
+        int end = off + len;
+        int runStart = off;
+        for (int i = off; i < end; i++) {
+            char c = s.charAt(i);
+            if (escapes(c)) {
+                if (i > runStart) {
+                    out.write(s, runStart, i - runStart);
+                }
+                i += writeEscaped(c, i + 1 < end ? s.charAt(i + 1) : 0, out) - 1;
+                runStart = i + 1;
+            }
+        }
+        if (end > runStart) {
+            out.write(s, runStart, end - runStart);
+        }
+    }
+
+    /**
+     * Writes the part of the array escaped into the writer.
+     * @param buf the characters
+     * @param off the offset of the first character to write
+     * @param len the number of characters to write
+     * @param out the writer
+     * @throws IOException if the writer fails
+     */
+    void escape(char[] buf, int off, int len, Writer out) throws IOException {
+        int end = off + len;
+        int runStart = off;
+        for (int i = off; i < end; i++) {
+            char c = buf[i];
+            if (escapes(c)) {
+                if (i > runStart) {
+                    out.write(buf, runStart, i - runStart);
+                }
+                i += writeEscaped(c, i + 1 < end ? buf[i + 1] : 0, out) - 1;
+                runStart = i + 1;
+            }
+        }
+        if (end > runStart) {
+            out.write(buf, runStart, end - runStart);
+        }
+    }
+
+    /**
+     * Writes single character escaped into the writer.
+     * @param c the character
+     * @param out the writer
+     * @throws IOException if the writer fails
+     */
+    void escape(int c, Writer out) throws IOException {
+        if (escapes((char) c)) {
+            writeEscaped((char) c, (char) 0, out);
+        } else {
+            out.write(c);
+        }
+    }
+
+    /**
+     * Tells whether the character is replaced.
+     */
+    boolean escapes(char c) {
+        return c < 128 && replacements[c] != null;
+    }
+
+    /**
+     * Writes the replacement of the character and returns the number of characters replaced.
+     * @param c the character which {@link #escapes(char)}
+     * @param next the following character or zero at the end of the text
+     * @param out the writer
+     * @return two if the character and the following one have been replaced together, one otherwise
+     */
+    int writeEscaped(char c, char next, Writer out) throws IOException {
+        out.write(replacements[c]);
+        return 1;
+    }
+
+    private static void writePercent(int b, Writer out) throws IOException {
+        out.write('%');
+        out.write(hexDigit(b >> 4 & 0xF));
+        out.write(hexDigit(b & 0xF));
+    }
+
+    private static char[][] htmlReplacements(boolean attribute) {
+        char[][] replacements = new char[128][];
+        replacements['&'] = "&amp;".toCharArray();
+        replacements['<'] = "&lt;".toCharArray();
+        replacements['>'] = "&gt;".toCharArray();
+        replacements['"'] = "&quot;".toCharArray();
+        replacements['\''] = "&#39;".toCharArray();
+        if (attribute) {
+            for (char c : " \t\n\r\f=`".toCharArray()) {
+                replacements[c] = ("&#" + (int) c + ";").toCharArray();
+            }
+        }
+        return replacements;
+    }
+
+    private static char[][] javaScriptReplacements() {
+        char[][] replacements = new char[128][];
+        for (int c = 0; c < 0x20; c++) {
+            replacements[c] = unicodeEscape(c);
+        }
+        replacements[0x7F] = unicodeEscape(0x7F);
+        for (char c : "<>&".toCharArray()) {
+            replacements[c] = unicodeEscape(c);
+        }
+        replacements['\b'] = "\\b".toCharArray();
+        replacements['\t'] = "\\t".toCharArray();
+        replacements['\n'] = "\\n".toCharArray();
+        replacements['\f'] = "\\f".toCharArray();
+        replacements['\r'] = "\\r".toCharArray();
+        replacements['\\'] = "\\\\".toCharArray();
+        replacements['\''] = "\\'".toCharArray();
+        replacements['"'] = "\\\"".toCharArray();
+        replacements['/'] = "\\/".toCharArray();
+        return replacements;
+    }
+
+    private static char[][] urlReplacements() {
+        char[][] replacements = new char[128][];
+        for (int c = 0; c < 128; c++) {
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c == '_' || c == '.' || c == '~')) {
+                replacements[c] = new char[] { '%', hexDigit(c >> 4), hexDigit(c & 0xF) };
+            }
+        }
+        return replacements;
+    }
+
+    private static char hexDigit(int digit) {
+        // the enum constants are created before any static field is initialized
+        return "0123456789ABCDEF".charAt(digit);
+    }
+
+    private static char[] unicodeEscape(int c) {
+        return new char[] { '\\', 'u', '0', '0', hexDigit(c >> 4), hexDigit(c & 0xF) };
+    }
+
+}
@@ -0,0 +1,29 @@
+package groovyx.gaelyk.dte;
+
+/**
+ * Tells {@link TemplateWriter} when to flush the template document written so far.
+ *
+ * The boundaries are the calls of the scripts generated in the streaming mode,
+ * see {@link DebuggableTemplateEngine#setStreaming(boolean)}. The templates
+ * compiled without the streaming mode are flushed only at the end.
+ *
+ * @author Vladimir Orany
+ */
+public enum FlushPolicy {
+
+    /**
+     * The document is flushed only when the render finishes or when the buffers are full.
+     */
+    END,
+
+    /**
+     * The document is flushed after each static text of the template.
+     */
+    STATIC_TEXT,
+
+    /**
+     * The document is flushed after each static text and each value of the expressions.
+     */
+    EVERY_SEGMENT
+
+}
@@ -0,0 +1,304 @@
+package groovyx.gaelyk.dte;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Thread-safe cache of the fragments of the documents rendered by the regions marked by
+ * <code>&lt;%@ cache key="expression" ttl="10m" %&gt;</code> and <code>&lt;%@ endcache %&gt;</code>
+ * directives, see {@link DebuggableTemplateEngine#setFragmentCache(FragmentCache)}.
+ *
+ * The fragments are kept under the name and the source hash of the template, the index of the region and the value
+ * of the key expression until their time to live elapses, so they don't keep the classes of the template loaded
+ * and the template compiled again from the same source finds them. The fragments of the template are removed
+ * when the template is invalidated by the engine. The least recently used fragments are evicted
+ * when there are more fragments than maximum size or when their total length exceeds the maximum weight.
+ *
+ * Concurrent renders of the same missing fragment render it only once, the other renders wait
+ * for the result. If the render of the fragment fails the waiting renders render the fragment themselves.
+ *
+ * @author Vladimir Orany
+ */
+public class FragmentCache {
+
+    private final int                                            maximumSize;
+    private final long                                           maximumWeight;
+
+    private final Lock                                           lock      = new ReentrantLock();
+    private final LinkedHashMap<Object, Entry>                   entries   = new LinkedHashMap<Object, Entry>(16, 0.75f, true);
+    private final ConcurrentMap<Object, CompletableFuture<String>> loading = new ConcurrentHashMap<Object, CompletableFuture<String>>();
+    private long                                                 weight;
+
+    private final AtomicLong                                     hits      = new AtomicLong();
+    private final AtomicLong                                     misses    = new AtomicLong();
+    private final AtomicLong                                     loads     = new AtomicLong();
+    private final AtomicLong                                     evictions = new AtomicLong();
+
+    /**
+     * Creates new cache limited only by the number of fragments.
+     * @param maximumSize maximum number of fragments kept in the cache
+     */
+    public FragmentCache(int maximumSize) {
+        this(maximumSize, Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates new cache limited by the number of fragments and their total length.
+     * @param maximumSize maximum number of fragments kept in the cache
+     * @param maximumWeight maximum total number of characters of the fragments kept in the cache
+     */
+    public FragmentCache(int maximumSize, long maximumWeight) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("Maximum size must be positive: " + maximumSize);
+        }
+        if (maximumWeight < 1) {
+            throw new IllegalArgumentException("Maximum weight must be positive: " + maximumWeight);
+        }
+        this.maximumSize = maximumSize;
+        this.maximumWeight = maximumWeight;
+    }
+
+    /**
+     * Returns the key of the fragment rendered by the region of given template.
+     * @param template the template rendering the region
+     * @param index the index of the region in the template
+     * @param key the value of the key expression of the region
+     * @return the key of the fragment
+     */
+    static Object key(DebuggableTemplate template, int index, Object key) {
+        return Arrays.asList(template.getSourceName(), template.getSourceHash(), template.getEscaping(), index, key);
+    }
+
+    /**
+     * Returns the cached fragment or starts loading it.
+     * @param key the key of the fragment
+     * @param started the future completed by the caller when the fragment is rendered if the fragment is missing
+     * @return the cached fragment, the future of the fragment being rendered by another render or <code>null</code>
+     * if the caller should render the fragment and complete the <code>started</code> future
+     */
+    Object get(Object key, CompletableFuture<String> started) {
+        String cached = getIfPresent(key);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached;
+        }
+        misses.incrementAndGet();
+        CompletableFuture<String> running = loading.putIfAbsent(key, started);
+        if (running != null) {
+            return running;
+        }
+        // the fragment could have been stored since it was looked up
+        cached = getIfPresent(key);
+        if (cached != null) {
+            loading.remove(key, started);
+            started.complete(cached);
+            return cached;
+        }
+        loads.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Stores the rendered fragment and wakes up the renders waiting for it.
+     * @param key the key of the fragment
+     * @param started the future passed to {@link #get(Object, CompletableFuture)}
+     * @param fragment the rendered fragment or <code>null</code> if the render has failed
+     * @param timeToLive the time to live of the fragment in milliseconds, zero or negative if the fragment doesn't expire
+     */
+    void loaded(Object key, CompletableFuture<String> started, String fragment, long timeToLive) {
+        try {
+            if (fragment != null) {
+                put(key, fragment, timeToLive);
+            }
+        } finally {
+            loading.remove(key, started);
+            started.complete(fragment);
+        }
+    }
+
+    /**
+     * Waits for the fragment rendered by another render.
+     * @param running the future of the fragment being rendered
+     * @return the rendered fragment or <code>null</code> if the render has failed
+     */
+    static String await(CompletableFuture<String> running) {
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    private String getIfPresent(Object key) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expiring && entry.expires - System.nanoTime() <= 0) {
+                entries.remove(key);
+                weight -= entry.fragment.length();
+                return null;
+            }
+            return entry.fragment;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void put(Object key, String fragment, long timeToLive) {
+        lock.lock();
+        try {
+            Entry entry = new Entry(fragment, timeToLive);
+            Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                weight -= previous.fragment.length();
+            }
+            weight += fragment.length();
+            Iterator<Map.Entry<Object, Entry>> eldest = entries.entrySet().iterator();
+            while (entries.size() > 1 && (entries.size() > maximumSize || weight > maximumWeight)) {
+                Entry evicted = eldest.next().getValue();
+                eldest.remove();
+                weight -= evicted.fragment.length();
+                evictions.incrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the fragments of the template with given name from the cache.
+     * @param templateName the name of the template
+     */
+    public void invalidate(String templateName) {
+        lock.lock();
+        try {
+            Iterator<Map.Entry<Object, Entry>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Object, Entry> entry = iterator.next();
+                if (templateName.equals(((List<?>) entry.getKey()).get(0))) {
+                    iterator.remove();
+                    weight -= entry.getValue().fragment.length();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes all fragments from the cache.
+     */
+    public void invalidateAll() {
+        lock.lock();
+        try {
+            entries.clear();
+            weight = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of fragments in the cache including the expired ones which haven't been requested since they expired.
+     * @return the number of fragments in the cache
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the total number of characters of the fragments in the cache.
+     * @return the total number of characters of the fragments in the cache
+     */
+    public long getWeight() {
+        lock.lock();
+        try {
+            return weight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    public long getMaximumWeight() {
+        return maximumWeight;
+    }
+
+    /**
+     * Returns the number of renders which found the fragment in the cache.
+     * @return the number of renders which found the fragment in the cache
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of renders which haven't found the fragment in the cache.
+     * @return the number of renders which haven't found the fragment in the cache
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of the fragments rendered to be stored in this cache. This is lower
+     * than miss count if concurrent renders waited for the same fragment.
+     * @return the number of the fragments rendered to be stored in this cache
+     */
+    public long getLoadCount() {
+        return loads.get();
+    }
+
+    /**
+     * Returns the number of the fragments evicted from the cache.
+     * @return the number of the fragments evicted from the cache
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    @Override public String toString() {
+        return "FragmentCache[size=" + size() + ", weight=" + getWeight() + ", hits=" + getHitCount() + ", misses=" + getMissCount() + ", loads=" + getLoadCount() + ", evictions=" + getEvictionCount() + "]";
+    }
+
+    private static final class Entry {
+        final String  fragment;
+        final boolean expiring;
+
+        /**
+         * The value of {@link System#nanoTime()} when the fragment expires.
+         */
+        final long    expires;
+
+        Entry(String fragment, long timeToLive) {
+            this.fragment = fragment;
+            this.expiring = timeToLive > 0;
+            this.expires = System.nanoTime() + timeToLive * 1000000L;
+        }
+    }
+
+}
@@ -0,0 +1,147 @@
+package groovyx.gaelyk.dte;
+
+/**
+ * Generates the script compatible with {@link groovy.text.SimpleTemplateEngine} which prints
+ * the literal text and the expressions between the sections as GString. The GString is printed
+ * by new statement after every {@value #EXPRESSIONS_PER_PRINT} expressions so the large templates
+ * can be split into several methods by {@link ScriptSplitter}.
+ *
+ * @author Vladimir Orany
+ */
+final class GStringScriptGenerator extends ScriptGenerator {
+
+    /** Maximum number of the expressions printed by single statement. */
+    static final int EXPRESSIONS_PER_PRINT = 50;
+
+    private int      expressions;
+
+    GStringScriptGenerator(char[] chars, ScriptBuffer sw) {
+        super(chars, sw);
+    }
+
+    void startScript() {
+        sw.append("out.print(\"\"\"");
+    }
+
+    void endScript() {
+        sw.append("\"\"\");\n");
+        sw.append("\n/* Generated by SimpleTemplateEngine */");
+    }
+
+    /**
+     * Copies the literal text into the script escaping quotes.
+     *
+     * @param segment the text segment
+     */
+    void text(TemplateSegment segment) {
+        sw.moveTo(segment.line, segment.column);
+        int runStart = segment.start;
+        for (int i = segment.start; i < segment.end; i++) {
+            if (chars[i] == '\"') {
+                sw.appendSource(chars, runStart, i);
+                sw.skipSource(chars, i, i + 1);
+                sw.append("\\\"");
+                runStart = i + 1;
+            }
+        }
+        sw.appendSource(chars, runStart, segment.end);
+    }
+
+    void processGSstring(TemplateSegment segment) {
+        sw.moveTo(segment.line, segment.column);
+        sw.append("${");
+        copyWithoutNewLines(segment);
+        if (segment.closed) {
+            sw.moveTo(segment.endLine, segment.endColumn);
+            sw.append('}');
+            countExpression();
+        }
+    }
+
+    /**
+     * Closes the currently open write and writes out the following text as a GString expression until it reaches an end %>.
+     *
+     * @param segment the expression segment
+     */
+    void groovyExpression(TemplateSegment segment) {
+        sw.moveTo(segment.line, segment.column);
+        sw.append("${");
+        copyWithoutNewLines(segment);
+        sw.moveTo(segment.endLine, segment.endColumn);
+        sw.append('}');
+        countExpression();
+    }
+
+    /**
+     * Closes the currently open write and writes the expression which is not escaped.
+     *
+     * @param segment the expression segment
+     */
+    void rawExpression(TemplateSegment segment) {
+        sw.moveTo(segment.line, segment.column);
+        sw.append("\"\"\");out.writeRaw(");
+        copyWithoutNewLines(segment);
+        sw.moveTo(segment.endLine, segment.endColumn);
+        sw.append(");\nout.print(\"\"\"");
+        expressions = 0;
+    }
+
+    /**
+     * Writes the folded text into the printed GString escaping the characters which have a meaning inside the GString.
+     *
+     * @param segment the constant segment
+     */
+    void constant(TemplateSegment segment) {
+        sw.moveTo(segment.line, segment.column);
+        StringBuilder text = new StringBuilder(segment.value.length() + 16);
+        for (int i = 0; i < segment.value.length(); i++) {
+            char c = segment.value.charAt(i);
+            switch (c) {
+            case '\\': text.append("\\\\"); break;
+            case '"':  text.append("\\\""); break;
+            case '$':  text.append("\\$"); break;
+            case '\n': text.append("\\n"); break;
+            case '\r': text.append("\\r"); break;
+            default:   text.append(c);
+            }
+        }
+        sw.append(text.toString());
+    }
+
+    /**
+     * Closes the currently open write and writes the following text as normal Groovy script code until it reaches an end %>.
+     *
+     * @param segment the section segment
+     */
+    void groovySection(TemplateSegment segment) {
+        sw.moveTo(segment.line, segment.column);
+        sw.append("\"\"\");");
+        /* Don't eat EOL chars in sections - as they are valid instruction separators.
+         * See http://jira.codehaus.org/browse/GROOVY-980
+         */
+        sw.appendSource(chars, segment.start, segment.end);
+        sw.moveTo(segment.endLine, segment.endColumn);
+        sw.append(";\nout.print(\"\"\"");
+        expressions = 0;
+    }
+
+    void templateCall(TemplateSegment segment, String statement) {
+        sw.moveTo(segment.line, segment.column);
+        sw.append("\"\"\");");
+        sw.append(statement);
+        sw.moveTo(segment.endLine, segment.endColumn);
+        sw.append(";\nout.print(\"\"\"");
+        expressions = 0;
+    }
+
+    /**
+     * Prints the GString and starts new one once it contains {@value #EXPRESSIONS_PER_PRINT} expressions.
+     */
+    private void countExpression() {
+        if (++expressions == EXPRESSIONS_PER_PRINT) {
+            sw.append("\"\"\");\nout.print(\"\"\"");
+            expressions = 0;
+        }
+    }
+
+}
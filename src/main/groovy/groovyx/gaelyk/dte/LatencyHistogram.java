@@ -0,0 +1,72 @@
+package groovyx.gaelyk.dte;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations with power of two buckets.
+ *
+ * Recording is a few atomic increments, the percentiles are approximated
+ * by the upper bound of the bucket so they are at most twice the real value.
+ *
+ * @author Vladimir Orany
+ */
+final class LatencyHistogram {
+
+    private static final int      BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong      count   = new AtomicLong();
+    private final AtomicLong      total   = new AtomicLong();
+    private final AtomicLong      max     = new AtomicLong();
+
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        buckets.incrementAndGet(value == 0 ? 0 : BUCKETS - 1 - Long.numberOfLeadingZeros(value));
+        count.incrementAndGet();
+        total.addAndGet(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    long getTotal() {
+        return total.get();
+    }
+
+    long getMax() {
+        return max.get();
+    }
+
+    long getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : total.get() / n;
+    }
+
+    /**
+     * Returns the approximate value below which given fraction of the recorded values falls.
+     * @param percentile the percentile between 0 and 100
+     * @return the upper bound of the bucket containing the percentile, never more than the maximum
+     */
+    long getPercentile(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(n * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min((1L << (i + 1)) - 1, max.get());
+            }
+        }
+        return max.get();
+    }
+
+}
@@ -0,0 +1,507 @@
+package groovyx.gaelyk.dte;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Compact index translating positions in the generated script back into
+ * the positions in the original template.
+ *
+ * Instead of keeping a pair of {@link Position} objects for every generated
+ * character, the index keeps one record for each script line and run-length
+ * segments inside the lines. Each segment covers continuous script columns
+ * which map either to the same template position (generated code) or to
+ * continuous template columns (copied template text).
+ *
+ * All the records are stored in single primitive array which is kept either
+ * on the heap or in a direct buffer, see {@link #toOffHeap()}. The layout is
+ * following:
+ * <pre>
+ * [0]                      number of lines (L)
+ * [1]                      number of segments (S)
+ * [2 .. 2 + L]             index of the first segment of each line (last one is S)
+ * [3 + L .. 3 + 2L - 1]    length of each line
+ * [3 + 2L .. ]             segments, each as script column, template line
+ *                          and template column shifted left by one with the step in the lowest bit
+ * </pre>
+ *
+ * Line and column numbers starts at 1. Lookup is done using binary search
+ * inside the line so it takes O(log n) where n is the number of segments
+ * on the line.
+ *
+ * @author Vladimir Orany
+ */
+abstract class PositionIndex {
+
+    private static final int HEADER_SIZE  = 2;
+    private static final int SEGMENT_SIZE = 3;
+
+    /**
+     * Returns the template position for given position in the generated script.
+     * @param line line in the generated script
+     * @param column column in the generated script
+     * @return the template position or <code>null</code> if there is no character on given position
+     */
+    public final Position get(int line, int column) {
+        int lineCount = at(0);
+        if (line < 1 || line > lineCount || column < 1 || column > at(HEADER_SIZE + lineCount + line)) {
+            return null;
+        }
+        int low = at(HEADER_SIZE + line - 1);
+        int high = at(HEADER_SIZE + line) - 1;
+        int segmentsStart = segmentsStart(lineCount);
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (at(segmentsStart + mid * SEGMENT_SIZE) <= column) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        int segment = segmentsStart + low * SEGMENT_SIZE;
+        int packedColumn = at(segment + 2);
+        int templateColumn = (packedColumn >>> 1) + (packedColumn & 1) * (column - at(segment));
+        return Position.at(at(segment + 1), templateColumn);
+    }
+
+    /**
+     * Returns the template position for given position in the generated script.
+     * @param position position in the generated script
+     * @return the template position or <code>null</code> if there is no character on given position
+     */
+    public final Position get(Position position) {
+        return get(position.line, position.column);
+    }
+
+    /**
+     * Returns the number of lines of the generated script.
+     * @return the number of lines of the generated script
+     */
+    public final int getLineCount() {
+        return at(0);
+    }
+
+    /**
+     * Returns the number of run-length segments stored in this index.
+     * @return the number of run-length segments stored in this index
+     */
+    public final int getSegmentCount() {
+        return at(1);
+    }
+
+    /**
+     * Returns the number of mapped characters of the generated script.
+     * @return the number of mapped characters of the generated script
+     */
+    public final int size() {
+        int lineCount = at(0);
+        int size = 0;
+        for (int i = 1; i <= lineCount; i++) {
+            size += at(HEADER_SIZE + lineCount + i);
+        }
+        return size;
+    }
+
+    /**
+     * Returns the length of given line of the generated script.
+     * @param line line in the generated script
+     * @return the length of given line or zero if there is no such line
+     */
+    public final int getLineLength(int line) {
+        int lineCount = at(0);
+        if (line < 1 || line > lineCount) {
+            return 0;
+        }
+        return at(HEADER_SIZE + lineCount + line);
+    }
+
+    /**
+     * Returns read-only map view of this index. Lookups done through the view
+     * have the same complexity as {@link #get(int, int)} but iterating over the view
+     * creates {@link Position} objects for every mapped character.
+     * @return read-only map view of this index
+     */
+    public final Map<Position, Position> asMap() {
+        return new MapView();
+    }
+
+    /**
+     * Returns the index stored on the heap.
+     * @return the index stored on the heap
+     */
+    abstract PositionIndex toHeap();
+
+    /**
+     * Returns the index stored in the direct buffer outside of the heap.
+     * @return the index stored in the direct buffer outside of the heap
+     */
+    abstract PositionIndex toOffHeap();
+
+    /**
+     * Returns <code>true</code> if the index is stored outside of the heap.
+     * @return <code>true</code> if the index is stored outside of the heap
+     */
+    abstract boolean isOffHeap();
+
+    /**
+     * Returns approximate number of bytes occupied by this index.
+     * @return approximate number of bytes occupied by this index
+     */
+    abstract long getMemorySize();
+
+    abstract int at(int index);
+
+    abstract int length();
+
+    final int[] toArray() {
+        int[] data = new int[length()];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = at(i);
+        }
+        return data;
+    }
+
+    /**
+     * Writes this index into the stream so it can be read by {@link #readFrom(DataInput)}.
+     * @param out the stream to write the index to
+     * @throws IOException if the index cannot be written
+     */
+    final void writeTo(DataOutput out) throws IOException {
+        int length = length();
+        out.writeInt(length);
+        for (int i = 0; i < length; i++) {
+            out.writeInt(at(i));
+        }
+    }
+
+    /**
+     * Reads the index written by {@link #writeTo(DataOutput)}.
+     * @param in the stream to read the index from
+     * @return the index stored on the heap
+     * @throws IOException if the index cannot be read
+     */
+    static PositionIndex readFrom(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < HEADER_SIZE + 1) {
+            throw new IOException("Invalid length of the position index: " + length);
+        }
+        int[] data = new int[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = in.readInt();
+        }
+        if (length != segmentsStart(data[0]) + data[1] * SEGMENT_SIZE) {
+            throw new IOException("Corrupted position index with " + data[0] + " lines and " + data[1] + " segments: " + length);
+        }
+        return new HeapPositionIndex(data);
+    }
+
+    /**
+     * Creates the index from the map of the positions of the script characters to the template positions.
+     * The columns missing in the map are looked up as the preceding character of the same script line.
+     * @param positions the template positions of the script characters
+     * @return the index stored on the heap
+     */
+    static PositionIndex of(Map<Position, Position> positions) {
+        TreeMap<Position, Position> sorted = new TreeMap<Position, Position>(new Comparator<Position>() {
+            @Override public int compare(Position a, Position b) {
+                return a.line != b.line ? (a.line < b.line ? -1 : 1) : (a.column < b.column ? -1 : a.column == b.column ? 0 : 1);
+            }
+        });
+        sorted.putAll(positions);
+        Builder builder = new Builder();
+        for (Map.Entry<Position, Position> position : sorted.entrySet()) {
+            builder.add(position.getKey().line, position.getKey().column, position.getValue().line, position.getValue().column);
+        }
+        return builder.build();
+    }
+
+    private static int segmentsStart(int lineCount) {
+        return HEADER_SIZE + 2 * lineCount + 1;
+    }
+
+    private static final class HeapPositionIndex extends PositionIndex {
+
+        private final int[] data;
+
+        HeapPositionIndex(int[] data) {
+            this.data = data;
+        }
+
+        @Override int at(int index) {
+            return data[index];
+        }
+
+        @Override int length() {
+            return data.length;
+        }
+
+        @Override PositionIndex toHeap() {
+            return this;
+        }
+
+        @Override PositionIndex toOffHeap() {
+            IntBuffer buffer = ByteBuffer.allocateDirect(data.length * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+            buffer.put(data);
+            return new OffHeapPositionIndex(buffer);
+        }
+
+        @Override boolean isOffHeap() {
+            return false;
+        }
+
+        @Override long getMemorySize() {
+            return 16 + 4L * data.length;
+        }
+    }
+
+    private static final class OffHeapPositionIndex extends PositionIndex {
+
+        private final IntBuffer data;
+
+        OffHeapPositionIndex(IntBuffer data) {
+            this.data = data;
+        }
+
+        @Override int at(int index) {
+            return data.get(index);
+        }
+
+        @Override int length() {
+            return data.capacity();
+        }
+
+        @Override PositionIndex toHeap() {
+            return new HeapPositionIndex(toArray());
+        }
+
+        @Override PositionIndex toOffHeap() {
+            return this;
+        }
+
+        @Override boolean isOffHeap() {
+            return true;
+        }
+
+        @Override long getMemorySize() {
+            return 4L * data.capacity();
+        }
+    }
+
+    private final class MapView extends AbstractMap<Position, Position> {
+
+        @Override public Position get(Object key) {
+            if (!(key instanceof Position)) {
+                return null;
+            }
+            return PositionIndex.this.get((Position) key);
+        }
+
+        @Override public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override public int size() {
+            return PositionIndex.this.size();
+        }
+
+        @Override public Set<Map.Entry<Position, Position>> entrySet() {
+            return new AbstractSet<Map.Entry<Position, Position>>() {
+                @Override public Iterator<Map.Entry<Position, Position>> iterator() {
+                    return new EntryIterator();
+                }
+
+                @Override public int size() {
+                    return PositionIndex.this.size();
+                }
+            };
+        }
+    }
+
+    private final class EntryIterator implements Iterator<Map.Entry<Position, Position>> {
+
+        private int line   = 1;
+        private int column = 0;
+
+        EntryIterator() {
+            advance();
+        }
+
+        private void advance() {
+            column++;
+            while (line <= getLineCount() && column > getLineLength(line)) {
+                line++;
+                column = 1;
+            }
+        }
+
+        public boolean hasNext() {
+            return line <= getLineCount();
+        }
+
+        public Map.Entry<Position, Position> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final Position key = Position.at(line, column);
+            final Position value = PositionIndex.this.get(key);
+            advance();
+            return new Map.Entry<Position, Position>() {
+                public Position getKey() {
+                    return key;
+                }
+
+                public Position getValue() {
+                    return value;
+                }
+
+                public Position setValue(Position value) {
+                    throw new UnsupportedOperationException("Position index is read-only");
+                }
+
+                @Override public String toString() {
+                    return key + "=" + value;
+                }
+            };
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException("Position index is read-only");
+        }
+    }
+
+    /**
+     * Builder collecting the positions in the order they are written to the generated script.
+     */
+    static final class Builder {
+
+        private int[] lineFirstSegment = new int[16];
+        private int[] lineLength       = new int[16];
+        private int   lineCount;
+
+        private int[] segments         = new int[16 * SEGMENT_SIZE];
+        private int   segmentCount;
+
+        private int   lastLength;
+        private int   lastStep         = -1;
+
+        /**
+         * Adds mapping for single character of the generated script.
+         * @param line line in the generated script
+         * @param column column in the generated script
+         * @param templateLine line in the template
+         * @param templateColumn column in the template
+         */
+        void add(int line, int column, int templateLine, int templateColumn) {
+            add(line, column, 1, templateLine, templateColumn, 0);
+        }
+
+        /**
+         * Adds mapping for the run of characters on the single line of the generated script.
+         * @param line line in the generated script
+         * @param column column of the first character in the generated script
+         * @param length number of the characters in the run
+         * @param templateLine line in the template
+         * @param templateColumn column of the first character in the template
+         * @param step zero if all characters map to the same template position, one if the template columns
+         *      increases together with the script columns
+         */
+        void add(int line, int column, int length, int templateLine, int templateColumn, int step) {
+            if (length <= 0) {
+                return;
+            }
+            if (line < lineCount || (line == lineCount && column <= lineLength[line - 1])) {
+                throw new IllegalArgumentException("Positions must be added in ascending order but " + Position.at(line, column) + " follows " + Position.at(lineCount, lineCount == 0 ? 0 : lineLength[lineCount - 1]));
+            }
+            while (lineCount < line) {
+                startLine();
+            }
+            if (!merge(column, length, templateLine, templateColumn, step)) {
+                appendSegment(column, templateLine, templateColumn, step);
+                lastLength = length;
+                lastStep = length == 1 ? -1 : step;
+            }
+            lineLength[line - 1] = column + length - 1;
+        }
+
+        private boolean merge(int column, int length, int templateLine, int templateColumn, int step) {
+            if (segmentCount == lineFirstSegment[lineCount - 1]) {
+                return false;
+            }
+            int last = (segmentCount - 1) * SEGMENT_SIZE;
+            if (segments[last] + lastLength != column || segments[last + 1] != templateLine) {
+                return false;
+            }
+            int lastColumn = segments[last + 2] >>> 1;
+            int candidateStep = lastStep;
+            if (candidateStep < 0) {
+                candidateStep = templateColumn - lastColumn;
+                if (candidateStep != 0 && candidateStep != 1) {
+                    return false;
+                }
+            }
+            if (templateColumn != lastColumn + candidateStep * lastLength || (length > 1 && step != candidateStep)) {
+                return false;
+            }
+            segments[last + 2] = lastColumn << 1 | candidateStep;
+            lastStep = candidateStep;
+            lastLength += length;
+            return true;
+        }
+
+        private void startLine() {
+            if (lineCount == lineLength.length) {
+                lineFirstSegment = grow(lineFirstSegment);
+                lineLength = grow(lineLength);
+            }
+            lineFirstSegment[lineCount] = segmentCount;
+            lineLength[lineCount] = 0;
+            lineCount++;
+        }
+
+        private void appendSegment(int column, int templateLine, int templateColumn, int step) {
+            if ((segmentCount + 1) * SEGMENT_SIZE > segments.length) {
+                segments = grow(segments);
+            }
+            int offset = segmentCount * SEGMENT_SIZE;
+            segments[offset] = column;
+            segments[offset + 1] = templateLine;
+            segments[offset + 2] = templateColumn << 1 | step;
+            segmentCount++;
+        }
+
+        private static int[] grow(int[] array) {
+            int[] grown = new int[array.length * 2];
+            System.arraycopy(array, 0, grown, 0, array.length);
+            return grown;
+        }
+
+        /**
+         * Creates the compact on-heap index from collected positions.
+         * @return the compact on-heap index from collected positions
+         */
+        PositionIndex build() {
+            int segmentsStart = segmentsStart(lineCount);
+            int[] data = new int[segmentsStart + segmentCount * SEGMENT_SIZE];
+            data[0] = lineCount;
+            data[1] = segmentCount;
+            System.arraycopy(lineFirstSegment, 0, data, HEADER_SIZE, lineCount);
+            data[HEADER_SIZE + lineCount] = segmentCount;
+            System.arraycopy(lineLength, 0, data, HEADER_SIZE + lineCount + 1, lineCount);
+            System.arraycopy(segments, 0, data, segmentsStart, segmentCount * SEGMENT_SIZE);
+            return new HeapPositionIndex(data);
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+package groovyx.gaelyk.dte;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Result of {@link DebuggableTemplateEngine#precompileAll(Path, String)}.
+ *
+ * Holds every successfully compiled template, every failure and the time spent
+ * compiling each template.
+ *
+ * @author Vladimir Orany
+ */
+public class PrecompilationReport {
+
+    private final ConcurrentMap<Path, DebuggableTemplate> templates = new ConcurrentSkipListMap<Path, DebuggableTemplate>();
+    private final ConcurrentMap<Path, Exception>          failures  = new ConcurrentSkipListMap<Path, Exception>();
+    private final ConcurrentMap<Path, Long>               timings   = new ConcurrentSkipListMap<Path, Long>();
+    private long                                          elapsedTime;
+
+    PrecompilationReport() {
+        // disallow creation outside this package
+    }
+
+    void compiled(Path path, DebuggableTemplate template, long nanos) {
+        templates.put(path, template);
+        timings.put(path, nanos);
+    }
+
+    void failed(Path path, Exception failure, long nanos) {
+        failures.put(path, failure);
+        timings.put(path, nanos);
+    }
+
+    void setElapsedTime(long nanos) {
+        this.elapsedTime = nanos;
+    }
+
+    /**
+     * Returns the compiled templates.
+     * @return the compiled templates sorted by their paths
+     */
+    public Map<Path, DebuggableTemplate> getTemplates() {
+        return Collections.unmodifiableMap(templates);
+    }
+
+    /**
+     * Returns the templates which failed to compile, usually with {@link TemplateParsingException}.
+     * @return the failures sorted by the paths of the templates
+     */
+    public Map<Path, Exception> getFailures() {
+        return Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * Returns true if any template failed to compile.
+     * @return true if any template failed to compile
+     */
+    public boolean hasFailures() {
+        return !failures.isEmpty();
+    }
+
+    /**
+     * Returns the time spent reading and compiling each template including the failed ones.
+     * @return the time in nanoseconds sorted by the paths of the templates
+     */
+    public Map<Path, Long> getTimings() {
+        return Collections.unmodifiableMap(timings);
+    }
+
+    /**
+     * Returns the wall-clock time of the whole precompilation.
+     * @param unit the unit of the returned time
+     * @return the wall-clock time of the whole precompilation
+     */
+    public long getElapsedTime(TimeUnit unit) {
+        return unit.convert(elapsedTime, TimeUnit.NANOSECONDS);
+    }
+
+    @Override public String toString() {
+        return "PrecompilationReport[templates=" + templates.size() + ", failures=" + failures.size() + ", elapsed=" + getElapsedTime(TimeUnit.MILLISECONDS) + "ms]";
+    }
+
+}
@@ -0,0 +1,118 @@
+package groovyx.gaelyk.dte;
+
+import groovy.lang.Binding;
+import groovy.lang.Script;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import org.codehaus.groovy.runtime.InvokerHelper;
+
+/**
+ * Loads the templates precompiled by {@link TemplatePrecompiler}.
+ *
+ * Set the loader to {@link DebuggableTemplateEngine#setPrecompiledTemplateLoader(PrecompiledTemplateLoader)}
+ * to let the engine use the precompiled templates instead of compiling them.
+ *
+ * @author Vladimir Orany
+ */
+public class PrecompiledTemplateLoader {
+
+    private final ClassLoader classLoader;
+
+    /**
+     * Creates new loader for the templates precompiled on the classpath of given class loader.
+     * @param classLoader class loader containing the precompiled templates
+     */
+    public PrecompiledTemplateLoader(ClassLoader classLoader) {
+        this.classLoader = classLoader;
+    }
+
+    /**
+     * Creates new loader for the templates precompiled into given directory.
+     * @param directory directory containing the precompiled templates
+     * @throws IOException if the directory cannot be converted to the URL
+     */
+    public PrecompiledTemplateLoader(File directory) throws IOException {
+        this(new URLClassLoader(new URL[] { directory.toURI().toURL() }, PrecompiledTemplateLoader.class.getClassLoader()));
+    }
+
+    /**
+     * Returns true if there is precompiled template of given name.
+     * @param name the name of the template
+     * @return true if there is precompiled template of given name
+     */
+    public boolean contains(String name) {
+        return classLoader.getResource(TemplatePrecompiler.getClassName(name) + TemplatePrecompiler.METADATA_EXTENSION) != null;
+    }
+
+    /**
+     * Loads the precompiled template.
+     * @param name the name of the template
+     * @param hash the hash of the template text the precompiled template must match or <code>null</code> to skip the check
+     * @return new template or <code>null</code> if there is no such precompiled template or it has different hash
+     * @throws IOException if the precompiled template cannot be read
+     */
+    DebuggableTemplate load(String name, String hash) throws IOException {
+        String className = TemplatePrecompiler.getClassName(name);
+        InputStream stream = classLoader.getResourceAsStream(className + TemplatePrecompiler.METADATA_EXTENSION);
+        if (stream == null) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        try {
+            if (in.readInt() != TemplatePrecompiler.METADATA_MAGIC) {
+                throw new IOException("Invalid metadata of precompiled template " + name);
+            }
+            if (!name.equals(in.readUTF()) || !className.equals(in.readUTF())) {
+                throw new IOException("Metadata of precompiled template " + name + " belongs to a different template");
+            }
+            String fileName = in.readUTF();
+            String templateHash = in.readUTF();
+            if (hash != null && !hash.equals(templateHash)) {
+                return null;
+            }
+            String foldedEscaping = in.readUTF();
+            int weight = in.readInt();
+            String[] staticTexts = new String[in.readInt()];
+            for (int i = 0; i < staticTexts.length; i++) {
+                char[] chars = new char[in.readInt()];
+                for (int j = 0; j < chars.length; j++) {
+                    chars[j] = in.readChar();
+                }
+                staticTexts[i] = new String(chars).intern();
+            }
+            DebuggableTemplate template = new DebuggableTemplate();
+            template.setFileName(fileName);
+            template.setSource(name, templateHash);
+            template.setStaticTexts(staticTexts);
+            template.setPositionIndex(PositionIndex.readFrom(in));
+            template.setWeight(weight);
+            template.setFoldedEscaping(foldedEscaping.length() == 0 ? null : Escaping.valueOf(foldedEscaping));
+            template.setScript(InvokerHelper.createScript(loadClass(className), new Binding()));
+            return template;
+        } finally {
+            in.close();
+        }
+    }
+
+    private Class<? extends Script> loadClass(String className) throws IOException {
+        try {
+            return classLoader.loadClass(className).asSubclass(Script.class);
+        } catch (ClassNotFoundException e) {
+            IOException missing = new IOException("Missing class of precompiled template: " + className);
+            missing.initCause(e);
+            throw missing;
+        } catch (ClassCastException e) {
+            IOException invalid = new IOException("Class of precompiled template is not a script: " + className);
+            invalid.initCause(e);
+            throw invalid;
+        }
+    }
+
+}
@@ -0,0 +1,96 @@
+package groovyx.gaelyk.dte;
+
+import groovy.lang.Writable;
+import groovy.text.Template;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Template managed by {@link ReloadingTemplateEngine} which is compiled again when its file changes.
+ *
+ * Every call of {@link #make(Map)} uses the latest successfully compiled version of the template.
+ * The writables created before the template has been recompiled keep rendering the previous version.
+ * If the changed template fails to compile the previous version is kept and the failure is available
+ * from {@link #getFailure()}.
+ *
+ * @author Vladimir Orany
+ */
+public class ReloadableTemplate implements Template {
+
+    private final DebuggableTemplateEngine              engine;
+    private final Path                                  path;
+    private final Charset                               sourceCharset;
+    private final AtomicReference<DebuggableTemplate>   current = new AtomicReference<DebuggableTemplate>();
+    private final AtomicLong                            reloads = new AtomicLong();
+    private volatile Exception                          failure;
+
+    ReloadableTemplate(DebuggableTemplateEngine engine, Path path, Charset sourceCharset) throws IOException {
+        this.engine = engine;
+        this.path = path;
+        this.sourceCharset = sourceCharset;
+        this.current.set(engine.createTemplate(path, sourceCharset));
+    }
+
+    /**
+     * Compiles the template again and swaps it in if the compilation succeeds.
+     * @return true if the new version of the template has been swapped in
+     */
+    boolean reload() {
+        engine.invalidate(path.toFile());
+        try {
+            current.set(engine.createTemplate(path, sourceCharset));
+            failure = null;
+            reloads.incrementAndGet();
+            return true;
+        } catch (Exception e) {
+            failure = e;
+            return false;
+        }
+    }
+
+    public Writable make() {
+        return current.get().make();
+    }
+
+    public Writable make(@SuppressWarnings("rawtypes") Map binding) {
+        return current.get().make(binding);
+    }
+
+    /**
+     * Returns the latest successfully compiled version of the template.
+     * @return the latest successfully compiled version of the template
+     */
+    public DebuggableTemplate getCurrent() {
+        return current.get();
+    }
+
+    /**
+     * Returns the failure of the last attempt to compile the template again.
+     * @return the failure of the last recompilation or <code>null</code> if it succeeded
+     */
+    public Exception getFailure() {
+        return failure;
+    }
+
+    /**
+     * Returns how many times the template has been successfully compiled again.
+     * @return how many times the template has been successfully compiled again
+     */
+    public long getReloadCount() {
+        return reloads.get();
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    @Override public String toString() {
+        return "ReloadableTemplate[" + path + ", reloads=" + reloads.get() + "]";
+    }
+
+}
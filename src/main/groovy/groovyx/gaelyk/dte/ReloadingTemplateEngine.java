@@ -0,0 +1,224 @@
+package groovyx.gaelyk.dte;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Watches the template directories and compiles the changed templates again in the background.
+ *
+ * The templates are obtained using {@link #getTemplate(Path)} which compiles the template on the first
+ * request only. Changes of the files are collected by the {@link WatchService} until there is no change
+ * for the debounce delay, then only the changed templates which have been requested before are compiled
+ * again by the background thread and swapped in atomically, see {@link ReloadableTemplate}. The templates
+ * referencing the changed templates by the include and layout directives are compiled again as well,
+ * the names of the referenced templates are resolved as the paths relative to the watched directories.
+ * Rendering never waits for the recompilation.
+ *
+ * <pre>
+ * ReloadingTemplateEngine reloading = new ReloadingTemplateEngine(engine, Charset.forName("UTF-8"), Paths.get("views"));
+ * reloading.getTemplate(Paths.get("views/index.gtpl")).make(model).writeTo(writer);
+ * // ...
+ * reloading.close();
+ * </pre>
+ *
+ * @author Vladimir Orany
+ */
+public class ReloadingTemplateEngine implements Closeable {
+
+    private static final long                                DEFAULT_DEBOUNCE_DELAY = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final AtomicLong                          counter                = new AtomicLong(1);
+
+    private final DebuggableTemplateEngine                   engine;
+    private final Charset                                    sourceCharset;
+    private final WatchService                               watchService;
+    private final List<Path>                                 roots                  = new ArrayList<Path>();
+    private final ConcurrentMap<WatchKey, Path>              directories            = new ConcurrentHashMap<WatchKey, Path>();
+    private final ConcurrentMap<Path, ReloadableTemplate>    templates              = new ConcurrentHashMap<Path, ReloadableTemplate>();
+    private final Thread                                     watcher;
+    private volatile long                                    debounceDelay          = DEFAULT_DEBOUNCE_DELAY;
+    private volatile boolean                                 closed;
+
+    /**
+     * Creates new engine watching given directories and their subdirectories.
+     *
+     * @param engine the engine compiling the templates
+     * @param sourceCharset the charset of the template files
+     * @param roots the directories containing the templates
+     * @throws IOException if the directories cannot be watched
+     */
+    public ReloadingTemplateEngine(DebuggableTemplateEngine engine, Charset sourceCharset, Path... roots) throws IOException {
+        this.engine = engine;
+        this.sourceCharset = sourceCharset;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        for (Path root : roots) {
+            this.roots.add(root.toAbsolutePath().normalize());
+            registerAll(root.toAbsolutePath().normalize());
+        }
+        this.watcher = new Thread(new Watcher(), "template-reloader-" + counter.getAndIncrement());
+        this.watcher.setDaemon(true);
+        this.watcher.start();
+    }
+
+    /**
+     * Returns the template for given file. The template is compiled on the first request,
+     * later requests return the same template which is compiled again when the file changes.
+     *
+     * @param path the template file inside one of the watched directories
+     * @return the template for given file
+     * @throws IOException if the template cannot be read
+     */
+    public ReloadableTemplate getTemplate(Path path) throws IOException {
+        Path key = path.toAbsolutePath().normalize();
+        ReloadableTemplate template = templates.get(key);
+        if (template != null) {
+            return template;
+        }
+        template = new ReloadableTemplate(engine, key, sourceCharset);
+        ReloadableTemplate existing = templates.putIfAbsent(key, template);
+        return existing == null ? template : existing;
+    }
+
+    /**
+     * Returns the templates requested so far.
+     * @return the templates requested so far
+     */
+    public Collection<ReloadableTemplate> getTemplates() {
+        return templates.values();
+    }
+
+    /**
+     * Sets how long there must be no change before the changed templates are compiled again.
+     * @param delay the debounce delay
+     * @param unit the unit of the delay
+     */
+    public void setDebounceDelay(long delay, TimeUnit unit) {
+        this.debounceDelay = unit.toNanos(delay);
+    }
+
+    public long getDebounceDelay(TimeUnit unit) {
+        return unit.convert(debounceDelay, TimeUnit.NANOSECONDS);
+    }
+
+    public DebuggableTemplateEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Stops watching the directories. The templates obtained so far keep their last versions.
+     */
+    public void close() throws IOException {
+        closed = true;
+        watcher.interrupt();
+        watchService.close();
+    }
+
+    private void registerAll(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                directories.put(key, dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void collect(WatchKey key, Set<Path> changed) {
+        Path dir = directories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                changed.addAll(templates.keySet());
+                continue;
+            }
+            Path path = dir.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                try {
+                    registerAll(path);
+                } catch (IOException e) {
+                    // the directory has been removed in the meantime
+                }
+            }
+            changed.add(path);
+        }
+        if (!key.reset()) {
+            directories.remove(key);
+        }
+    }
+
+    private void reload(Set<Path> changed) {
+        Set<ReloadableTemplate> stale = new LinkedHashSet<ReloadableTemplate>();
+        for (Path path : changed) {
+            ReloadableTemplate template = templates.get(path);
+            if (template != null && Files.isRegularFile(path)) {
+                stale.add(template);
+            }
+        }
+        for (ReloadableTemplate template : templates.values()) {
+            for (String name : template.getCurrent().getDependencies().keySet()) {
+                if (isChanged(name, changed)) {
+                    engine.invalidate(name);
+                    stale.add(template);
+                }
+            }
+        }
+        for (ReloadableTemplate template : stale) {
+            template.reload();
+        }
+    }
+
+    /**
+     * Tells whether the referenced template of given name is one of the changed files.
+     */
+    private boolean isChanged(String name, Set<Path> changed) {
+        for (Path root : roots) {
+            if (changed.contains(root.resolve(name).normalize())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private class Watcher implements Runnable {
+
+        public void run() {
+            try {
+                while (!closed) {
+                    Set<Path> changed = new HashSet<Path>();
+                    collect(watchService.take(), changed);
+                    WatchKey key;
+                    while ((key = watchService.poll(debounceDelay, TimeUnit.NANOSECONDS)) != null) {
+                        collect(key, changed);
+                    }
+                    reload(changed);
+                }
+            } catch (InterruptedException e) {
+                // closed
+            } catch (ClosedWatchServiceException e) {
+                // closed
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,97 @@
+package groovyx.gaelyk.dte;
+
+import java.io.Writer;
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable buffer holding the template document rendered into string and the bytes
+ * of the document being encoded into the output stream.
+ *
+ * Unlike {@link java.io.StringWriter} the characters are kept in plain array which is
+ * not synchronized and which is only cleared when the buffer is returned into the {@link RenderBufferPool}
+ * so the next render doesn't have to grow the array again.
+ *
+ * @author Vladimir Orany
+ */
+final class RenderBuffer extends Writer {
+
+    static final int         BYTES_SIZE = 8192;
+
+    private char[]           chars;
+    private int              count;
+    private ByteBuffer       bytes;
+
+    RenderBuffer(int initialCapacity) {
+        this.chars = new char[Math.max(16, initialCapacity)];
+    }
+
+    @Override public void write(int c) {
+        ensureCapacity(count + 1);
+        chars[count++] = (char) c;
+    }
+
+    @Override public void write(char[] cbuf, int off, int len) {
+        ensureCapacity(count + len);
+        System.arraycopy(cbuf, off, chars, count, len);
+        count += len;
+    }
+
+    @Override public void write(String str, int off, int len) {
+        ensureCapacity(count + len);
+        str.getChars(off, off + len, chars, count);
+        count += len;
+    }
+
+    @Override public void flush() {
+        // nothing to flush
+    }
+
+    @Override public void close() {
+        // the buffer is closed by returning it into the pool
+    }
+
+    /**
+     * Grows the array so it can hold given number of characters without growing again.
+     * @param capacity the number of characters
+     */
+    void ensureCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new OutOfMemoryError("Template document is too large");
+        }
+        if (capacity > chars.length) {
+            int grown = chars.length * 2;
+            char[] larger = new char[grown < 0 ? capacity : Math.max(grown, capacity)];
+            System.arraycopy(chars, 0, larger, 0, count);
+            chars = larger;
+        }
+    }
+
+    /**
+     * Returns the buffer used to encode the document into the output stream.
+     * @return the cleared byte buffer
+     */
+    ByteBuffer getBytes() {
+        if (bytes == null) {
+            bytes = ByteBuffer.allocate(BYTES_SIZE);
+        }
+        bytes.clear();
+        return bytes;
+    }
+
+    void clear() {
+        count = 0;
+    }
+
+    int length() {
+        return count;
+    }
+
+    int capacity() {
+        return chars.length;
+    }
+
+    @Override public String toString() {
+        return new String(chars, 0, count);
+    }
+
+}
@@ -0,0 +1,78 @@
+package groovyx.gaelyk.dte;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of {@link RenderBuffer}s shared by the templates of single engine.
+ *
+ * The buffers are not bound to the threads so they are reused even if every render
+ * runs on a new virtual thread. Buffers grown over the maximum retained capacity are
+ * dropped when they are released so single huge document doesn't keep its buffer forever.
+ *
+ * @author Vladimir Orany
+ */
+final class RenderBufferPool {
+
+    static final int                  DEFAULT_MAXIMUM_IDLE              = 16;
+    static final int                  DEFAULT_MAXIMUM_RETAINED_CAPACITY = 1024 * 1024;
+
+    /** Pool which never keeps any buffer. */
+    static final RenderBufferPool     NONE                              = new RenderBufferPool(0, 0);
+
+    private final int                 maximumIdle;
+    private final int                 maximumRetainedCapacity;
+    private final Queue<RenderBuffer> idle                              = new ConcurrentLinkedQueue<RenderBuffer>();
+    private final AtomicInteger       idleCount                         = new AtomicInteger();
+
+    /**
+     * Creates new pool.
+     * @param maximumIdle maximum number of idle buffers kept by the pool, zero disables pooling
+     * @param maximumRetainedCapacity maximum number of characters of the buffer returned into the pool
+     */
+    RenderBufferPool(int maximumIdle, int maximumRetainedCapacity) {
+        this.maximumIdle = maximumIdle;
+        this.maximumRetainedCapacity = maximumRetainedCapacity;
+    }
+
+    /**
+     * Returns idle buffer or creates new one.
+     * @param expectedLength the expected length of the document
+     * @return the empty buffer able to hold the expected number of characters
+     */
+    RenderBuffer acquire(int expectedLength) {
+        RenderBuffer buffer = maximumIdle > 0 ? idle.poll() : null;
+        if (buffer == null) {
+            return new RenderBuffer(expectedLength);
+        }
+        idleCount.decrementAndGet();
+        buffer.ensureCapacity(expectedLength);
+        return buffer;
+    }
+
+    /**
+     * Returns the buffer into the pool if the pool is not full and the buffer is not too large.
+     * @param buffer the buffer which is no longer used
+     */
+    void release(RenderBuffer buffer) {
+        if (maximumIdle == 0 || buffer.capacity() > maximumRetainedCapacity) {
+            return;
+        }
+        buffer.clear();
+        if (idleCount.incrementAndGet() <= maximumIdle) {
+            idle.offer(buffer);
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    int getMaximumIdle() {
+        return maximumIdle;
+    }
+
+    int getIdleCount() {
+        return idleCount.get();
+    }
+
+}
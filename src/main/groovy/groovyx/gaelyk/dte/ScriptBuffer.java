@@ -0,0 +1,204 @@
+package groovyx.gaelyk.dte;
+
+/**
+ * Buffer collecting the generated script together with the {@link PositionIndex}.
+ *
+ * The buffer keeps the current template position which is the position of the last
+ * template character consumed. Template text is copied in bulk using
+ * {@link #appendSource(char[], int, int)} while the generated code added using
+ * {@link #append(CharSequence)} is mapped to the current template position.
+ *
+ * If only the line checkpoints are tracked, the buffer doesn't build the full index
+ * and it records only the template line of the first column of each script line, see {@link #getLineCheckpoints()}.
+ *
+ * Line and column numbers starts at 1.
+ *
+ * @author Vladimir Orany
+ */
+final class ScriptBuffer {
+
+    private final StringBuilder         script;
+    private final PositionIndex.Builder positions;
+    private int[]                       lineCheckpoints;
+
+    private int                         line           = 1;
+    private int                         column         = 0;
+
+    private int                         templateLine   = 1;
+    private int                         templateColumn = 0;
+
+    ScriptBuffer(int capacity) {
+        this(capacity, false);
+    }
+
+    /**
+     * @param capacity initial capacity of the script
+     * @param checkpointsOnly true if only the line checkpoints should be tracked instead of the full index
+     */
+    ScriptBuffer(int capacity, boolean checkpointsOnly) {
+        script = new StringBuilder(capacity);
+        if (checkpointsOnly) {
+            positions = null;
+            lineCheckpoints = new int[Math.max(16, capacity / 32)];
+        } else {
+            positions = new PositionIndex.Builder();
+        }
+    }
+
+    /**
+     * Sets the current template position.
+     * @param templateLine line of the last consumed template character
+     * @param templateColumn column of the last consumed template character
+     */
+    void moveTo(int templateLine, int templateColumn) {
+        this.templateLine = templateLine;
+        this.templateColumn = templateColumn;
+    }
+
+    /**
+     * Appends generated code mapped to the current template position.
+     * @param generated the generated code
+     */
+    void append(CharSequence generated) {
+        int length = generated.length();
+        int runStart = 0;
+        for (int i = 0; i < length; i++) {
+            if (generated.charAt(i) == '\n') {
+                map(line, column + 1, i - runStart + 1, templateLine, templateColumn, 0);
+                line++;
+                column = 0;
+                runStart = i + 1;
+            }
+        }
+        map(line, column + 1, length - runStart, templateLine, templateColumn, 0);
+        column += length - runStart;
+        script.append(generated);
+    }
+
+    /**
+     * Appends generated character mapped to the current template position.
+     * @param generated the generated character
+     */
+    void append(char generated) {
+        map(line, column + 1, 1, templateLine, templateColumn, 0);
+        script.append(generated);
+        if (generated == '\n') {
+            line++;
+            column = 0;
+        } else {
+            column++;
+        }
+    }
+
+    /**
+     * Copies the template characters into the script advancing the current template position.
+     * New line sequences are written as single <code>\n</code> character.
+     * @param chars the template characters
+     * @param from offset of the first character to be copied
+     * @param to offset after the last character to be copied
+     */
+    void appendSource(char[] chars, int from, int to) {
+        int runStart = from;
+        int i = from;
+        while (i < to) {
+            char c = chars[i];
+            if (c != '\n' && c != '\r') {
+                i++;
+                continue;
+            }
+            appendRun(chars, runStart, i);
+            i += c == '\r' && i + 1 < to && chars[i + 1] == '\n' ? 2 : 1;
+            templateLine++;
+            templateColumn = 0;
+            append('\n');
+            runStart = i;
+        }
+        appendRun(chars, runStart, to);
+    }
+
+    /**
+     * Advances the current template position without writing anything into the script.
+     * @param chars the template characters
+     * @param from offset of the first character to be skipped
+     * @param to offset after the last character to be skipped
+     */
+    void skipSource(char[] chars, int from, int to) {
+        int i = from;
+        while (i < to) {
+            char c = chars[i];
+            if (c == '\n' || c == '\r') {
+                i += c == '\r' && i + 1 < to && chars[i + 1] == '\n' ? 2 : 1;
+                templateLine++;
+                templateColumn = 0;
+            } else {
+                i++;
+                templateColumn++;
+            }
+        }
+    }
+
+    private void appendRun(char[] chars, int from, int to) {
+        int length = to - from;
+        if (length == 0) {
+            return;
+        }
+        map(line, column + 1, length, templateLine, templateColumn + 1, 1);
+        script.append(chars, from, length);
+        column += length;
+        templateColumn += length;
+    }
+
+    private void map(int line, int column, int length, int templateLine, int templateColumn, int step) {
+        if (positions != null) {
+            positions.add(line, column, length, templateLine, templateColumn, step);
+            return;
+        }
+        if (column != 1 || length == 0) {
+            return;
+        }
+        if (line > lineCheckpoints.length) {
+            int[] grown = new int[Math.max(line, lineCheckpoints.length * 2)];
+            System.arraycopy(lineCheckpoints, 0, grown, 0, lineCheckpoints.length);
+            lineCheckpoints = grown;
+        }
+        lineCheckpoints[line - 1] = templateLine;
+    }
+
+    /**
+     * Returns the length of the script generated so far.
+     * @return the length of the script generated so far
+     */
+    int length() {
+        return script.length();
+    }
+
+    /**
+     * Returns index mapping positions in the generated script back to the template.
+     * @return index mapping positions in the generated script back to the template
+     */
+    PositionIndex getPositionIndex() {
+        if (positions == null) {
+            throw new IllegalStateException("Only the line checkpoints are tracked");
+        }
+        return positions.build();
+    }
+
+    /**
+     * Returns the template line of the first column of each script line, the value for script line
+     * <code>n</code> is at index <code>n - 1</code>. Zero means the line is empty.
+     * @return the template line of the first column of each script line
+     */
+    int[] getLineCheckpoints() {
+        if (lineCheckpoints == null) {
+            throw new IllegalStateException("Full position index is tracked");
+        }
+        int[] checkpoints = new int[line];
+        System.arraycopy(lineCheckpoints, 0, checkpoints, 0, Math.min(line, lineCheckpoints.length));
+        return checkpoints;
+    }
+
+    @Override public String toString() {
+        return script.toString();
+    }
+
+}
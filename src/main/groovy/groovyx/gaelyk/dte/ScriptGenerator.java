@@ -0,0 +1,327 @@
+package groovyx.gaelyk.dte;
+
+import groovy.lang.GroovyRuntimeException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Generates the Groovy script from the segments found by {@link TemplateParser}.
+ *
+ * The generator writes the script into the {@link ScriptBuffer} so every piece
+ * of the generated code is mapped back to the template position.
+ *
+ * The directives are common for all generators. <code>&lt;%@ include file="name" %&gt;</code>
+ * renders the included template into the same writer, <code>&lt;%@ layout file="name" %&gt;</code>
+ * renders the template inside the layout and <code>&lt;%@ body %&gt;</code> marks the place in the layout
+ * where the template using the layout is rendered. The names of the included templates and the layout
+ * are collected by the generator and resolved when the template is compiled.
+ *
+ * <code>&lt;%@ model user="com.example.User" items="List&lt;String&gt;" %&gt;</code> declares the types of the
+ * binding variables. The variables and the <code>out</code> writer are declared as typed local variables
+ * at the beginning of the script, mapped to the position of the directive, and the script is compiled statically.
+ *
+ * <code>&lt;%@ cache key="expression" ttl="10m" %&gt;</code> and <code>&lt;%@ endcache %&gt;</code> mark the region
+ * whose output is kept in the {@link FragmentCache}. The region is wrapped into the block rendered only
+ * if {@link TemplateWriter#beginFragment(int, Object, long)} doesn't find the fragment in the cache.
+ *
+ * @author Vladimir Orany
+ */
+abstract class ScriptGenerator {
+
+    private static final String[]       NO_STATIC_TEXTS  = new String[0];
+    private static final Pattern        DIRECTIVE        = Pattern.compile("\\s*(\\w+)((?:\\s+\\w+\\s*=\\s*([\"']).*?\\3)*)\\s*");
+    private static final Pattern        ATTRIBUTE        = Pattern.compile("(\\w+)\\s*=\\s*([\"'])(.*?)\\2");
+    private static final String         MODEL            = "model";
+    private static final List<String>   CACHE_ATTRIBUTES = Arrays.asList("key", "ttl");
+    private static final Pattern        TIME_TO_LIVE     = Pattern.compile("\\s*(\\d+)\\s*(ms|s|m|h|d)?\\s*");
+
+    protected final char[]              chars;
+    protected final ScriptBuffer        sw;
+
+    private final List<String>          includes         = new ArrayList<String>();
+    private final Map<String, Integer>  includeIndices   = new HashMap<String, Integer>();
+    private String                      layout;
+    private Map<String, String>         model;
+    private int                         fragments;
+    private TemplateSegment             openFragment;
+
+    ScriptGenerator(char[] chars, ScriptBuffer sw) {
+        this.chars = chars;
+        this.sw = sw;
+    }
+
+    /**
+     * Generates the script for given segments.
+     * @param segments the segments of the template
+     */
+    void generate(List<TemplateSegment> segments) {
+        declareModel(segments);
+        startScript();
+        for (TemplateSegment segment : segments) {
+            switch (segment.kind) {
+            case TEXT:
+                text(segment);
+                break;
+            case EXPRESSION:
+                groovyExpression(segment);
+                break;
+            case RAW_EXPRESSION:
+                rawExpression(segment);
+                break;
+            case GSTRING:
+                processGSstring(segment);
+                break;
+            case SECTION:
+                groovySection(segment);
+                break;
+            case DIRECTIVE:
+                directive(segment);
+                break;
+            case CONSTANT:
+                constant(segment);
+                break;
+            }
+            sw.moveTo(segment.endLine, segment.endColumn);
+        }
+        if (openFragment != null) {
+            throw invalidDirective(openFragment, "Cache directive is not closed by endcache directive");
+        }
+        endScript();
+    }
+
+    abstract void startScript();
+
+    abstract void endScript();
+
+    /**
+     * Writes literal text.
+     * @param segment the text segment
+     */
+    abstract void text(TemplateSegment segment);
+
+    /**
+     * Writes ${ } expression.
+     * @param segment the ${ } segment
+     */
+    abstract void processGSstring(TemplateSegment segment);
+
+    /**
+     * Writes &lt;%= %&gt; expression.
+     * @param segment the expression segment
+     */
+    abstract void groovyExpression(TemplateSegment segment);
+
+    /**
+     * Writes &lt;%== %&gt; expression which is not escaped.
+     * @param segment the expression segment
+     */
+    abstract void rawExpression(TemplateSegment segment);
+
+    /**
+     * Writes the text of the expression evaluated when the template was compiled as literal text.
+     * @param segment the constant segment
+     */
+    abstract void constant(TemplateSegment segment);
+
+    /**
+     * Writes &lt;% %&gt; section of Groovy code.
+     * @param segment the section segment
+     */
+    abstract void groovySection(TemplateSegment segment);
+
+    /**
+     * Writes the statement rendering another template such as <code>out.include(0)</code>.
+     * @param segment the directive segment
+     * @param statement the statement to write
+     */
+    abstract void templateCall(TemplateSegment segment, String statement);
+
+    /**
+     * Handles &lt;%@ %&gt; directive.
+     * @param segment the directive segment
+     */
+    void directive(TemplateSegment segment) {
+        Matcher matcher = matchDirective(segment);
+        String name = matcher.group(1);
+        Map<String, String> attributes = attributes(matcher);
+        String file = attributes.size() == 1 ? attributes.get("file") : null;
+        if (MODEL.equals(name)) {
+            // already declared at the beginning of the script
+            return;
+        }
+        if ("include".equals(name) && file != null) {
+            Integer index = includeIndices.get(file);
+            if (index == null) {
+                index = includes.size();
+                includes.add(file);
+                includeIndices.put(file, index);
+            }
+            templateCall(segment, "out.include(" + index + ")");
+        } else if ("layout".equals(name) && file != null) {
+            if (layout != null) {
+                throw invalidDirective(segment, "Template can only have one layout");
+            }
+            layout = file;
+        } else if ("body".equals(name) && attributes.isEmpty()) {
+            templateCall(segment, "out.body()");
+        } else if ("cache".equals(name) && CACHE_ATTRIBUTES.containsAll(attributes.keySet())) {
+            if (openFragment != null) {
+                throw invalidDirective(segment, "Cache directives cannot be nested");
+            }
+            openFragment = segment;
+            String key = attributes.get("key");
+            long timeToLive = timeToLive(segment, attributes.get("ttl"));
+            templateCall(segment, "if (out.beginFragment(" + fragments++ + ", " + (key == null ? "null" : "(" + key + ")") + ", " + timeToLive + "L)) { try {");
+        } else if ("endcache".equals(name) && attributes.isEmpty()) {
+            if (openFragment == null) {
+                throw invalidDirective(segment, "Endcache directive without cache directive");
+            }
+            openFragment = null;
+            templateCall(segment, "out.storeFragment(); } finally { out.endFragment(); } }");
+        } else {
+            throw invalidDirective(segment, "Unknown directive");
+        }
+    }
+
+    /**
+     * Declares the <code>out</code> writer and the variables of the model directives as typed local variables.
+     * The declarations are written on the first line of the script so the following lines are not shifted.
+     * @param segments the segments of the template
+     */
+    private void declareModel(List<TemplateSegment> segments) {
+        for (TemplateSegment segment : segments) {
+            if (segment.kind != TemplateSegment.Kind.DIRECTIVE) {
+                continue;
+            }
+            Matcher matcher = matchDirective(segment);
+            if (!MODEL.equals(matcher.group(1))) {
+                continue;
+            }
+            Map<String, String> attributes = attributes(matcher);
+            if (attributes.isEmpty()) {
+                throw invalidDirective(segment, "Model directive must declare at least one variable");
+            }
+            sw.moveTo(segment.line, segment.column);
+            if (model == null) {
+                model = new LinkedHashMap<String, String>();
+                sw.append("groovyx.gaelyk.dte.TemplateWriter out = (groovyx.gaelyk.dte.TemplateWriter) getBinding().getVariable(\"out\"); ");
+            }
+            for (Map.Entry<String, String> variable : attributes.entrySet()) {
+                String name = variable.getKey();
+                if ("out".equals(name) || Character.isDigit(name.charAt(0)) || model.containsKey(name)) {
+                    throw invalidDirective(segment, "Invalid model variable " + name + " in directive");
+                }
+                model.put(name, variable.getValue());
+                sw.append(variable.getValue() + " " + name + " = (" + variable.getValue() + ") getBinding().getVariables().get(\"" + name + "\"); ");
+            }
+        }
+        sw.moveTo(1, 0);
+    }
+
+    /**
+     * Returns the time to live of the cached fragment in milliseconds.
+     * @param ttl the number of seconds or the number followed by the unit
+     * @return the time to live in milliseconds or zero if the fragment doesn't expire
+     */
+    private long timeToLive(TemplateSegment segment, String ttl) {
+        if (ttl == null) {
+            return 0;
+        }
+        Matcher matcher = TIME_TO_LIVE.matcher(ttl);
+        if (!matcher.matches() || matcher.group(1).length() > 9) {
+            throw invalidDirective(segment, "Invalid time to live " + ttl + " in directive");
+        }
+        long value = Long.parseLong(matcher.group(1));
+        String unit = matcher.group(2) == null ? "s" : matcher.group(2);
+        if ("ms".equals(unit)) {
+            return value;
+        } else if ("s".equals(unit)) {
+            return value * 1000L;
+        } else if ("m".equals(unit)) {
+            return value * 60L * 1000L;
+        } else if ("h".equals(unit)) {
+            return value * 60L * 60L * 1000L;
+        }
+        return value * 24L * 60L * 60L * 1000L;
+    }
+
+    private Matcher matchDirective(TemplateSegment segment) {
+        Matcher matcher = DIRECTIVE.matcher(new String(chars, segment.start, segment.end - segment.start));
+        if (!segment.closed || !matcher.matches()) {
+            throw invalidDirective(segment, "Invalid directive");
+        }
+        return matcher;
+    }
+
+    private static Map<String, String> attributes(Matcher directive) {
+        Map<String, String> attributes = new LinkedHashMap<String, String>();
+        Matcher matcher = ATTRIBUTE.matcher(directive.group(2));
+        while (matcher.find()) {
+            attributes.put(matcher.group(1), matcher.group(3));
+        }
+        return attributes;
+    }
+
+    private GroovyRuntimeException invalidDirective(TemplateSegment segment, String message) {
+        return new GroovyRuntimeException(message + " <%@" + new String(chars, segment.start, segment.end - segment.start) + (segment.closed ? "%>" : "")
+                + " at line " + segment.line + ", column " + segment.column);
+    }
+
+    /**
+     * Returns the names of the templates included by the generated script in the order of their indices.
+     * @return the names of the included templates
+     */
+    List<String> getIncludes() {
+        return includes;
+    }
+
+    /**
+     * Returns the name of the layout of the template.
+     * @return the name of the layout or <code>null</code> if the template has no layout
+     */
+    String getLayout() {
+        return layout;
+    }
+
+    /**
+     * Returns the types of the variables declared by the model directives.
+     * @return the types of the model variables by their names or <code>null</code> if the template has no model directive
+     */
+    Map<String, String> getModel() {
+        return model;
+    }
+
+    /**
+     * Returns the static texts referenced by the generated script using {@link TemplateWriter#writeStatic(int)}.
+     * @return the static texts referenced by the generated script
+     */
+    String[] getStaticTexts() {
+        return NO_STATIC_TEXTS;
+    }
+
+    protected void copyWithoutNewLines(TemplateSegment segment) {
+        int runStart = segment.start;
+        int i = segment.start;
+        while (i < segment.end) {
+            char c = chars[i];
+            if (c == '\n' || c == '\r') {
+                sw.appendSource(chars, runStart, i);
+                int newLineEnd = c == '\r' && i + 1 < segment.end && chars[i + 1] == '\n' ? i + 2 : i + 1;
+                sw.skipSource(chars, i, newLineEnd);
+                i = newLineEnd;
+                runStart = i;
+            } else {
+                i++;
+            }
+        }
+        sw.appendSource(chars, runStart, segment.end);
+    }
+
+}
@@ -0,0 +1,137 @@
+package groovyx.gaelyk.dte;
+
+import groovy.lang.Binding;
+import groovy.lang.GroovyRuntimeException;
+import groovy.lang.Script;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the script instances for the renders of single template.
+ *
+ * The constructor of the script class is looked up only once. If the maximum number
+ * of idle scripts is greater than zero, the scripts are returned into the pool after
+ * the render and rebound to the binding of the next render. The fields the {@link ScriptSplitter}
+ * turned the top-level variables into are cleared when the script is returned, so the idle
+ * scripts don't keep the values of the previous render. Only templates which don't keep
+ * any other state in the script fields should be pooled.
+ *
+ * @author Vladimir Orany
+ */
+final class ScriptPool {
+
+    private final Constructor<? extends Script> constructor;
+    private final int                           maximumIdle;
+    private final Field[]                       fields;
+    private final Object[]                      defaults;
+    private final Queue<Script>                 idle      = new ConcurrentLinkedQueue<Script>();
+    private final AtomicInteger                 idleCount = new AtomicInteger();
+
+    /**
+     * Creates new pool for given script class.
+     * @param scriptClass the class of the script
+     * @param maximumIdle maximum number of idle scripts kept by the pool, zero disables pooling
+     */
+    ScriptPool(Class<? extends Script> scriptClass, int maximumIdle) {
+        try {
+            this.constructor = scriptClass.getConstructor();
+        } catch (NoSuchMethodException e) {
+            throw new GroovyRuntimeException("Failed to create Script instance for class: " + scriptClass + ". Reason: " + e, e);
+        }
+        this.maximumIdle = maximumIdle;
+        this.fields = getSplitFields(scriptClass);
+        this.defaults = new Object[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            // null or zero of the primitive type
+            defaults[i] = Array.get(Array.newInstance(fields[i].getType(), 1), 0);
+        }
+    }
+
+    /**
+     * Returns the fields the top-level variables of the split script were turned into.
+     */
+    private static Field[] getSplitFields(Class<? extends Script> scriptClass) {
+        try {
+            Field namesField = scriptClass.getDeclaredField(ScriptSplitter.FIELDS_FIELD);
+            namesField.setAccessible(true);
+            String[] names = (String[]) namesField.get(null);
+            Field[] fields = new Field[names.length];
+            for (int i = 0; i < names.length; i++) {
+                fields[i] = scriptClass.getDeclaredField(names[i]);
+                fields[i].setAccessible(true);
+            }
+            return fields;
+        } catch (NoSuchFieldException e) {
+            // the script has not been split
+            return new Field[0];
+        } catch (IllegalAccessException e) {
+            throw new GroovyRuntimeException("Failed to read the fields of script class: " + scriptClass + ". Reason: " + e, e);
+        }
+    }
+
+    /**
+     * Returns idle script or creates new one.
+     * @param binding the binding for the script
+     * @return the script bound to given binding
+     */
+    Script acquire(Binding binding) {
+        Script script = maximumIdle > 0 ? idle.poll() : null;
+        if (script == null) {
+            script = newInstance();
+        } else {
+            idleCount.decrementAndGet();
+        }
+        script.setBinding(binding);
+        return script;
+    }
+
+    /**
+     * Returns the script into the pool if the pool is not full.
+     * @param script the script which is no longer used
+     */
+    void release(Script script) {
+        if (maximumIdle == 0) {
+            return;
+        }
+        script.setBinding(null);
+        try {
+            for (int i = 0; i < fields.length; i++) {
+                fields[i].set(script, defaults[i]);
+            }
+        } catch (IllegalAccessException e) {
+            throw new GroovyRuntimeException("Failed to clear the fields of script: " + script + ". Reason: " + e, e);
+        }
+        if (idleCount.incrementAndGet() <= maximumIdle) {
+            idle.offer(script);
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the maximum number of idle scripts kept by the pool.
+     * @return the maximum number of idle scripts kept by the pool
+     */
+    int getMaximumIdle() {
+        return maximumIdle;
+    }
+
+    private Script newInstance() {
+        try {
+            return constructor.newInstance();
+        } catch (InstantiationException e) {
+            throw new GroovyRuntimeException("Failed to create Script instance for class: " + constructor.getDeclaringClass() + ". Reason: " + e, e);
+        } catch (IllegalAccessException e) {
+            throw new GroovyRuntimeException("Failed to create Script instance for class: " + constructor.getDeclaringClass() + ". Reason: " + e, e);
+        } catch (InvocationTargetException e) {
+            throw new GroovyRuntimeException("Failed to create Script instance for class: " + constructor.getDeclaringClass() + ". Reason: " + e.getCause(), e.getCause());
+        }
+    }
+
+}
@@ -0,0 +1,274 @@
+package groovyx.gaelyk.dte;
+
+import groovy.transform.CompileStatic;
+
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.codehaus.groovy.ast.ClassHelper;
+import org.codehaus.groovy.ast.ClassNode;
+import org.codehaus.groovy.ast.CodeVisitorSupport;
+import org.codehaus.groovy.ast.FieldNode;
+import org.codehaus.groovy.ast.MethodNode;
+import org.codehaus.groovy.ast.Parameter;
+import org.codehaus.groovy.ast.VariableScope;
+import org.codehaus.groovy.ast.expr.ArgumentListExpression;
+import org.codehaus.groovy.ast.expr.ArrayExpression;
+import org.codehaus.groovy.ast.expr.BinaryExpression;
+import org.codehaus.groovy.ast.expr.ClosureExpression;
+import org.codehaus.groovy.ast.expr.ConstantExpression;
+import org.codehaus.groovy.ast.expr.ConstructorCallExpression;
+import org.codehaus.groovy.ast.expr.DeclarationExpression;
+import org.codehaus.groovy.ast.expr.EmptyExpression;
+import org.codehaus.groovy.ast.expr.Expression;
+import org.codehaus.groovy.ast.expr.GStringExpression;
+import org.codehaus.groovy.ast.expr.MethodCallExpression;
+import org.codehaus.groovy.ast.expr.PropertyExpression;
+import org.codehaus.groovy.ast.expr.StaticMethodCallExpression;
+import org.codehaus.groovy.ast.expr.VariableExpression;
+import org.codehaus.groovy.ast.stmt.BlockStatement;
+import org.codehaus.groovy.ast.stmt.ExpressionStatement;
+import org.codehaus.groovy.ast.stmt.ReturnStatement;
+import org.codehaus.groovy.ast.stmt.Statement;
+import org.codehaus.groovy.classgen.GeneratorContext;
+import org.codehaus.groovy.control.CompilationFailedException;
+import org.codehaus.groovy.control.CompilePhase;
+import org.codehaus.groovy.control.SourceUnit;
+import org.codehaus.groovy.control.customizers.CompilationCustomizer;
+import org.codehaus.groovy.syntax.Token;
+import org.codehaus.groovy.syntax.Types;
+
+/**
+ * Splits the body of large template scripts into several methods so each of them stays small enough
+ * to be compiled by the JIT and far below the 64KB limit of the method code.
+ *
+ * The top-level statements of the script are distributed into the methods called one by one from
+ * <code>run()</code>. The statements keep their source positions so the stack traces still point
+ * to the template lines. The variables declared by the top-level statements, e.g. in <code>&lt;% %&gt;</code>
+ * sections, become the fields of the script so they remain visible in the following methods. The names
+ * of these fields are kept in the static field {@value #FIELDS_FIELD}, so the {@link ScriptPool} clears them
+ * before the script is reused.
+ *
+ * The script is left untouched if it can't be split safely, i.e. if it returns from the top level,
+ * declares the variables without the initial value, with annotations or with multiple assignment,
+ * references the name of the variable before it declares it, e.g. to read the variable of the binding,
+ * or if it is compiled statically and declares the variables without the type. It is also left untouched
+ * if any of the top-level statements, e.g. the <code>if</code> block, is heavier than the maximum weight
+ * on its own, because the method containing it wouldn't get below the limit and the fields would only
+ * make its bytecode larger. The bodies of the closures, e.g. of the <code>each</code> loops, are never split.
+ *
+ * @author Vladimir Orany
+ */
+final class ScriptSplitter extends CompilationCustomizer {
+
+    /** Default maximum weight of single method which keeps the bytecode of the methods below 8000 bytes. */
+    static final int               DEFAULT_MAXIMUM_WEIGHT = 1000;
+
+    static final String            METHOD_PREFIX          = "templatePart$";
+
+    /** Name of the static field holding the names of the fields the top-level variables were turned into. */
+    static final String            FIELDS_FIELD           = "templateFields$";
+
+    private static final ClassNode COMPILE_STATIC         = ClassHelper.make(CompileStatic.class);
+
+    private final int              maximumWeight;
+
+    /**
+     * @param maximumWeight the maximum number of the expressions and statements in single method
+     */
+    ScriptSplitter(int maximumWeight) {
+        super(CompilePhase.CONVERSION);
+        this.maximumWeight = maximumWeight;
+    }
+
+    @Override public void call(SourceUnit source, GeneratorContext context, ClassNode classNode) throws CompilationFailedException {
+        if (!classNode.isScript()) {
+            return;
+        }
+        MethodNode run = classNode.getMethod("run", Parameter.EMPTY_ARRAY);
+        if (run == null || !(run.getCode() instanceof BlockStatement)) {
+            return;
+        }
+        List<Statement> statements = ((BlockStatement) run.getCode()).getStatements();
+        Weigher weigher = new Weigher();
+        int[] weights = new int[statements.size()];
+        int total = 0;
+        int heaviest = 0;
+        for (int i = 0; i < weights.length; i++) {
+            int before = weigher.weight;
+            statements.get(i).visit(weigher);
+            weights[i] = weigher.weight - before;
+            total += weights[i];
+            heaviest = Math.max(heaviest, weights[i]);
+        }
+        if (total <= maximumWeight || heaviest > maximumWeight || weigher.returns || !canHoistDeclarations(classNode, statements)) {
+            return;
+        }
+
+        hoistDeclarations(classNode, statements);
+
+        BlockStatement body = new BlockStatement(new ArrayList<Statement>(), new VariableScope());
+        List<Statement> part = new ArrayList<Statement>();
+        int weight = 0;
+        for (int i = 0; i < weights.length; i++) {
+            if (weight > 0 && weight + weights[i] > maximumWeight) {
+                body.addStatement(addPart(classNode, part));
+                part = new ArrayList<Statement>();
+                weight = 0;
+            }
+            part.add(statements.get(i));
+            weight += weights[i];
+        }
+        body.addStatement(addPart(classNode, part));
+        run.setCode(body);
+    }
+
+    /**
+     * Moves the statements into new method and returns the statement calling it.
+     */
+    private static Statement addPart(ClassNode classNode, List<Statement> part) {
+        String name = METHOD_PREFIX + classNode.getMethods().size();
+        classNode.addMethod(new MethodNode(name, Modifier.PRIVATE, ClassHelper.OBJECT_TYPE, Parameter.EMPTY_ARRAY, ClassNode.EMPTY_ARRAY, new BlockStatement(part, new VariableScope())));
+        ExpressionStatement call = new ExpressionStatement(new MethodCallExpression(VariableExpression.THIS_EXPRESSION, name, ArgumentListExpression.EMPTY_ARGUMENTS));
+        call.setSourcePosition(part.get(0));
+        return call;
+    }
+
+    private static boolean canHoistDeclarations(ClassNode classNode, List<Statement> statements) {
+        boolean compileStatic = !classNode.getAnnotations(COMPILE_STATIC).isEmpty();
+        List<String> names = new ArrayList<String>();
+        References references = new References();
+        for (Statement statement : statements) {
+            DeclarationExpression declaration = getDeclaration(statement);
+            if (declaration == null) {
+                statement.visit(references);
+                continue;
+            }
+            if (declaration.isMultipleAssignmentDeclaration() || !declaration.getAnnotations().isEmpty() || declaration.getRightExpression() instanceof EmptyExpression) {
+                return false;
+            }
+            declaration.getRightExpression().visit(references);
+            VariableExpression variable = declaration.getVariableExpression();
+            if (compileStatic && variable.isDynamicTyped() || names.contains(variable.getName()) || classNode.getField(variable.getName()) != null) {
+                return false;
+            }
+            if (references.names.contains(variable.getName())) {
+                // the earlier references don't see the local variable but e.g. the variable of the binding
+                return false;
+            }
+            names.add(variable.getName());
+        }
+        return true;
+    }
+
+    /**
+     * Turns the top-level declarations into the fields and the assignments.
+     */
+    private static void hoistDeclarations(ClassNode classNode, List<Statement> statements) {
+        List<Expression> names = new ArrayList<Expression>();
+        for (Statement statement : statements) {
+            DeclarationExpression declaration = getDeclaration(statement);
+            if (declaration == null) {
+                continue;
+            }
+            VariableExpression variable = declaration.getVariableExpression();
+            classNode.addField(new FieldNode(variable.getName(), Modifier.PRIVATE, variable.getOriginType(), classNode, null));
+            VariableExpression target = new VariableExpression(variable.getName(), variable.getOriginType());
+            target.setSourcePosition(variable);
+            Token assign = Token.newSymbol(Types.ASSIGN, declaration.getOperation().getStartLine(), declaration.getOperation().getStartColumn());
+            BinaryExpression assignment = new BinaryExpression(target, assign, declaration.getRightExpression());
+            assignment.setSourcePosition(declaration);
+            ((ExpressionStatement) statement).setExpression(assignment);
+            names.add(new ConstantExpression(variable.getName()));
+        }
+        classNode.addField(new FieldNode(FIELDS_FIELD, Modifier.PRIVATE | Modifier.STATIC | Modifier.FINAL, ClassHelper.STRING_TYPE.makeArray(), classNode,
+                new ArrayExpression(ClassHelper.STRING_TYPE, names)));
+    }
+
+    private static DeclarationExpression getDeclaration(Statement statement) {
+        if (statement instanceof ExpressionStatement && ((ExpressionStatement) statement).getExpression() instanceof DeclarationExpression) {
+            return (DeclarationExpression) ((ExpressionStatement) statement).getExpression();
+        }
+        return null;
+    }
+
+    /**
+     * Collects the names of the variables referenced by the statements including the bodies of the closures.
+     */
+    private static final class References extends CodeVisitorSupport {
+
+        final Set<String> names = new HashSet<String>();
+
+        @Override public void visitVariableExpression(VariableExpression expression) {
+            names.add(expression.getName());
+        }
+
+    }
+
+    /**
+     * Estimates the size of the bytecode by counting the expressions and the statements.
+     * The closures are compiled into their own classes so their bodies are not counted.
+     */
+    private static final class Weigher extends CodeVisitorSupport {
+
+        int     weight;
+        boolean returns;
+
+        @Override public void visitExpressionStatement(ExpressionStatement statement) {
+            weight++;
+            super.visitExpressionStatement(statement);
+        }
+
+        @Override public void visitReturnStatement(ReturnStatement statement) {
+            returns = true;
+            super.visitReturnStatement(statement);
+        }
+
+        @Override public void visitMethodCallExpression(MethodCallExpression call) {
+            weight += 2;
+            super.visitMethodCallExpression(call);
+        }
+
+        @Override public void visitStaticMethodCallExpression(StaticMethodCallExpression call) {
+            weight += 2;
+            super.visitStaticMethodCallExpression(call);
+        }
+
+        @Override public void visitConstructorCallExpression(ConstructorCallExpression call) {
+            weight += 2;
+            super.visitConstructorCallExpression(call);
+        }
+
+        @Override public void visitPropertyExpression(PropertyExpression expression) {
+            weight++;
+            super.visitPropertyExpression(expression);
+        }
+
+        @Override public void visitBinaryExpression(BinaryExpression expression) {
+            weight++;
+            super.visitBinaryExpression(expression);
+        }
+
+        @Override public void visitGStringExpression(GStringExpression expression) {
+            weight += expression.getStrings().size();
+            super.visitGStringExpression(expression);
+        }
+
+        @Override public void visitVariableExpression(VariableExpression expression) {
+            weight++;
+        }
+
+        @Override public void visitConstantExpression(ConstantExpression expression) {
+            weight++;
+        }
+
+        @Override public void visitClosureExpression(ClosureExpression expression) {
+            weight += 2;
+        }
+
+    }
+
+}
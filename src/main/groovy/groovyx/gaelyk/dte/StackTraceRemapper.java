@@ -0,0 +1,106 @@
+package groovyx.gaelyk.dte;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Rewrites the stack trace frames of the template script so they point to the template lines.
+ *
+ * The template line of every script line is computed once when the remapper is created so
+ * each frame is translated by single array lookup. All frames of the script are rewritten
+ * in the exception itself, its causes and the suppressed exceptions.
+ *
+ * @author Vladimir Orany
+ */
+final class StackTraceRemapper {
+
+    private final String fileName;
+    private final String templateName;
+    private final int[]  templateLines;
+
+    /**
+     * Creates new remapper.
+     * @param fileName the file name of the script as reported in the stack traces
+     * @param templateName the name of the template reported instead of the script file name or <code>null</code> to keep the script file name
+     * @param templateLines the template line of each script line, zero for the lines which cannot be translated
+     */
+    StackTraceRemapper(String fileName, String templateName, int[] templateLines) {
+        this.fileName = fileName;
+        this.templateName = templateName;
+        this.templateLines = templateLines;
+    }
+
+    /**
+     * Computes the template line of each script line from the position index.
+     * @param index the index translating the script positions into the template positions
+     * @return the template line of each script line
+     */
+    static int[] templateLines(PositionIndex index) {
+        int[] lines = new int[index.getLineCount()];
+        for (int i = 0; i < lines.length; i++) {
+            Position position = index.get(i + 1, 1);
+            lines[i] = position == null ? 0 : position.getLineNumber();
+        }
+        return lines;
+    }
+
+    /**
+     * Returns the template line for given script line.
+     * @param scriptLine the line in the script
+     * @return the template line or zero if the script line cannot be translated
+     */
+    int getTemplateLine(int scriptLine) {
+        return scriptLine > 0 && scriptLine <= templateLines.length ? templateLines[scriptLine - 1] : 0;
+    }
+
+    /**
+     * Rewrites the frames of the script in the exception, its causes and suppressed exceptions.
+     * @param throwable the exception to remap
+     * @return the same exception
+     */
+    <T extends Throwable> T remap(T throwable) {
+        if (fileName == null) {
+            return throwable;
+        }
+        Set<Throwable> visited = Collections.newSetFromMap(new IdentityHashMap<Throwable, Boolean>());
+        Deque<Throwable> pending = new ArrayDeque<Throwable>();
+        pending.push(throwable);
+        while (!pending.isEmpty()) {
+            Throwable current = pending.pop();
+            if (!visited.add(current)) {
+                continue;
+            }
+            remapFrames(current);
+            if (current.getCause() != null) {
+                pending.push(current.getCause());
+            }
+            for (Throwable suppressed : current.getSuppressed()) {
+                pending.push(suppressed);
+            }
+        }
+        return throwable;
+    }
+
+    private void remapFrames(Throwable throwable) {
+        StackTraceElement[] elems = throwable.getStackTrace();
+        boolean changed = false;
+        for (int i = 0; i < elems.length; i++) {
+            StackTraceElement elem = elems[i];
+            if (elem == null || !fileName.equals(elem.getFileName())) {
+                continue;
+            }
+            int templateLine = getTemplateLine(elem.getLineNumber());
+            if (templateLine > 0) {
+                elems[i] = new StackTraceElement(elem.getClassName(), elem.getMethodName(), templateName == null ? elem.getFileName() : templateName, templateLine);
+                changed = true;
+            }
+        }
+        if (changed) {
+            throwable.setStackTrace(elems);
+        }
+    }
+
+}
@@ -0,0 +1,34 @@
+package groovyx.gaelyk.dte;
+
+import groovy.transform.CompileStatic;
+
+import org.codehaus.groovy.ast.AnnotationNode;
+import org.codehaus.groovy.ast.ClassHelper;
+import org.codehaus.groovy.ast.ClassNode;
+import org.codehaus.groovy.classgen.GeneratorContext;
+import org.codehaus.groovy.control.CompilationFailedException;
+import org.codehaus.groovy.control.CompilePhase;
+import org.codehaus.groovy.control.SourceUnit;
+import org.codehaus.groovy.control.customizers.CompilationCustomizer;
+
+/**
+ * Annotates the scripts of the templates with {@link CompileStatic} before the local
+ * transformations are collected so the script is compiled as if the annotation was written in the source.
+ *
+ * @author Vladimir Orany
+ */
+final class StaticCompilationCustomizer extends CompilationCustomizer {
+
+    private static final ClassNode COMPILE_STATIC = ClassHelper.make(CompileStatic.class);
+
+    StaticCompilationCustomizer() {
+        super(CompilePhase.CONVERSION);
+    }
+
+    @Override public void call(SourceUnit source, GeneratorContext context, ClassNode classNode) throws CompilationFailedException {
+        if (classNode.isScript() && classNode.getAnnotations(COMPILE_STATIC).isEmpty()) {
+            classNode.addAnnotation(new AnnotationNode(COMPILE_STATIC));
+        }
+    }
+
+}
@@ -0,0 +1,355 @@
+package groovyx.gaelyk.dte;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Generates the script which writes every piece of the template into the <code>out</code>
+ * {@link TemplateWriter} as soon as it is evaluated.
+ *
+ * The literal text is not part of the script. It is collected into the table of interned
+ * static texts written by {@link TemplateWriter#writeStatic(int)} and only the expressions
+ * are evaluated and written by {@link TemplateWriter#writeValue(Object)}. The literal text
+ * keeps the GString semantics of {@link GStringScriptGenerator} i.e. the backslash escapes
+ * are resolved and <code>$name</code> or <code>$name.property</code> is an expression.
+ *
+ * @author Vladimir Orany
+ */
+final class StreamingScriptGenerator extends ScriptGenerator {
+
+    private final List<String>         staticTexts   = new ArrayList<String>();
+    private final Map<String, Integer> staticIndices = new HashMap<String, Integer>();
+
+    private final StringBuilder        pending       = new StringBuilder();
+    private int                        pendingLine;
+    private int                        pendingColumn;
+
+    /**
+     * Whether the last text ended with single backslash which escapes the following ${ } expression.
+     */
+    private boolean                    escapeNext;
+    private int                        escapeLine;
+    private int                        escapeColumn;
+
+    StreamingScriptGenerator(char[] chars, ScriptBuffer sw) {
+        super(chars, sw);
+    }
+
+    void startScript() {
+        // nothing to open
+    }
+
+    void endScript() {
+        releaseEscape();
+        flushText();
+        sw.append("\n/* Generated by DebuggableTemplateEngine */");
+    }
+
+    /**
+     * Collects the literal text resolving the GString escapes and writes out the <code>$name</code> expressions.
+     *
+     * @param segment the text segment
+     */
+    void text(TemplateSegment segment) {
+        int line = segment.line;
+        int column = segment.column;
+        int i = segment.start;
+        while (i < segment.end) {
+            char c = chars[i];
+            if (c == '\n' || c == '\r') {
+                i += c == '\r' && i + 1 < segment.end && chars[i + 1] == '\n' ? 2 : 1;
+                line++;
+                column = 0;
+                appendText('\n', line, column);
+            } else if (c == '\\') {
+                column++;
+                if (i + 1 == segment.end) {
+                    escapeNext = true;
+                    escapeLine = line;
+                    escapeColumn = column;
+                    return;
+                }
+                int backslashLine = line;
+                int backslashColumn = column;
+                char next = chars[i + 1];
+                if (next == '\n' || next == '\r') {
+                    // line continuation
+                    i += next == '\r' && i + 2 < segment.end && chars[i + 2] == '\n' ? 3 : 2;
+                    line++;
+                    column = 0;
+                    continue;
+                }
+                int escapeEnd = i + 2;
+                int unescaped = -1;
+                switch (next) {
+                case 'n': unescaped = '\n'; break;
+                case 't': unescaped = '\t'; break;
+                case 'r': unescaped = '\r'; break;
+                case 'b': unescaped = '\b'; break;
+                case 'f': unescaped = '\f'; break;
+                case '\\':
+                case '$':
+                case '\'':
+                    unescaped = next;
+                    break;
+                case 'u':
+                    if (i + 6 <= segment.end) {
+                        unescaped = parseHex(i + 2, i + 6);
+                        escapeEnd = i + 6;
+                    }
+                    break;
+                default:
+                    if (next >= '0' && next <= '7') {
+                        int max = next <= '3' ? 3 : 2;
+                        int value = 0;
+                        int j = i + 1;
+                        while (j < segment.end && j < i + 1 + max && chars[j] >= '0' && chars[j] <= '7') {
+                            value = value * 8 + chars[j] - '0';
+                            j++;
+                        }
+                        unescaped = value;
+                        escapeEnd = j;
+                    }
+                }
+                if (unescaped < 0) {
+                    // not an escape sequence, keep the backslash
+                    appendText('\\', backslashLine, backslashColumn);
+                    i++;
+                    continue;
+                }
+                column += escapeEnd - i - 1;
+                appendText((char) unescaped, backslashLine, backslashColumn);
+                i = escapeEnd;
+            } else if (c == '$' && i + 1 < segment.end && isIdentifierStart(chars[i + 1])) {
+                column++;
+                int pathEnd = propertyPathEnd(i + 1, segment.end);
+                flushText();
+                sw.moveTo(line, column);
+                sw.append("out.writeValue(");
+                sw.appendSource(chars, i + 1, pathEnd);
+                sw.append(");\n");
+                column += pathEnd - i - 1;
+                i = pathEnd;
+            } else {
+                int runEnd = i + 1;
+                while (runEnd < segment.end && !isSpecial(chars[runEnd])) {
+                    runEnd++;
+                }
+                if (pending.length() == 0) {
+                    pendingLine = line;
+                    pendingColumn = column + 1;
+                }
+                pending.append(chars, i, runEnd - i);
+                column += runEnd - i;
+                i = runEnd;
+            }
+        }
+    }
+
+    void processGSstring(TemplateSegment segment) {
+        if (escapeNext) {
+            escapedExpression(segment);
+            return;
+        }
+        writeValue(segment, "out.writeValue(");
+    }
+
+    /**
+     * Writes out the following text as an expression until it reaches an end %>.
+     *
+     * @param segment the expression segment
+     */
+    void groovyExpression(TemplateSegment segment) {
+        if (escapeNext) {
+            escapedExpression(segment);
+            return;
+        }
+        writeValue(segment, "out.writeValue(");
+    }
+
+    /**
+     * Writes out the following text as an expression which is not escaped until it reaches an end %>.
+     *
+     * @param segment the expression segment
+     */
+    void rawExpression(TemplateSegment segment) {
+        releaseEscape();
+        writeValue(segment, "out.writeRaw(");
+    }
+
+    /**
+     * Appends the folded text to the pending literal text so it becomes part of the same static text.
+     *
+     * @param segment the constant segment
+     */
+    void constant(TemplateSegment segment) {
+        releaseEscape();
+        if (pending.length() == 0) {
+            pendingLine = segment.line;
+            pendingColumn = segment.column;
+        }
+        pending.append(segment.value);
+    }
+
+    /**
+     * Writes the following text as normal Groovy script code until it reaches an end %>.
+     *
+     * @param segment the section segment
+     */
+    void groovySection(TemplateSegment segment) {
+        releaseEscape();
+        flushText();
+        sw.moveTo(segment.line, segment.column);
+        /* Don't eat EOL chars in sections - as they are valid instruction separators.
+         * See http://jira.codehaus.org/browse/GROOVY-980
+         */
+        sw.appendSource(chars, segment.start, segment.end);
+        sw.moveTo(segment.endLine, segment.endColumn);
+        sw.append(";\n");
+    }
+
+    void templateCall(TemplateSegment segment, String statement) {
+        releaseEscape();
+        flushText();
+        sw.moveTo(segment.line, segment.column);
+        sw.append(statement);
+        sw.moveTo(segment.endLine, segment.endColumn);
+        sw.append(";\n");
+    }
+
+    String[] getStaticTexts() {
+        return staticTexts.toArray(new String[staticTexts.size()]);
+    }
+
+    private void writeValue(TemplateSegment segment, String call) {
+        flushText();
+        sw.moveTo(segment.line, segment.column);
+        boolean closure = isClosure(segment);
+        sw.append(closure ? call + "{" : call);
+        if (isBlank(segment)) {
+            sw.append("null");
+        }
+        copyWithoutNewLines(segment);
+        sw.moveTo(segment.endLine, segment.endColumn);
+        sw.append(closure ? "});\n" : ");\n");
+    }
+
+    /**
+     * The expression preceded by single backslash is written as literal text as the GString would do.
+     */
+    private void escapedExpression(TemplateSegment segment) {
+        escapeNext = false;
+        appendText('$', escapeLine, escapeColumn);
+        pending.append('{');
+        for (int i = segment.start; i < segment.end; i++) {
+            char c = chars[i];
+            if (c != '\n' && c != '\r') {
+                pending.append(c);
+            }
+        }
+        if (segment.closed) {
+            pending.append('}');
+        }
+    }
+
+    private void appendText(char c, int line, int column) {
+        if (pending.length() == 0) {
+            pendingLine = line;
+            pendingColumn = column;
+        }
+        pending.append(c);
+    }
+
+    /**
+     * Single backslash not followed by ${ } expression is literal text.
+     */
+    private void releaseEscape() {
+        if (escapeNext) {
+            escapeNext = false;
+            appendText('\\', escapeLine, escapeColumn);
+        }
+    }
+
+    private void flushText() {
+        if (pending.length() == 0) {
+            return;
+        }
+        String text = pending.toString().intern();
+        pending.setLength(0);
+        Integer index = staticIndices.get(text);
+        if (index == null) {
+            index = staticTexts.size();
+            staticTexts.add(text);
+            staticIndices.put(text, index);
+        }
+        sw.moveTo(pendingLine, pendingColumn);
+        sw.append("out.writeStatic(" + index + ");\n");
+    }
+
+    private int propertyPathEnd(int from, int to) {
+        int i = from + 1;
+        while (true) {
+            while (i < to && isIdentifierPart(chars[i])) {
+                i++;
+            }
+            if (i + 1 < to && chars[i] == '.' && isIdentifierStart(chars[i + 1])) {
+                i += 2;
+            } else {
+                return i;
+            }
+        }
+    }
+
+    private int parseHex(int from, int to) {
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = Character.digit(chars[i], 16);
+            if (digit < 0) {
+                return -1;
+            }
+            value = value * 16 + digit;
+        }
+        return value;
+    }
+
+    private boolean isBlank(TemplateSegment segment) {
+        for (int i = segment.start; i < segment.end; i++) {
+            if (!Character.isWhitespace(chars[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tells whether the expression is the closure such as <code>${ -> name }</code> or <code>${ w -> w << name }</code>
+     * which is called by the GString instead of being written.
+     */
+    private boolean isClosure(TemplateSegment segment) {
+        for (int i = segment.start; i < segment.end; i++) {
+            char c = chars[i];
+            if (c == '-') {
+                return i + 1 < segment.end && chars[i + 1] == '>';
+            }
+            if (!Character.isWhitespace(c) && !Character.isJavaIdentifierPart(c) && c != ',' && c != '.' && c != '<' && c != '>' && c != '[' && c != ']') {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isSpecial(char c) {
+        return c == '\n' || c == '\r' || c == '\\' || c == '$';
+    }
+
+    private static boolean isIdentifierStart(char c) {
+        return c != '$' && Character.isJavaIdentifierStart(c);
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return c != '$' && Character.isJavaIdentifierPart(c);
+    }
+
+}
@@ -0,0 +1,392 @@
+package groovyx.gaelyk.dte;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Thread-safe cache of compiled templates used by {@link DebuggableTemplateEngine}.
+ *
+ * Templates are kept under the key identifying their source (e.g. the file path)
+ * together with the stamp telling whether the source has changed since
+ * the template was compiled (e.g. last modification time and size of the file).
+ * When the stamp differs the template is considered stale and it is compiled again.
+ *
+ * The least recently used templates are evicted when there are more templates
+ * than maximum size or when total weight of the templates exceeds
+ * the maximum weight. The weight of the template is the length
+ * of its generated script.
+ *
+ * Concurrent requests for the same missing template compile it only once,
+ * the other requests wait for the result. The template compiled by the load which started
+ * before the key was invalidated or before another load of the same key is returned
+ * to the requests but it is not stored, so it never replaces newer template.
+ *
+ * @author Vladimir Orany
+ */
+public class TemplateCache {
+
+    private static final Charset                                        UTF_8      = Charset.forName("UTF-8");
+    private static final int                                            CHUNK_SIZE = 8192;
+
+    private final int                                                   maximumSize;
+    private final long                                                  maximumWeight;
+
+    private final Lock                                                  lock      = new ReentrantLock();
+    private final LinkedHashMap<Object, Entry>                          entries   = new LinkedHashMap<Object, Entry>(16, 0.75f, true);
+    private final ConcurrentMap<List<Object>, Load>                     loading   = new ConcurrentHashMap<List<Object>, Load>();
+    private long                                                        weight;
+    private long                                                        sequence;
+
+    private final AtomicLong                                            hits      = new AtomicLong();
+    private final AtomicLong                                            misses    = new AtomicLong();
+    private final AtomicLong                                            loads     = new AtomicLong();
+    private final AtomicLong                                            evictions = new AtomicLong();
+
+    /**
+     * Creates new cache limited only by the number of templates.
+     * @param maximumSize maximum number of templates kept in the cache
+     */
+    public TemplateCache(int maximumSize) {
+        this(maximumSize, Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates new cache limited by the number of templates and their total weight.
+     * @param maximumSize maximum number of templates kept in the cache
+     * @param maximumWeight maximum total length of the scripts of the templates kept in the cache
+     */
+    public TemplateCache(int maximumSize, long maximumWeight) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("Maximum size must be positive: " + maximumSize);
+        }
+        if (maximumWeight < 1) {
+            throw new IllegalArgumentException("Maximum weight must be positive: " + maximumWeight);
+        }
+        this.maximumSize = maximumSize;
+        this.maximumWeight = maximumWeight;
+    }
+
+    /**
+     * Returns the cached template or compiles it using given loader if it is missing or stale.
+     * @param key identity of the template source
+     * @param stamp stamp of the template source, the template is compiled again if the stamp has changed
+     * @param loader loader compiling the template
+     * @return the cached or newly compiled template
+     * @throws IOException if the template cannot be read
+     */
+    DebuggableTemplate get(Object key, Object stamp, Callable<DebuggableTemplate> loader) throws IOException {
+        DebuggableTemplate cached = getIfPresent(key, stamp);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached;
+        }
+        misses.incrementAndGet();
+
+        List<Object> loadingKey = Arrays.asList(key, stamp);
+        Load load = new Load(loader, nextSequence());
+        Load running = loading.putIfAbsent(loadingKey, load);
+        if (running == null) {
+            try {
+                loads.incrementAndGet();
+                load.run();
+                DebuggableTemplate template = await(load);
+                put(key, stamp, template, load);
+                return template;
+            } finally {
+                loading.remove(loadingKey, load);
+            }
+        }
+        return await(running);
+    }
+
+    private long nextSequence() {
+        lock.lock();
+        try {
+            return ++sequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private DebuggableTemplate getIfPresent(Object key, Object stamp) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(key);
+            if (entry == null || !equal(entry.stamp, stamp)) {
+                return null;
+            }
+            return entry.template;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void put(Object key, Object stamp, DebuggableTemplate template, Load load) {
+        lock.lock();
+        try {
+            Entry previous = entries.get(key);
+            if (load.invalidated || previous != null && previous.sequence > load.sequence) {
+                // the template was invalidated or loaded again while it was being compiled
+                return;
+            }
+            Entry entry = new Entry(stamp, template, load.sequence);
+            entries.put(key, entry);
+            if (previous != null) {
+                weight -= previous.weight;
+            }
+            weight += entry.weight;
+            Iterator<Map.Entry<Object, Entry>> eldest = entries.entrySet().iterator();
+            while (entries.size() > 1 && (entries.size() > maximumSize || weight > maximumWeight)) {
+                Entry evicted = eldest.next().getValue();
+                eldest.remove();
+                weight -= evicted.weight;
+                evictions.incrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static DebuggableTemplate await(Load task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException interrupted = new InterruptedIOException("Interrupted while waiting for the template to be compiled");
+            interrupted.initCause(e);
+            throw interrupted;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("Failed to compile template", cause);
+        }
+    }
+
+    /**
+     * Removes the template from the cache.
+     * @param key identity of the template source
+     */
+    void invalidate(Object key) {
+        lock.lock();
+        try {
+            Entry removed = entries.remove(key);
+            if (removed != null) {
+                weight -= removed.weight;
+            }
+            for (Map.Entry<List<Object>, Load> running : loading.entrySet()) {
+                if (equal(running.getKey().get(0), key)) {
+                    running.getValue().invalidated = true;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes all templates from the cache.
+     */
+    public void invalidateAll() {
+        lock.lock();
+        try {
+            entries.clear();
+            weight = 0;
+            for (Load running : loading.values()) {
+                running.invalidated = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of templates in the cache.
+     * @return the number of templates in the cache
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the total weight of the templates in the cache.
+     * @return the total weight of the templates in the cache
+     */
+    public long getWeight() {
+        lock.lock();
+        try {
+            return weight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    public long getMaximumWeight() {
+        return maximumWeight;
+    }
+
+    /**
+     * Returns the number of requests which found the template in the cache.
+     * @return the number of requests which found the template in the cache
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of requests which haven't found the template in the cache.
+     * @return the number of requests which haven't found the template in the cache
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of the templates compiled by this cache. This is lower
+     * than miss count if concurrent requests waited for the same template.
+     * @return the number of the templates compiled by this cache
+     */
+    public long getLoadCount() {
+        return loads.get();
+    }
+
+    /**
+     * Returns the number of the templates evicted from the cache.
+     * @return the number of the templates evicted from the cache
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    @Override public String toString() {
+        return "TemplateCache[size=" + size() + ", weight=" + getWeight() + ", hits=" + getHitCount() + ", misses=" + getMissCount() + ", loads=" + getLoadCount() + ", evictions=" + getEvictionCount() + "]";
+    }
+
+    /**
+     * Returns the hash of the template text which can be used as the template stamp.
+     * @param text the template text
+     * @return the hash of the template text
+     */
+    static String hash(String text) {
+        return hash(CharBuffer.wrap(text));
+    }
+
+    /**
+     * Returns the hash of the template text held by the buffer of the parser.
+     * The hash is the same as the hash of the text as {@link String}.
+     * @param chars the buffer holding the template text
+     * @param length the length of the template text
+     * @return the hash of the template text
+     */
+    static String hash(char[] chars, int length) {
+        return hash(CharBuffer.wrap(chars, 0, length));
+    }
+
+    /**
+     * Digests the text encoded into UTF-8 by small chunks so the text is never copied as a whole.
+     */
+    private static String hash(CharBuffer text) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            CharsetEncoder encoder = UTF_8.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+            ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+            while (encoder.encode(text, chunk, true).isOverflow()) {
+                update(sha, chunk);
+            }
+            while (encoder.flush(chunk).isOverflow()) {
+                update(sha, chunk);
+            }
+            update(sha, chunk);
+            byte[] digest = sha.digest();
+            StringBuilder hash = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hash.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hash.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+    }
+
+    private static void update(MessageDigest sha, ByteBuffer chunk) {
+        chunk.flip();
+        sha.update(chunk);
+        chunk.clear();
+    }
+
+    private static boolean equal(Object first, Object second) {
+        return first == null ? second == null : first.equals(second);
+    }
+
+    private static final class Entry {
+        final Object             stamp;
+        final DebuggableTemplate template;
+        final long               weight;
+
+        /**
+         * The sequence number of the load which compiled the template.
+         */
+        final long               sequence;
+
+        Entry(Object stamp, DebuggableTemplate template, long sequence) {
+            this.stamp = stamp;
+            this.template = template;
+            this.weight = template.getWeight();
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * Compilation of the template numbered in the order the loads have started.
+     */
+    private static final class Load extends FutureTask<DebuggableTemplate> {
+        final long sequence;
+
+        /**
+         * Whether the key has been invalidated since the load started, guarded by the lock of the cache.
+         */
+        boolean    invalidated;
+
+        Load(Callable<DebuggableTemplate> loader, long sequence) {
+            super(loader);
+            this.sequence = sequence;
+        }
+    }
+
+}
@@ -0,0 +1,37 @@
+package groovyx.gaelyk.dte;
+
+/**
+ * Receives the metrics of the templates compiled and rendered by {@link DebuggableTemplateEngine}.
+ *
+ * The templates are identified by their names, i.e. the file names or the names used by
+ * the include and layout directives. The listener is called synchronously by the compiling
+ * and rendering threads so it must be thread-safe and fast. {@link TemplateStatistics} is
+ * the built-in implementation collecting the histograms of the render times.
+ *
+ * @see DebuggableTemplateEngine#setTemplateListener(TemplateListener)
+ *
+ * @author Vladimir Orany
+ */
+public interface TemplateListener {
+
+    /**
+     * Called when the template has been compiled.
+     * @param name the name of the template
+     * @param parseNanos the time spent generating the script from the template in nanoseconds
+     * @param compileNanos the time spent compiling the script in nanoseconds
+     * @param scriptLength the length of the generated script
+     * @param positionIndexSize the approximate number of bytes occupied by the position index
+     */
+    void templateCompiled(String name, long parseNanos, long compileNanos, int scriptLength, long positionIndexSize);
+
+    /**
+     * Called when the template has been rendered. The time and the characters include the templates
+     * included by the template and its layouts.
+     * @param name the name of the template
+     * @param nanos the time spent rendering the template in nanoseconds
+     * @param charactersWritten the number of characters written by the template
+     * @param failure the exception thrown by the template or <code>null</code> if the render succeeded
+     */
+    void templateRendered(String name, long nanos, long charactersWritten, Throwable failure);
+
+}
@@ -0,0 +1,223 @@
+package groovyx.gaelyk.dte;
+
+import groovyx.gaelyk.dte.TemplateSegment.Kind;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Scans the template characters and splits them into {@link TemplateSegment}s.
+ *
+ * The parser works directly on the character array, tracks the line and column
+ * numbers in local variables and does not copy any of the template text. The segments
+ * found are the same as the ones recognized by the original character by character
+ * parsing. The new lines are recognized in the same way as {@link java.io.LineNumberReader} does.
+ *
+ * @author Vladimir Orany
+ */
+final class TemplateParser {
+
+    /**
+     * Names of the directives. Any other <code>&lt;%@</code> starts an ordinary section,
+     * e.g. <code>&lt;%@groovy.transform.Field String greeting = "Hi" %&gt;</code>.
+     */
+    private static final String[] DIRECTIVES = { "include", "layout", "body", "model", "cache", "endcache" };
+
+    private final char[] chars;
+    private final int    length;
+
+    /**
+     * Creates new parser for given template characters.
+     * @param chars the template characters
+     * @param length number of characters used in the array
+     */
+    TemplateParser(char[] chars, int length) {
+        this.chars = chars;
+        this.length = length;
+    }
+
+    /**
+     * Returns the characters of the template.
+     * @return the characters of the template
+     */
+    char[] getChars() {
+        return chars;
+    }
+
+    /**
+     * Returns the length of the template.
+     * @return the length of the template
+     */
+    int getLength() {
+        return length;
+    }
+
+    /**
+     * Splits the template into the segments.
+     * @return the segments of the template in the order they appears in the template
+     */
+    List<TemplateSegment> parse() {
+        List<TemplateSegment> segments = new ArrayList<TemplateSegment>();
+        int offset = 0;
+        int line = 1;
+        int column = 0;
+
+        int textStart = 0;
+        int textLine = line;
+        int textColumn = column;
+
+        while (offset < length) {
+            char c = chars[offset];
+            if (c == '<' && offset + 1 < length && chars[offset + 1] == '%') {
+                addText(segments, textStart, offset, textLine, textColumn, line, column);
+                Kind kind = Kind.SECTION;
+                if (offset + 3 < length && chars[offset + 2] == '=' && chars[offset + 3] == '=') {
+                    kind = Kind.RAW_EXPRESSION;
+                } else if (offset + 2 < length && chars[offset + 2] == '=') {
+                    kind = Kind.EXPRESSION;
+                } else if (offset + 2 < length && chars[offset + 2] == '@' && isDirective(offset + 3)) {
+                    kind = Kind.DIRECTIVE;
+                }
+                int delimiterLength = kind == Kind.SECTION ? 2 : kind == Kind.RAW_EXPRESSION ? 4 : 3;
+                offset += delimiterLength;
+                column += delimiterLength;
+
+                int contentStart = offset;
+                int contentLine = line;
+                int contentColumn = column;
+                int contentEnd = length;
+                boolean closed = false;
+                while (offset < length) {
+                    c = chars[offset];
+                    if (c == '%') {
+                        if (offset + 1 < length && chars[offset + 1] == '>') {
+                            contentEnd = offset;
+                            offset += 2;
+                            column += 2;
+                            closed = true;
+                            break;
+                        }
+                        // the character following the percent sign is never taken as the end of the section
+                        offset++;
+                        column++;
+                        if (offset == length) {
+                            break;
+                        }
+                        c = chars[offset];
+                    }
+                    if (c == '\n' || c == '\r') {
+                        offset += newLineLength(offset);
+                        line++;
+                        column = 0;
+                    } else {
+                        offset++;
+                        column++;
+                    }
+                }
+                segments.add(new TemplateSegment(kind, contentStart, contentEnd, contentLine, contentColumn, line, column, closed));
+
+                textStart = offset;
+                textLine = line;
+                textColumn = column;
+                continue;
+            }
+            if (c == '$' && offset + 1 < length && chars[offset + 1] == '{') {
+                addText(segments, textStart, offset, textLine, textColumn, line, column);
+                offset += 2;
+                column += 2;
+
+                int contentStart = offset;
+                int contentLine = line;
+                int contentColumn = column;
+                int contentEnd = length;
+                boolean closed = false;
+                while (offset < length) {
+                    c = chars[offset];
+                    if (c == '}') {
+                        contentEnd = offset;
+                        offset++;
+                        column++;
+                        closed = true;
+                        break;
+                    }
+                    if (c == '\n' || c == '\r') {
+                        offset += newLineLength(offset);
+                        line++;
+                        column = 0;
+                    } else {
+                        offset++;
+                        column++;
+                    }
+                }
+                segments.add(new TemplateSegment(Kind.GSTRING, contentStart, contentEnd, contentLine, contentColumn, line, column, closed));
+
+                textStart = offset;
+                textLine = line;
+                textColumn = column;
+                continue;
+            }
+            if (c == '\n' || c == '\r') {
+                offset += newLineLength(offset);
+                line++;
+                column = 0;
+            } else {
+                offset++;
+                column++;
+            }
+        }
+        addText(segments, textStart, length, textLine, textColumn, line, column);
+        return segments;
+    }
+
+    /**
+     * Tells whether the section starting by <code>&lt;%@</code> is a directive, i.e. whether the optional white space
+     * at given offset is followed by the name of the directive and the white space or the end of the section.
+     * @param offset offset of the character following <code>&lt;%@</code>
+     */
+    private boolean isDirective(int offset) {
+        while (offset < length && Character.isWhitespace(chars[offset])) {
+            offset++;
+        }
+        int nameStart = offset;
+        while (offset < length && Character.isJavaIdentifierPart(chars[offset])) {
+            offset++;
+        }
+        if (offset < length && !Character.isWhitespace(chars[offset]) && !(chars[offset] == '%' && offset + 1 < length && chars[offset + 1] == '>')) {
+            return false;
+        }
+        for (String directive : DIRECTIVES) {
+            if (isName(directive, nameStart, offset)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isName(String name, int start, int end) {
+        if (name.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != chars[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of characters forming the new line at given offset.
+     * @param offset offset of the new line character
+     * @return two for <code>\r\n</code> sequence, one otherwise
+     */
+    int newLineLength(int offset) {
+        return chars[offset] == '\r' && offset + 1 < length && chars[offset + 1] == '\n' ? 2 : 1;
+    }
+
+    private static void addText(List<TemplateSegment> segments, int start, int end, int line, int column, int endLine, int endColumn) {
+        if (start < end) {
+            segments.add(new TemplateSegment(Kind.TEXT, start, end, line, column, endLine, endColumn, true));
+        }
+    }
+
+}
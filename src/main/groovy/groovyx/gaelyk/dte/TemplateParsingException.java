@@ -1,7 +1,6 @@
 package groovyx.gaelyk.dte;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -18,13 +17,31 @@ public class TemplateParsingException extends RuntimeException {
 
     private final String                  templateSource;
     private final String                  parsedScript;
-    private final Map<Position, Position> positionsMap;
+    private final PositionIndex           positionIndex;
+    private final String                  templateName;
 
     public TemplateParsingException(String templateSource, String parsedScript, Map<Position, Position> positionsMap, MultipleCompilationErrorsException e) {
+        this(templateSource, parsedScript, PositionIndex.of(positionsMap), e, null);
+    }
+
+    TemplateParsingException(String templateSource, String parsedScript, PositionIndex positionIndex, MultipleCompilationErrorsException e) {
+        this(templateSource, parsedScript, positionIndex, e, null);
+    }
+
+    TemplateParsingException(String templateSource, String parsedScript, PositionIndex positionIndex, MultipleCompilationErrorsException e, String templateName) {
         super(e);
         this.templateSource = templateSource;
         this.parsedScript = parsedScript;
-        this.positionsMap = positionsMap;
+        this.positionIndex = positionIndex;
+        this.templateName = templateName;
+    }
+
+    /**
+     * Returns the name of the included template or the layout which failed to compile.
+     * @return the name of the template or <code>null</code> if the template hasn't been resolved by {@link TemplateResolver}
+     */
+    public String getTemplateName() {
+        return templateName;
     }
 
     String getTemplateSource() {
@@ -35,8 +52,12 @@ public class TemplateParsingException extends RuntimeException {
         return parsedScript;
     }
 
+    PositionIndex getPositionIndex() {
+        return positionIndex;
+    }
+
     Map<Position, Position> getPositionsMap() {
-        return Collections.unmodifiableMap(positionsMap);
+        return positionIndex.asMap();
     }
     
     @Override public String getMessage() {
@@ -55,8 +76,14 @@ public class TemplateParsingException extends RuntimeException {
             SyntaxException compilationError = ((SyntaxErrorMessage) message).getCause();
             
             Position errorPosition = Position.at(compilationError.getStartLine(), compilationError.getStartColumn());
-            details.addAll(collectCompilationErrorDetail(sourceLines, compilationError.getCause().getMessage(), 
-                    getPositionsMap().get(errorPosition)));
+            Position templatePosition = getPositionIndex().get(errorPosition);
+            // errors reported by the static type checker have no cause
+            String errorMessage = compilationError.getCause() == null ? compilationError.getOriginalMessage() : compilationError.getCause().getMessage();
+            if (templateName != null) {
+                errorMessage += " (in template " + templateName + ")";
+            }
+            details.addAll(collectCompilationErrorDetail(sourceLines, errorMessage, 
+                    templatePosition == null ? Position.NOT_FOUND : templatePosition));
             details.addAll(collectCompilationErrorDetail(scriptLines, "The template was parsed into following script:", errorPosition));
             details.add("");
         }
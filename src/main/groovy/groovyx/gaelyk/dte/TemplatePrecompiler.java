@@ -0,0 +1,296 @@
+package groovyx.gaelyk.dte;
+
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.GroovyRuntimeException;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.codehaus.groovy.control.CompilationUnit;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.MultipleCompilationErrorsException;
+import org.codehaus.groovy.control.Phases;
+import org.codehaus.groovy.control.SourceUnit;
+import org.codehaus.groovy.tools.GroovyClass;
+
+/**
+ * Compiles the templates ahead of time into the class files which can be loaded
+ * by {@link PrecompiledTemplateLoader} without compiling the templates again.
+ *
+ * Each template is stored as the script class (with the classes of its closures)
+ * and the metadata file holding the static texts and the {@link PositionIndex}
+ * of the template so the errors are reported with the template positions in the same
+ * way as for the templates compiled at runtime. The templates are stored in the default
+ * package under the names derived from the template names, see {@link #getClassName(String)}.
+ * Templates using the include or layout directives cannot be precompiled.
+ *
+ * The precompiler can be run from the command line e.g. by Gradle <code>JavaExec</code> task:
+ * <pre>
+ * java groovyx.gaelyk.dte.TemplatePrecompiler [--streaming] [--compact-whitespace] [--fold-constants] [--escaping NAME] [--charset NAME] templatesDir outputDir
+ * </pre>
+ *
+ * The constants are folded using the escaping of the precompiler which is stored in the metadata. The engine compiles
+ * the template again if it escapes the values differently, see {@link DebuggableTemplateEngine#setConstantFolding(boolean)}.
+ *
+ * @author Vladimir Orany
+ */
+public class TemplatePrecompiler {
+
+    static final String           CLASS_PREFIX       = "PrecompiledTemplate_";
+    static final String           METADATA_EXTENSION = ".dte";
+    static final int              METADATA_MAGIC     = 0x44544502;
+
+    private final ClassLoader     parentLoader;
+    private CompilerConfiguration configuration      = new CompilerConfiguration();
+    private boolean               streaming;
+    private boolean               compactWhitespace;
+    private boolean               constantFolding;
+    private Escaping              escaping           = Escaping.NONE;
+    private Charset               charset            = Charset.defaultCharset();
+
+    public TemplatePrecompiler() {
+        this(TemplatePrecompiler.class.getClassLoader());
+    }
+
+    /**
+     * @param parentLoader class loader used to resolve the classes referenced from the templates
+     */
+    public TemplatePrecompiler(ClassLoader parentLoader) {
+        this.parentLoader = parentLoader;
+    }
+
+    /**
+     * Precompiles all files inside the directory and its subdirectories. The names of the templates
+     * are the paths relative to the directory separated by forward slashes.
+     *
+     * @param templatesDir directory containing the templates
+     * @param outputDir directory to write the class files and the metadata to
+     * @return the names of the precompiled templates
+     * @throws IOException if the templates cannot be read or written
+     * @throws TemplateParsingException if any template contains an error
+     */
+    public List<String> precompileAll(File templatesDir, File outputDir) throws IOException {
+        List<String> names = new ArrayList<String>();
+        collect(templatesDir, "", names);
+        for (String name : names) {
+            precompile(name, TemplateText.read(new File(templatesDir, name).toPath(), charset).toString(), outputDir);
+        }
+        return names;
+    }
+
+    private static void collect(File dir, String prefix, List<String> names) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                collect(file, prefix + file.getName() + "/", names);
+            } else {
+                names.add(prefix + file.getName());
+            }
+        }
+    }
+
+    /**
+     * Precompiles single template.
+     *
+     * @param name the name of the template used to load it by {@link PrecompiledTemplateLoader}
+     * @param text the text of the template
+     * @param outputDir directory to write the class files and the metadata to
+     * @throws IOException if the template cannot be written
+     * @throws TemplateParsingException if the template contains an error
+     */
+    public void precompile(String name, String text, File outputDir) throws IOException {
+        String className = getClassName(name);
+        String fileName = className + ".groovy";
+
+        DebuggableTemplate template = new DebuggableTemplate();
+        template.setStreaming(streaming);
+        template.setCompactWhitespace(compactWhitespace);
+        template.setConstantFolding(constantFolding);
+        template.setEscaping(escaping);
+        String script = template.parse(text);
+        if (template.getIncludeNames().length > 0 || template.getLayoutName() != null) {
+            throw new GroovyRuntimeException("Template " + name + " uses include or layout directive which is not supported by the precompiled templates");
+        }
+
+        CompilerConfiguration templateConfiguration = DebuggableTemplateEngine.withScriptSplitting(template.getModel() == null ? configuration : DebuggableTemplateEngine.withStaticCompilation(configuration), ScriptSplitter.DEFAULT_MAXIMUM_WEIGHT);
+        CompilationUnit unit = new CompilationUnit(templateConfiguration, null, new GroovyClassLoader(parentLoader, templateConfiguration));
+        unit.addSource(new SourceUnit(fileName, script, templateConfiguration, unit.getClassLoader(), unit.getErrorCollector()));
+        try {
+            unit.compile(Phases.CLASS_GENERATION);
+        } catch (MultipleCompilationErrorsException e) {
+            throw new TemplateParsingException(text, script, template.getPositionIndex(), e);
+        }
+
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("Cannot create output directory " + outputDir);
+        }
+        for (Object compiled : unit.getClasses()) {
+            GroovyClass groovyClass = (GroovyClass) compiled;
+            write(new File(outputDir, groovyClass.getName() + ".class"), groovyClass.getBytes());
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(outputDir, className + METADATA_EXTENSION))));
+        try {
+            out.writeInt(METADATA_MAGIC);
+            out.writeUTF(name);
+            out.writeUTF(className);
+            out.writeUTF(fileName);
+            out.writeUTF(TemplateCache.hash(text));
+            out.writeUTF(constantFolding ? escaping.name() : "");
+            out.writeInt(template.getWeight());
+            String[] staticTexts = template.getStaticTexts();
+            out.writeInt(staticTexts.length);
+            for (String staticText : staticTexts) {
+                out.writeInt(staticText.length());
+                out.writeChars(staticText);
+            }
+            template.getPositionIndex().writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void write(File file, byte[] bytes) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Returns the name of the class of the precompiled template. Letters and digits are kept,
+     * other characters are replaced by underscore followed by their hexadecimal code.
+     *
+     * @param name the name of the template
+     * @return the name of the class of the precompiled template
+     */
+    static String getClassName(String name) {
+        StringBuilder className = new StringBuilder(CLASS_PREFIX.length() + name.length() * 2);
+        className.append(CLASS_PREFIX);
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '\\') {
+                c = '/';
+            }
+            if (c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9') {
+                className.append(c);
+            } else if (c < 0x100) {
+                className.append('_').append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xF, 16));
+            } else {
+                className.append("_u");
+                for (int shift = 12; shift >= 0; shift -= 4) {
+                    className.append(Character.forDigit((c >> shift) & 0xF, 16));
+                }
+            }
+        }
+        return className.toString();
+    }
+
+    /**
+     * @param streaming true if the templates should be compiled in the streaming mode, see {@link DebuggableTemplateEngine#setStreaming(boolean)}
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * @param compactWhitespace true if the white space of the literal text should be collapsed, see {@link DebuggableTemplateEngine#setCompactWhitespace(boolean)}
+     */
+    public void setCompactWhitespace(boolean compactWhitespace) {
+        this.compactWhitespace = compactWhitespace;
+    }
+
+    public boolean isCompactWhitespace() {
+        return compactWhitespace;
+    }
+
+    /**
+     * @param constantFolding true if the constant expressions should be folded into the literal text, see {@link DebuggableTemplateEngine#setConstantFolding(boolean)}
+     */
+    public void setConstantFolding(boolean constantFolding) {
+        this.constantFolding = constantFolding;
+    }
+
+    public boolean isConstantFolding() {
+        return constantFolding;
+    }
+
+    /**
+     * @param escaping the escaping of the folded constants which must be the same as the escaping of the engine loading the templates,
+     * see {@link DebuggableTemplateEngine#setEscaping(Escaping)}
+     */
+    public void setEscaping(Escaping escaping) {
+        this.escaping = escaping == null ? Escaping.NONE : escaping;
+    }
+
+    public Escaping getEscaping() {
+        return escaping;
+    }
+
+    /**
+     * @param charset the charset of the template files read by {@link #precompileAll(File, File)}, the platform charset by default
+     */
+    public void setCharset(Charset charset) {
+        this.charset = charset;
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * @param configuration compiler configuration used to compile the templates
+     */
+    public void setConfiguration(CompilerConfiguration configuration) {
+        this.configuration = configuration;
+    }
+
+    public CompilerConfiguration getConfiguration() {
+        return configuration;
+    }
+
+    public static void main(String[] args) throws IOException {
+        TemplatePrecompiler precompiler = new TemplatePrecompiler();
+        int index = 0;
+        boolean valid = true;
+        while (valid && index < args.length && args[index].startsWith("--")) {
+            String option = args[index++];
+            if ("--streaming".equals(option)) {
+                precompiler.setStreaming(true);
+            } else if ("--compact-whitespace".equals(option)) {
+                precompiler.setCompactWhitespace(true);
+            } else if ("--fold-constants".equals(option)) {
+                precompiler.setConstantFolding(true);
+            } else if ("--escaping".equals(option) && index < args.length) {
+                precompiler.setEscaping(Escaping.valueOf(args[index++]));
+            } else if ("--charset".equals(option) && index < args.length) {
+                precompiler.setCharset(Charset.forName(args[index++]));
+            } else {
+                valid = false;
+            }
+        }
+        if (!valid || args.length - index != 2) {
+            System.err.println("Usage: TemplatePrecompiler [--streaming] [--compact-whitespace] [--fold-constants] [--escaping NAME] [--charset NAME] templatesDir outputDir");
+            System.exit(1);
+        }
+        List<String> names = precompiler.precompileAll(new File(args[index]), new File(args[index + 1]));
+        System.out.println("Precompiled " + names.size() + " templates into " + args[index + 1]);
+    }
+
+}
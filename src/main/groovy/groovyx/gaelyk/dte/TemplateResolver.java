@@ -0,0 +1,25 @@
+package groovyx.gaelyk.dte;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Provides the text of the templates referenced by <code>&lt;%@ include file="name" %&gt;</code>
+ * and <code>&lt;%@ layout file="name" %&gt;</code> directives.
+ *
+ * The referenced templates are resolved and compiled together with the template
+ * which references them, see {@link DebuggableTemplateEngine#setTemplateResolver(TemplateResolver)}.
+ *
+ * @author Vladimir Orany
+ */
+public interface TemplateResolver {
+
+    /**
+     * Opens the template of given name.
+     * @param name the name of the template as written in the directive
+     * @return the reader of the template text or <code>null</code> if there is no such template
+     * @throws IOException if the template cannot be read
+     */
+    Reader resolve(String name) throws IOException;
+
+}
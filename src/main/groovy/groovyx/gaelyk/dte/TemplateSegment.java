@@ -0,0 +1,112 @@
+package groovyx.gaelyk.dte;
+
+/**
+ * Part of the template found by {@link TemplateParser}.
+ *
+ * The segment only points into the template characters so no text
+ * is copied while the template is being scanned.
+ *
+ * Positions kept by the segment are the positions of the last character
+ * consumed, the column is zero right after the new line.
+ *
+ * @author Vladimir Orany
+ */
+final class TemplateSegment {
+
+    /**
+     * Kind of the template segment.
+     */
+    enum Kind {
+        /**
+         * Literal text copied into the output.
+         */
+        TEXT,
+        /**
+         * &lt;%= %&gt; expression.
+         */
+        EXPRESSION,
+        /**
+         * &lt;%== %&gt; expression written without escaping.
+         */
+        RAW_EXPRESSION,
+        /**
+         * ${ } expression.
+         */
+        GSTRING,
+        /**
+         * &lt;% %&gt; section of Groovy code.
+         */
+        SECTION,
+        /**
+         * &lt;%@ %&gt; directive such as include or layout.
+         */
+        DIRECTIVE,
+        /**
+         * Expression evaluated when the template is compiled, see {@link ConstantFolder}.
+         */
+        CONSTANT
+    }
+
+    final Kind    kind;
+
+    /**
+     * Offset of the first character of the segment content.
+     */
+    final int     start;
+
+    /**
+     * Offset after the last character of the segment content.
+     */
+    final int     end;
+
+    /**
+     * Line of the last character consumed before the segment content.
+     */
+    final int     line;
+
+    /**
+     * Column of the last character consumed before the segment content.
+     */
+    final int     column;
+
+    /**
+     * Line of the last character consumed by the segment including the closing delimiter.
+     */
+    final int     endLine;
+
+    /**
+     * Column of the last character consumed by the segment including the closing delimiter.
+     */
+    final int     endColumn;
+
+    /**
+     * Whether the closing delimiter was found.
+     */
+    final boolean closed;
+
+    /**
+     * Text of the constant segment written instead of the expression, <code>null</code> for other kinds.
+     */
+    final String  value;
+
+    TemplateSegment(Kind kind, int start, int end, int line, int column, int endLine, int endColumn, boolean closed) {
+        this(kind, start, end, line, column, endLine, endColumn, closed, null);
+    }
+
+    TemplateSegment(Kind kind, int start, int end, int line, int column, int endLine, int endColumn, boolean closed, String value) {
+        this.kind = kind;
+        this.start = start;
+        this.end = end;
+        this.line = line;
+        this.column = column;
+        this.endLine = endLine;
+        this.endColumn = endColumn;
+        this.closed = closed;
+        this.value = value;
+    }
+
+    @Override public String toString() {
+        return kind + "[" + start + "," + end + ")@" + Position.at(line, column);
+    }
+
+}
@@ -0,0 +1,191 @@
+package groovyx.gaelyk.dte;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link TemplateListener} collecting the statistics of each template in memory.
+ *
+ * The render times are kept in lock-free histograms with power of two buckets so the
+ * percentiles are approximate. Use {@link #toString()} to dump the statistics of all
+ * templates e.g. into the log.
+ *
+ * <pre>
+ * TemplateStatistics statistics = new TemplateStatistics();
+ * engine.setTemplateListener(statistics);
+ * // ...
+ * System.out.println(statistics);
+ * </pre>
+ *
+ * @author Vladimir Orany
+ */
+public class TemplateStatistics implements TemplateListener {
+
+    private final ConcurrentMap<String, Metrics> templates = new ConcurrentSkipListMap<String, Metrics>();
+
+    public void templateCompiled(String name, long parseNanos, long compileNanos, int scriptLength, long positionIndexSize) {
+        Metrics metrics = getMetrics(name);
+        metrics.compilations.incrementAndGet();
+        metrics.parseTime.set(parseNanos);
+        metrics.compileTime.set(compileNanos);
+        metrics.scriptLength.set(scriptLength);
+        metrics.positionIndexSize.set(positionIndexSize);
+    }
+
+    public void templateRendered(String name, long nanos, long charactersWritten, Throwable failure) {
+        Metrics metrics = getMetrics(name);
+        metrics.renderTime.record(nanos);
+        metrics.charactersWritten.addAndGet(charactersWritten);
+        if (failure != null) {
+            metrics.failures.incrementAndGet();
+        }
+    }
+
+    private Metrics getMetrics(String name) {
+        Metrics metrics = templates.get(name);
+        if (metrics == null) {
+            metrics = new Metrics();
+            Metrics existing = templates.putIfAbsent(name, metrics);
+            if (existing != null) {
+                metrics = existing;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Returns the names of the templates compiled or rendered so far.
+     * @return the names of the templates sorted alphabetically
+     */
+    public Set<String> getTemplateNames() {
+        return Collections.unmodifiableSet(templates.keySet());
+    }
+
+    /**
+     * Returns how many times the template has been compiled.
+     * @param name the name of the template
+     * @return how many times the template has been compiled
+     */
+    public long getCompileCount(String name) {
+        Metrics metrics = templates.get(name);
+        return metrics == null ? 0 : metrics.compilations.get();
+    }
+
+    /**
+     * Returns how many times the template has been rendered including the failed renders.
+     * @param name the name of the template
+     * @return how many times the template has been rendered
+     */
+    public long getRenderCount(String name) {
+        Metrics metrics = templates.get(name);
+        return metrics == null ? 0 : metrics.renderTime.getCount();
+    }
+
+    /**
+     * Returns how many renders of the template have failed.
+     * @param name the name of the template
+     * @return how many renders of the template have failed
+     */
+    public long getFailureCount(String name) {
+        Metrics metrics = templates.get(name);
+        return metrics == null ? 0 : metrics.failures.get();
+    }
+
+    /**
+     * Returns the total number of characters written by all renders of the template.
+     * @param name the name of the template
+     * @return the total number of characters written by the template
+     */
+    public long getCharactersWritten(String name) {
+        Metrics metrics = templates.get(name);
+        return metrics == null ? 0 : metrics.charactersWritten.get();
+    }
+
+    /**
+     * Returns the approximate render time of the template below which given percentage of the renders falls.
+     * @param name the name of the template
+     * @param percentile the percentile between 0 and 100, e.g. 99
+     * @param unit the unit of the returned time
+     * @return the approximate render time
+     */
+    public long getRenderTime(String name, double percentile, TimeUnit unit) {
+        Metrics metrics = templates.get(name);
+        return metrics == null ? 0 : unit.convert(metrics.renderTime.getPercentile(percentile), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the time spent compiling the script of the last compilation of the template.
+     * @param name the name of the template
+     * @param unit the unit of the returned time
+     * @return the time spent compiling the script
+     */
+    public long getCompileTime(String name, TimeUnit unit) {
+        Metrics metrics = templates.get(name);
+        return metrics == null ? 0 : unit.convert(metrics.compileTime.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the time spent generating the script of the last compilation of the template.
+     * @param name the name of the template
+     * @param unit the unit of the returned time
+     * @return the time spent generating the script
+     */
+    public long getParseTime(String name, TimeUnit unit) {
+        Metrics metrics = templates.get(name);
+        return metrics == null ? 0 : unit.convert(metrics.parseTime.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the approximate number of bytes occupied by the position index of the last compilation of the template.
+     * @param name the name of the template
+     * @return the approximate size of the position index in bytes
+     */
+    public long getPositionIndexSize(String name) {
+        Metrics metrics = templates.get(name);
+        return metrics == null ? 0 : metrics.positionIndexSize.get();
+    }
+
+    /**
+     * Removes all collected statistics.
+     */
+    public void reset() {
+        templates.clear();
+    }
+
+    @Override public String toString() {
+        StringBuilder dump = new StringBuilder();
+        dump.append(String.format(Locale.ENGLISH, "%-40s %8s %6s %10s %10s %10s %10s %12s %10s %10s%n",
+                "template", "renders", "fails", "mean[us]", "p50[us]", "p99[us]", "max[us]", "chars", "script", "compile[ms]"));
+        for (Map.Entry<String, Metrics> each : templates.entrySet()) {
+            Metrics metrics = each.getValue();
+            LatencyHistogram histogram = metrics.renderTime;
+            dump.append(String.format(Locale.ENGLISH, "%-40s %8d %6d %10d %10d %10d %10d %12d %10d %10d%n",
+                    each.getKey(), histogram.getCount(), metrics.failures.get(),
+                    TimeUnit.NANOSECONDS.toMicros(histogram.getMean()),
+                    TimeUnit.NANOSECONDS.toMicros(histogram.getPercentile(50)),
+                    TimeUnit.NANOSECONDS.toMicros(histogram.getPercentile(99)),
+                    TimeUnit.NANOSECONDS.toMicros(histogram.getMax()),
+                    metrics.charactersWritten.get(), metrics.scriptLength.get(),
+                    TimeUnit.NANOSECONDS.toMillis(metrics.parseTime.get() + metrics.compileTime.get())));
+        }
+        return dump.toString();
+    }
+
+    private static final class Metrics {
+        final LatencyHistogram renderTime        = new LatencyHistogram();
+        final AtomicLong       failures          = new AtomicLong();
+        final AtomicLong       charactersWritten = new AtomicLong();
+        final AtomicLong       compilations      = new AtomicLong();
+        final AtomicLong       parseTime         = new AtomicLong();
+        final AtomicLong       compileTime       = new AtomicLong();
+        final AtomicLong       scriptLength      = new AtomicLong();
+        final AtomicLong       positionIndexSize = new AtomicLong();
+    }
+
+}
@@ -0,0 +1,106 @@
+package groovyx.gaelyk.dte;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Characters of the template decoded directly from the template file.
+ *
+ * Files larger than {@link #MAPPING_THRESHOLD} are memory-mapped, smaller files are read
+ * into single buffer. In both cases the bytes are decoded straight into the array handed
+ * over to the parser so the text of the template is not copied again until the compilation fails.
+ * Malformed and unmappable bytes are replaced in the same way as {@link java.io.InputStreamReader} does.
+ *
+ * @author Vladimir Orany
+ */
+final class TemplateText {
+
+    static final int      MAPPING_THRESHOLD = 64 * 1024;
+
+    private final char[] chars;
+    private final int    length;
+
+    TemplateText(char[] chars, int length) {
+        this.chars = chars;
+        this.length = length;
+    }
+
+    TemplateText(String text) {
+        this(text.toCharArray(), text.length());
+    }
+
+    /**
+     * Reads and decodes the template file.
+     * @param path the template file
+     * @param charset the charset of the template file
+     * @return the decoded template
+     * @throws IOException if the file cannot be read or it is larger than 2GB
+     */
+    static TemplateText read(Path path, Charset charset) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Template is too large: " + path);
+            }
+            ByteBuffer bytes;
+            if (size > MAPPING_THRESHOLD) {
+                bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                bytes = ByteBuffer.allocate((int) size);
+                while (bytes.hasRemaining() && channel.read(bytes) != -1) {
+                    // read whole file
+                }
+                bytes.flip();
+            }
+            return decode(bytes, charset);
+        } finally {
+            channel.close();
+        }
+    }
+
+    static TemplateText decode(ByteBuffer bytes, Charset charset) throws CharacterCodingException {
+        CharsetDecoder decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CharBuffer out = CharBuffer.allocate((int) Math.min(Integer.MAX_VALUE - 8L, (long) (bytes.remaining() * (double) decoder.maxCharsPerByte()) + 1));
+        while (true) {
+            CoderResult result = bytes.hasRemaining() ? decoder.decode(bytes, out, true) : CoderResult.UNDERFLOW;
+            if (result.isUnderflow()) {
+                result = decoder.flush(out);
+            }
+            if (result.isUnderflow()) {
+                break;
+            }
+            if (result.isOverflow()) {
+                CharBuffer grown = CharBuffer.allocate(out.capacity() * 2 + 1);
+                out.flip();
+                grown.put(out);
+                out = grown;
+            } else {
+                result.throwException();
+            }
+        }
+        return new TemplateText(out.array(), out.position());
+    }
+
+    char[] getChars() {
+        return chars;
+    }
+
+    int getLength() {
+        return length;
+    }
+
+    @Override public String toString() {
+        return new String(chars, 0, length);
+    }
+
+}
@@ -0,0 +1,504 @@
+package groovyx.gaelyk.dte;
+
+import groovy.lang.Binding;
+import groovy.lang.Closure;
+import groovy.lang.GString;
+import groovy.lang.GroovyRuntimeException;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+
+import org.codehaus.groovy.runtime.InvokerHelper;
+
+/**
+ * Writer bound to the <code>out</code> variable of the templates created by {@link DebuggableTemplateEngine}.
+ *
+ * Besides the {@link PrintWriter} methods available to the template code the writer
+ * provides the methods used by the scripts generated in the streaming mode. The static
+ * texts of the template are written using {@link #writeStatic(int)} and the values
+ * of the expressions are written using {@link #writeValue(Object)} in the same way
+ * as the GString would write them. If the template is rendered into the output stream
+ * the static texts are written as the bytes encoded when the template has been compiled.
+ *
+ * The values of the expressions are escaped according to the {@link Escaping} of the template being rendered.
+ * The characters are escaped as they are written into the underlying writer so the escaped values are
+ * never copied into new strings. The values written by {@link #writeRaw(Object)} are not escaped.
+ *
+ * The regions of the template marked by <code>&lt;%@ cache %&gt;</code> and <code>&lt;%@ endcache %&gt;</code> directives
+ * are rendered into the buffer by {@link #beginFragment(int, Object, long)} and {@link #storeFragment()} and kept
+ * in the {@link FragmentCache} of the template, the cached fragments are written instead of rendering the region again.
+ *
+ * The templates included using <code>&lt;%@ include %&gt;</code> directive and the layouts are rendered
+ * into the same writer with the same binding by {@link #include(int)} and {@link #body()}.
+ *
+ * The writer is used by single render only so unlike the {@link PrintWriter} it doesn't synchronize
+ * any of its methods and it can be safely used from the virtual threads. The writer flushes the output
+ * according to its {@link FlushPolicy}. If the writer fails fast the first error of the underlying
+ * writer is thrown as {@link UncheckedIOException} which stops the render instead of being hidden
+ * until {@link #checkError()} is called.
+ *
+ * @author Vladimir Orany
+ */
+public class TemplateWriter extends PrintWriter {
+
+    private final EncodingWriter          encodingWriter;
+    private String[]                      staticTexts;
+    private byte[][]                      encodedStaticTexts;
+    private DebuggableTemplate            template;
+    private Binding                       binding;
+    private Deque<DebuggableTemplate>     bodies;
+    private long                          charactersWritten;
+    private FlushPolicy                   flushPolicy = FlushPolicy.END;
+    private boolean                       failFast;
+    private Escaping                      escaping    = Escaping.NONE;
+
+    /**
+     * Escaping of the characters being written, other than {@link Escaping#NONE} only while the value is written.
+     */
+    private Escaping                      applied     = Escaping.NONE;
+    private Fragment                      fragment;
+
+    /**
+     * Creates new writer for given static texts.
+     * @param out the writer the template document is written to
+     * @param staticTexts the static texts of the template
+     */
+    public TemplateWriter(Writer out, String[] staticTexts) {
+        super(out);
+        this.staticTexts = staticTexts;
+        this.encodingWriter = null;
+        this.encodedStaticTexts = null;
+    }
+
+    /**
+     * Creates new writer which writes the static texts already encoded.
+     * @param out the writer encoding the template document
+     * @param staticTexts the static texts of the template
+     * @param encodedStaticTexts the static texts encoded using the charset of the writer
+     */
+    TemplateWriter(EncodingWriter out, String[] staticTexts, byte[][] encodedStaticTexts) {
+        super(out);
+        this.staticTexts = staticTexts;
+        this.encodingWriter = out;
+        this.encodedStaticTexts = encodedStaticTexts;
+    }
+
+    /**
+     * Writes the static text of the template.
+     * @param index the index of the static text
+     */
+    public void writeStatic(int index) {
+        if (encodedStaticTexts == null || out != encodingWriter) {
+            write(staticTexts[index]);
+        } else {
+            charactersWritten += staticTexts[index].length();
+            try {
+                encodingWriter.writeEncoded(encodedStaticTexts[index]);
+            } catch (IOException e) {
+                failed(e);
+            }
+        }
+        if (flushPolicy != FlushPolicy.END) {
+            flush();
+        }
+    }
+
+    @Override public void write(int c) {
+        charactersWritten++;
+        if (out == null) {
+            setError();
+            return;
+        }
+        try {
+            if (applied == Escaping.NONE) {
+                out.write(c);
+            } else {
+                applied.escape(c, out);
+            }
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    @Override public void write(char[] buf, int off, int len) {
+        charactersWritten += len;
+        if (out == null) {
+            setError();
+            return;
+        }
+        try {
+            if (applied == Escaping.NONE) {
+                out.write(buf, off, len);
+            } else {
+                applied.escape(buf, off, len, out);
+            }
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    @Override public void write(String s, int off, int len) {
+        charactersWritten += len;
+        if (out == null) {
+            setError();
+            return;
+        }
+        try {
+            if (applied == Escaping.NONE) {
+                out.write(s, off, len);
+            } else {
+                applied.escape(s, off, len, out);
+            }
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    /**
+     * Prints the GString. If the template escapes the values, the values of the GString are escaped
+     * while its strings are written as they are.
+     * @param gstring the GString to print
+     */
+    public void print(GString gstring) {
+        if (escaping == Escaping.NONE) {
+            write(String.valueOf(gstring));
+            return;
+        }
+        String[] strings = gstring.getStrings();
+        Object[] values = gstring.getValues();
+        for (int i = 0; i < strings.length; i++) {
+            write(strings[i]);
+            if (i < values.length) {
+                write(values[i], escaping);
+            }
+        }
+    }
+
+    @Override public void println() {
+        write(System.lineSeparator());
+    }
+
+    @Override public void println(boolean x) {
+        print(x);
+        println();
+    }
+
+    @Override public void println(char x) {
+        print(x);
+        println();
+    }
+
+    @Override public void println(int x) {
+        print(x);
+        println();
+    }
+
+    @Override public void println(long x) {
+        print(x);
+        println();
+    }
+
+    @Override public void println(float x) {
+        print(x);
+        println();
+    }
+
+    @Override public void println(double x) {
+        print(x);
+        println();
+    }
+
+    @Override public void println(char[] x) {
+        print(x);
+        println();
+    }
+
+    @Override public void println(String x) {
+        print(x);
+        println();
+    }
+
+    @Override public void println(Object x) {
+        print(String.valueOf(x));
+        println();
+    }
+
+    @Override public PrintWriter format(String format, Object... args) {
+        write(String.format(format, args));
+        return this;
+    }
+
+    @Override public PrintWriter format(Locale l, String format, Object... args) {
+        write(String.format(l, format, args));
+        return this;
+    }
+
+    @Override public void flush() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.flush();
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    @Override public void close() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            failed(e);
+        } finally {
+            out = null;
+        }
+    }
+
+    private void failed(IOException e) {
+        setError();
+        if (failFast) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the number of characters written into this writer so far.
+     * @return the number of characters written into this writer
+     */
+    public long getCharactersWritten() {
+        return charactersWritten;
+    }
+
+    /**
+     * Starts the region of the template cached by the fragment cache. If the fragment is cached, it is written
+     * and the region is skipped. Otherwise the region is rendered into the buffer until {@link #storeFragment()}
+     * is called. Every call must be followed by {@link #endFragment()} when the region ends or fails.
+     * @param index the index of the region in the template
+     * @param key the value of the key expression of the region
+     * @param timeToLive the time to live of the fragment in milliseconds, zero if the fragment doesn't expire
+     * @return true if the region must be rendered
+     */
+    public boolean beginFragment(int index, Object key, long timeToLive) {
+        FragmentCache cache = template == null ? null : template.getFragmentCache();
+        if (cache == null || out == null) {
+            fragment = new Fragment(fragment, null, null, 0, null, null);
+            return true;
+        }
+        Object fragmentKey = FragmentCache.key(template, index, key);
+        CompletableFuture<String> started = new CompletableFuture<String>();
+        Object cached = cache.get(fragmentKey, started);
+        if (cached == null) {
+            fragment = new Fragment(fragment, cache, fragmentKey, timeToLive, started, out);
+            out = new RenderBuffer(256);
+            return true;
+        }
+        if (cached instanceof CompletableFuture) {
+            @SuppressWarnings("unchecked") CompletableFuture<String> running = (CompletableFuture<String>) cached;
+            cached = FragmentCache.await(running);
+            if (cached == null) {
+                // the render of the fragment has failed, render it again without caching
+                fragment = new Fragment(fragment, null, null, 0, null, null);
+                return true;
+            }
+        }
+        write((String) cached);
+        return false;
+    }
+
+    /**
+     * Stores the fragment rendered since {@link #beginFragment(int, Object, long)} into the cache
+     * and writes it into the document.
+     */
+    public void storeFragment() {
+        Fragment current = fragment;
+        if (current.started == null) {
+            return;
+        }
+        String rendered = out.toString();
+        out = current.previous;
+        current.stored = true;
+        current.cache.loaded(current.key, current.started, rendered, current.timeToLive);
+        try {
+            out.write(rendered);
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    /**
+     * Ends the region started by {@link #beginFragment(int, Object, long)}. If the fragment hasn't been stored
+     * because the region has failed the renders waiting for the fragment are released.
+     */
+    public void endFragment() {
+        Fragment current = fragment;
+        fragment = current.outer;
+        if (current.started != null && !current.stored) {
+            out = current.previous;
+            current.cache.loaded(current.key, current.started, null, 0);
+        }
+    }
+
+    /**
+     * Renders the template included by the current template into this writer.
+     * @param index the index of the included template
+     */
+    public void include(int index) {
+        template.getInclude(index).render(binding, this);
+    }
+
+    /**
+     * Renders the template using the current layout into this writer. Does nothing if the current
+     * template is not rendered as a layout.
+     */
+    public void body() {
+        if (bodies == null || bodies.isEmpty()) {
+            return;
+        }
+        DebuggableTemplate body = bodies.pop();
+        try {
+            body.run(binding, this);
+        } finally {
+            bodies.push(body);
+        }
+    }
+
+    /**
+     * Switches the writer to the static texts of given template.
+     * @param next the template being rendered
+     * @return the template rendered before
+     */
+    DebuggableTemplate enter(DebuggableTemplate next) {
+        DebuggableTemplate previous = template;
+        template = next;
+        if (next != null) {
+            staticTexts = next.getStaticTexts();
+            escaping = next.getEscaping();
+            if (encodingWriter != null) {
+                encodedStaticTexts = encodingWriter.getCharset().equals(next.getCharset()) ? next.getEncodedStaticTexts() : null;
+            }
+        }
+        return previous;
+    }
+
+    void pushBody(DebuggableTemplate body) {
+        if (bodies == null) {
+            bodies = new ArrayDeque<DebuggableTemplate>();
+        }
+        bodies.push(body);
+    }
+
+    void popBody() {
+        bodies.pop();
+    }
+
+    void setBinding(Binding binding) {
+        this.binding = binding;
+    }
+
+    /**
+     * Sets when the writer flushes the output.
+     * @param flushPolicy the flush policy
+     */
+    void setFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+    }
+
+    /**
+     * Sets whether the errors of the underlying writer are thrown as {@link UncheckedIOException}.
+     * @param failFast true to stop the render on the first error of the underlying writer
+     */
+    void setFailFast(boolean failFast) {
+        this.failFast = failFast;
+    }
+
+    /**
+     * Writes the value of the expression the same way as the GString does escaped according
+     * to the escaping of the template. Closures without parameters are called and their result is written,
+     * closures with one parameter are called with this writer.
+     * @param value the value of the expression
+     */
+    public void writeValue(Object value) {
+        write(value, escaping);
+        if (flushPolicy == FlushPolicy.EVERY_SEGMENT) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the value of the <code>&lt;%== %&gt;</code> expression the same way as {@link #writeValue(Object)}
+     * but without escaping.
+     * @param value the value of the expression
+     */
+    public void writeRaw(Object value) {
+        write(value, Escaping.NONE);
+        if (flushPolicy == FlushPolicy.EVERY_SEGMENT) {
+            flush();
+        }
+    }
+
+    private void write(Object value, Escaping valueEscaping) {
+        Escaping previous = applied;
+        applied = valueEscaping;
+        try {
+            if (value instanceof String) {
+                write((String) value);
+            } else if (value instanceof Closure) {
+                Closure<?> closure = (Closure<?>) value;
+                int parameters = closure.getMaximumNumberOfParameters();
+                if (parameters == 0) {
+                    InvokerHelper.write(this, closure.call());
+                } else if (parameters == 1) {
+                    closure.call(this);
+                } else {
+                    throw new GroovyRuntimeException("Trying to evaluate a GString containing a Closure taking " + parameters + " parameters");
+                }
+            } else {
+                InvokerHelper.write(this, value);
+            }
+        } catch (IOException e) {
+            failed(e);
+        } finally {
+            applied = previous;
+        }
+    }
+
+    /**
+     * The region of the template being rendered into the fragment cache.
+     */
+    private static final class Fragment {
+        final Fragment                  outer;
+        final FragmentCache             cache;
+        final Object                    key;
+        final long                      timeToLive;
+
+        /**
+         * The future of the fragment or <code>null</code> if the region is rendered directly into the document.
+         */
+        final CompletableFuture<String> started;
+
+        /**
+         * The writer to restore when the fragment is rendered.
+         */
+        final Writer                    previous;
+        boolean                         stored;
+
+        Fragment(Fragment outer, FragmentCache cache, Object key, long timeToLive, CompletableFuture<String> started, Writer previous) {
+            this.outer = outer;
+            this.cache = cache;
+            this.key = key;
+            this.timeToLive = timeToLive;
+            this.started = started;
+            this.previous = previous;
+        }
+    }
+
+}
@@ -0,0 +1,169 @@
+package groovyx.gaelyk.dte;
+
+import groovyx.gaelyk.dte.TemplateSegment.Kind;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collapses the runs of white space in the literal text of the template before the script is generated.
+ *
+ * Each run of white space characters is replaced by its first new line or by its first character if the run
+ * doesn't contain any new line, so the lines of the document stay the same. The text segments are split
+ * into the segments of the characters kept, so the generators still copy the original template characters
+ * and the positions of the generated script keep pointing to the original template lines and columns.
+ *
+ * The content of <code>pre</code>, <code>textarea</code>, <code>script</code> and <code>style</code> elements
+ * is kept as it is as well as the white space following the backslash which may be an escape
+ * or the line continuation.
+ *
+ * @author Vladimir Orany
+ */
+final class WhitespaceCompactor {
+
+    private static final String[] PRESERVING_ELEMENTS = { "pre", "textarea", "script", "style" };
+
+    private final char[]          chars;
+
+    /**
+     * The name of the element whose content is being kept or <code>null</code>.
+     */
+    private String                preserving;
+
+    private int                   line;
+    private int                   column;
+
+    WhitespaceCompactor(char[] chars) {
+        this.chars = chars;
+    }
+
+    /**
+     * Returns the segments with the white space of the text segments collapsed.
+     * @param segments the segments of the template
+     * @return new list of the segments
+     */
+    List<TemplateSegment> compact(List<TemplateSegment> segments) {
+        List<TemplateSegment> compacted = new ArrayList<TemplateSegment>(segments.size() * 2);
+        for (TemplateSegment segment : segments) {
+            if (segment.kind == Kind.TEXT) {
+                compact(segment, compacted);
+            } else {
+                compacted.add(segment);
+            }
+        }
+        return compacted;
+    }
+
+    private void compact(TemplateSegment segment, List<TemplateSegment> compacted) {
+        line = segment.line;
+        column = segment.column;
+        int pieceStart = segment.start;
+        int pieceLine = line;
+        int pieceColumn = column;
+        int i = segment.start;
+        while (i < segment.end) {
+            char c = chars[i];
+            if (c == '<') {
+                updatePreserving(i + 1, segment.end);
+            }
+            if (!Character.isWhitespace(c) || preserving != null || i > segment.start && chars[i - 1] == '\\') {
+                i = consume(i, segment.end);
+                continue;
+            }
+            int runEnd = i;
+            int newLine = -1;
+            while (runEnd < segment.end && Character.isWhitespace(chars[runEnd])) {
+                if (newLine < 0 && (chars[runEnd] == '\n' || chars[runEnd] == '\r')) {
+                    newLine = runEnd;
+                }
+                runEnd++;
+            }
+            int kept = newLine < 0 ? i : newLine;
+            int keptEnd = kept + (newLine < 0 ? 1 : newLineLength(kept, runEnd));
+            if (keptEnd == runEnd && kept == i) {
+                // nothing to collapse
+                while (i < runEnd) {
+                    i = consume(i, runEnd);
+                }
+                continue;
+            }
+            if (kept > i) {
+                addPiece(compacted, pieceStart, i, pieceLine, pieceColumn);
+                while (i < kept) {
+                    i = consume(i, kept);
+                }
+                pieceStart = i;
+                pieceLine = line;
+                pieceColumn = column;
+            }
+            while (i < keptEnd) {
+                i = consume(i, keptEnd);
+            }
+            addPiece(compacted, pieceStart, i, pieceLine, pieceColumn);
+            while (i < runEnd) {
+                i = consume(i, runEnd);
+            }
+            pieceStart = i;
+            pieceLine = line;
+            pieceColumn = column;
+        }
+        addPiece(compacted, pieceStart, segment.end, pieceLine, pieceColumn);
+    }
+
+    /**
+     * Advances the position over single character or new line sequence.
+     * @return the offset of the next character
+     */
+    private int consume(int i, int end) {
+        char c = chars[i];
+        if (c == '\n' || c == '\r') {
+            line++;
+            column = 0;
+            return i + newLineLength(i, end);
+        }
+        column++;
+        return i + 1;
+    }
+
+    private int newLineLength(int i, int end) {
+        return chars[i] == '\r' && i + 1 < end && chars[i + 1] == '\n' ? 2 : 1;
+    }
+
+    private void addPiece(List<TemplateSegment> compacted, int start, int end, int pieceLine, int pieceColumn) {
+        if (start < end) {
+            compacted.add(new TemplateSegment(Kind.TEXT, start, end, pieceLine, pieceColumn, line, column, true));
+        }
+    }
+
+    /**
+     * Checks whether the tag starting at given offset opens or closes the element whose content is kept.
+     * @param from the offset after the opening angle bracket
+     * @param end the end of the text segment
+     */
+    private void updatePreserving(int from, int end) {
+        if (preserving == null) {
+            for (String element : PRESERVING_ELEMENTS) {
+                if (isTagName(element, from, end)) {
+                    preserving = element;
+                    return;
+                }
+            }
+        } else if (from < end && chars[from] == '/' && isTagName(preserving, from + 1, end)) {
+            preserving = null;
+        }
+    }
+
+    private boolean isTagName(String name, int from, int end) {
+        if (from + name.length() > end) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.toLowerCase(chars[from + i]) != name.charAt(i)) {
+                return false;
+            }
+        }
+        int next = from + name.length();
+        return next == end || !Character.isLetterOrDigit(chars[next]) && chars[next] != '-';
+    }
+
+}
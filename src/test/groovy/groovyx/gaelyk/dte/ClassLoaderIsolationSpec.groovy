@@ -0,0 +1,82 @@
+package groovyx.gaelyk.dte
+
+import java.lang.ref.WeakReference
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class ClassLoaderIsolationSpec extends Specification {
+
+    DebuggableTemplateEngine engine = new DebuggableTemplateEngine()
+
+    @Unroll
+    def "Templates are compiled by #isolation class loader"() {
+        engine.classLoaderIsolation = isolation
+
+        when:
+        DebuggableTemplate first = engine.createTemplate(new StringReader('Hello ${name}'))
+        DebuggableTemplate second = engine.createTemplate(new StringReader('Bye ${name}'))
+
+        then:
+        first.make(name: 'World').toString() == 'Hello World'
+        second.make(name: 'World').toString() == 'Bye World'
+        (first.script.class.classLoader.parent == second.script.class.classLoader.parent) == sameLoader
+
+        where:
+        isolation                           | sameLoader
+        ClassLoaderIsolation.PER_TEMPLATE   | false
+        ClassLoaderIsolation.PER_GENERATION | true
+    }
+
+    def "New generation is started after all templates are invalidated"() {
+        engine.classLoaderIsolation = ClassLoaderIsolation.PER_GENERATION
+        engine.templateCache = new TemplateCache(10)
+
+        when:
+        DebuggableTemplate first = engine.createTemplate(new StringReader('Hello'), 'hello')
+        engine.invalidateAll()
+        DebuggableTemplate second = engine.createTemplate(new StringReader('Hello'), 'hello')
+
+        then:
+        !first.is(second)
+        first.script.class.classLoader.parent != second.script.class.classLoader.parent
+        engine.templateCache.size() == 1
+    }
+
+    @Unroll
+    def "Invalidated templates are unloaded with #isolation class loader"() {
+        engine.classLoaderIsolation = isolation
+        engine.templateCache = new TemplateCache(10)
+        WeakReference<Class> scriptClass = compileAndRender(engine)
+
+        when:
+        engine.invalidate('unloaded')
+        engine.close()
+
+        then:
+        collected(scriptClass)
+
+        where:
+        isolation << [ClassLoaderIsolation.PER_TEMPLATE, ClassLoaderIsolation.PER_GENERATION]
+    }
+
+    private static WeakReference<Class> compileAndRender(DebuggableTemplateEngine engine) {
+        DebuggableTemplate template = engine.createTemplate(new StringReader('Hello ${name.toUpperCase()}'), 'unloaded')
+        assert template.make(name: 'World').toString() == 'Hello WORLD'
+        // accessing template.script.class would cache the script class in the call site of this spec
+        new WeakReference<Class>(template.scriptClass)
+    }
+
+    /**
+     * Runs bounded number of collections, the test task clears the soft references on every collection
+     * so the class info Groovy keeps for the script class doesn't keep it alive.
+     */
+    private static boolean collected(WeakReference<?> reference) {
+        for (int i = 0; i < 50 && reference.get() != null; i++) {
+            System.gc()
+            Thread.sleep(20)
+        }
+        reference.get() == null
+    }
+
+}
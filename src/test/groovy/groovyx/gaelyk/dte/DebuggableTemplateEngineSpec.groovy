@@ -7,7 +7,11 @@ import groovyx.gaelyk.dte.TemplateParsingException;
 import org.codehaus.groovy.control.messages.SyntaxErrorMessage;
 import org.codehaus.groovy.syntax.SyntaxException;
 
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+
 import spock.lang.Specification
+import spock.lang.Unroll
 
 class DebuggableTemplateEngineSpec extends Specification {
 
@@ -67,7 +71,7 @@ The template was parsed into following script:
 8   :
 9   :/* Generated by SimpleTemplateEngine */
 '''
-        
+        new TemplateParsingException(e.templateSource, e.parsedScript, new HashMap<Position, Position>(e.positionsMap), e.cause).message == e.message
     }
     
     def "Exception thrown in template is better reported"() {
@@ -86,7 +90,607 @@ Unreachable
         
         
     }
-    
-    
-    
+
+    def "All templates are compiled in parallel and the failures are collected"() {
+        File root = File.createTempFile('templates', '')
+        root.delete()
+        new File(root, 'nested/deeper').mkdirs()
+        20.times { new File(root, "nested/t${it}.gtpl").text = "Template $it \${name}" }
+        new File(root, 'nested/deeper/broken.gtpl').text = '<% if (true) %>\n<% } %>'
+        new File(root, 'ignored.txt').text = '<% } %>'
+        ExecutorService executor = Executors.newFixedThreadPool(4)
+
+        when:
+        PrecompilationReport report = dte.precompileAll(root.toPath(), '**/*.gtpl', executor)
+
+        then:
+        report.templates.size() == 20
+        report.templates.values()*.scriptClass*.name.unique().size() == 20
+        report.templates[root.toPath().resolve('nested/t7.gtpl')].make(name: 'World').toString() == 'Template 7 World'
+        report.hasFailures()
+        report.failures.keySet() == [root.toPath().resolve('nested/deeper/broken.gtpl')] as Set
+        report.failures.values().first() instanceof TemplateParsingException
+        report.timings.size() == 21
+
+        cleanup:
+        executor.shutdown()
+        root.deleteDir()
+    }
+
+    @Unroll
+    def "Lazy position index is built on demand with streaming #streaming"() {
+        String source = 'Blah\n${a}\n<% b.each { %>\n$it<% } %>\n<% throw new RuntimeException("Ooops") %>\n'
+        DebuggableTemplateEngine eager = new DebuggableTemplateEngine(shell)
+        eager.streaming = streaming
+        dte.streaming = streaming
+        dte.lazyPositionIndex = true
+
+        when:
+        DebuggableTemplate lazy = dte.createTemplate(source)
+
+        then:
+        lazy.@positionIndex == null
+
+        when:
+        lazy.make(a: 1, b: [2]).writeTo(new StringWriter())
+
+        then:
+        Throwable th = thrown()
+        th.stackTrace.find { it.className.contains('DebuggableTemplateScript') }.lineNumber == 5
+        lazy.@positionIndex == null
+        lazy.positionIndex.asMap() == eager.createTemplate(source).positionIndex.asMap()
+
+        where:
+        streaming << [false, true]
+    }
+
+    def "Failing to parse template with lazy position index give detailed information"() {
+        dte.lazyPositionIndex = true
+
+        when:
+        dte.createTemplate('Hello world!\n<% if (true) %>\n<% } %>')
+
+        then:
+        TemplateParsingException e = thrown(TemplateParsingException)
+        e.message.contains('2   :<% if (true) %>\n=   :              ^')
+    }
+
+    @Unroll
+    def "Template file is decoded using #charset"() {
+        File file = File.createTempFile('template', '.gtpl')
+        String block = 'Žluťoučký ' + '-' * size
+        file.setText(block + '<% %>' + block + '${name}', charset)
+        dte.templateCache = new TemplateCache(10)
+
+        when:
+        DebuggableTemplate template = dte.createTemplate(file.toPath(), java.nio.charset.Charset.forName(charset))
+
+        then:
+        file.length() > TemplateText.MAPPING_THRESHOLD == mapped
+        template.make(name: 'kůň').toString() == block + block + 'kůň'
+        dte.createTemplate(file.toPath(), java.nio.charset.Charset.forName(charset)).is(template)
+
+        cleanup:
+        file.delete()
+
+        where:
+        charset      | size  | mapped
+        'UTF-8'      | 10    | false
+        'ISO-8859-2' | 10    | false
+        'UTF-8'      | 40000 | true
+        'UTF-16'     | 20000 | true
+    }
+
+    @Unroll
+    def "Included templates and layouts are rendered into the same writer with streaming #streaming"() {
+        Map<String, String> templates = [
+            'layout.gtpl' : '<html><%@ body %></html>',
+            'page.gtpl'   : '<body><%@ body %></body>',
+            'item.gtpl'   : '<li>${item}</li>'
+        ]
+        dte.streaming = streaming
+        dte.templateResolver = { name -> templates[name] == null ? null : new StringReader(templates[name]) } as TemplateResolver
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream()
+
+        when:
+        DebuggableTemplate template = dte.createTemplate('''<%@ layout file="page.gtpl" %><ul><% items.each { item = it %><%@ include file='item.gtpl' %><% } %></ul>''')
+        DebuggableTemplate nested = dte.createTemplate('''<%@ layout file="page.gtpl" %><%@ include file="item.gtpl" %>''')
+        templates['page.gtpl'] = '<%@ layout file="layout.gtpl" %><body><%@ body %></body>'
+        DebuggableTemplate twice = dte.createTemplate('''<%@ layout file="page.gtpl" %><% item = 'a' %>${item}<%@ include file="item.gtpl" %><%@ include file="item.gtpl" %>''')
+        template.render(items: ['ž', 2], bytes)
+
+        then:
+        template.make(items: [1, 2]).toString() == '<body><ul><li>1</li><li>2</li></ul></body>'
+        new String(bytes.toByteArray(), 'UTF-8') == '<body><ul><li>ž</li><li>2</li></ul></body>'
+        nested.make(item: 3).toString() == '<body><li>3</li></body>'
+        twice.make().toString() == '<html><body>a<li>a</li><li>a</li></body></html>'
+        twice.includeNames == ['item.gtpl'] as String[]
+
+        where:
+        streaming << [false, true]
+    }
+
+    def "Referenced templates are shared by the templates and compiled again when they change"() {
+        Map<String, String> templates = [
+            'page.gtpl' : '<body><%@ include file="item.gtpl" %></body>',
+            'item.gtpl' : '<li>${item}</li>'
+        ]
+        dte.templateResolver = { name -> new StringReader(templates[name]) } as TemplateResolver
+
+        when:
+        DebuggableTemplate first = dte.createTemplate('<%@ include file="page.gtpl" %>')
+        DebuggableTemplate second = dte.createTemplate('<%@ layout file="page.gtpl" %>')
+        templates['item.gtpl'] = '<p>${item}</p>'
+        DebuggableTemplate third = dte.createTemplate('<%@ include file="page.gtpl" %>')
+
+        then:
+        first.getInclude(0).is(second.layout)
+        !third.getInclude(0).is(first.getInclude(0))
+        first.dependencies.keySet() == ['page.gtpl', 'item.gtpl'] as Set
+        first.make(item: 1).toString() == '<body><li>1</li></body>'
+        third.make(item: 1).toString() == '<body><p>1</p></body>'
+    }
+
+    def "Cached templates are compiled again when the referenced template is invalidated"() {
+        Map<String, String> templates = ['item.gtpl' : '<li>${item}</li>']
+        dte.templateCache = new TemplateCache(10)
+        dte.templateResolver = { name -> new StringReader(templates[name]) } as TemplateResolver
+        String text = '<ul><%@ include file="item.gtpl" %></ul>'
+
+        when:
+        DebuggableTemplate first = dte.createTemplate(new StringReader(text), 'index.gtpl')
+        templates['item.gtpl'] = '<p>${item}</p>'
+        DebuggableTemplate cached = dte.createTemplate(new StringReader(text), 'index.gtpl')
+        dte.invalidate('item.gtpl')
+        DebuggableTemplate compiled = dte.createTemplate(new StringReader(text), 'index.gtpl')
+
+        then:
+        cached.is(first)
+        compiled.make(item: 1).toString() == '<ul><p>1</p></ul>'
+    }
+
+    def "Exception thrown in included template is reported with its name and line"() {
+        dte.templateResolver = { name -> new StringReader('Included\n<% throw new RuntimeException("Ooops") %>') } as TemplateResolver
+        DebuggableTemplate template = dte.createTemplate('Blah\n\n<%@ include file="partials/broken.gtpl" %>')
+
+        when:
+        template.make().writeTo(new StringWriter())
+
+        then:
+        Throwable th = thrown()
+        th.stackTrace.find { it.fileName == 'partials/broken.gtpl' }.lineNumber == 2
+        th.stackTrace.find { it.className.contains('DebuggableTemplateScript') && it.fileName != 'partials/broken.gtpl' }.lineNumber == 3
+    }
+
+    def "Failing to parse included template reports its name"() {
+        dte.templateResolver = { name -> new StringReader('Hello world!\n<% if (true) %>\n<% } %>') } as TemplateResolver
+
+        when:
+        dte.createTemplate('<%@ include file="broken.gtpl" %>')
+
+        then:
+        TemplateParsingException e = thrown(TemplateParsingException)
+        e.templateName == 'broken.gtpl'
+        e.message.contains('(in template broken.gtpl)')
+        e.message.contains('2   :<% if (true) %>')
+    }
+
+    def "Templates referencing themselves are reported"() {
+        dte.templateResolver = { name -> new StringReader(name == 'a.gtpl' ? '<%@ include file="b.gtpl" %>' : '<%@ layout file="a.gtpl" %>') } as TemplateResolver
+
+        when:
+        dte.createTemplate('<%@ include file="a.gtpl" %>')
+
+        then:
+        GroovyRuntimeException e = thrown(GroovyRuntimeException)
+        e.message == 'Template a.gtpl references itself: a.gtpl -> b.gtpl -> a.gtpl'
+    }
+
+    @Unroll
+    def "Section starting by annotation #template is not a directive with streaming #streaming"() {
+        dte.streaming = streaming
+
+        expect:
+        dte.createTemplate(template).make().toString() == 'Hi there'
+
+        where:
+        template                                                                  | streaming
+        '<%@groovy.transform.Field String greeting = "Hi" %>${greeting} there'     | false
+        '<%@groovy.transform.Field String greeting = "Hi" %>${greeting} there'     | true
+    }
+
+    @Unroll
+    def "Invalid directive #template is reported"() {
+        when:
+        dte.createTemplate(template)
+
+        then:
+        GroovyRuntimeException e = thrown(GroovyRuntimeException)
+        e.message == message
+
+        where:
+        template                                         | message
+        'Hello\n<%@ body file="x" %>'                    | 'Unknown directive <%@ body file="x" %> at line 2, column 3'
+        '<%@ include %>'                                 | 'Unknown directive <%@ include %> at line 1, column 3'
+        '<%@ layout file="a"%><%@ layout file="b"%>'     | 'Template can only have one layout <%@ layout file="b"%> at line 1, column 24'
+        '<%@ include file="a.gtpl" %>'                   | 'Template resolver is not set, cannot resolve template a.gtpl'
+        '<%@ model %>'                                   | 'Model directive must declare at least one variable <%@ model %> at line 1, column 3'
+        '<%@ model out="Writer" %>'                      | 'Invalid model variable out in directive <%@ model out="Writer" %> at line 1, column 3'
+        '<%@ cache %>a<%@ cache %>b'                     | 'Cache directives cannot be nested <%@ cache %> at line 1, column 16'
+        'a\n<%@ cache key="x" %>b'                        | 'Cache directive is not closed by endcache directive <%@ cache key="x" %> at line 2, column 3'
+        '<%@ endcache %>'                                | 'Endcache directive without cache directive <%@ endcache %> at line 1, column 3'
+        '<%@ cache ttl="5w" %><%@ endcache %>'           | 'Invalid time to live 5w in directive <%@ cache ttl="5w" %> at line 1, column 3'
+        '<%@ cache file="a" %><%@ endcache %>'           | 'Unknown directive <%@ cache file="a" %> at line 1, column 3'
+    }
+
+    def "All template frames in the exception, its causes and suppressed exceptions are remapped"() {
+        dte.streaming = true
+        DebuggableTemplate tmp = dte.createTemplate('''Blah
+<% def fail = { msg -> throw new IllegalStateException(msg) } %>
+<% try { fail('first') } catch (e) {
+    RuntimeException wrapper = new RuntimeException('Ooops', e)
+    wrapper.addSuppressed(new IllegalArgumentException('suppressed'))
+    throw wrapper
+} %>
+''')
+        when:
+        tmp.make().writeTo(new StringWriter())
+
+        then:
+        RuntimeException th = thrown()
+        th.stackTrace.findAll { it.fileName?.contains('DebuggableTemplateScript') }*.lineNumber.every { it in [2, 3, 4, 5, 6] }
+        th.stackTrace.find { it.fileName?.contains('DebuggableTemplateScript') }.lineNumber == 4
+        th.cause.stackTrace.findAll { it.fileName?.contains('DebuggableTemplateScript') }*.lineNumber.containsAll([2, 3])
+        th.suppressed[0].stackTrace.find { it.fileName?.contains('DebuggableTemplateScript') }.lineNumber == 5
+    }
+
+    def "Stack trace remapping can be disabled and applied on demand"() {
+        dte.stackTraceRemapping = false
+        dte.streaming = true
+        DebuggableTemplate tmp = dte.createTemplate('Blah\n\n\n<% throw new RuntimeException("Ooops") %>')
+
+        when:
+        tmp.make().writeTo(new StringWriter())
+
+        then:
+        RuntimeException th = thrown()
+        th.stackTrace.find { it.className.contains('DebuggableTemplateScript') }.lineNumber != 4
+        tmp.remapStackTrace(th).is(th)
+        th.stackTrace.find { it.className.contains('DebuggableTemplateScript') }.lineNumber == 4
+    }
+
+    def "Errors thrown by template are remapped"() {
+        DebuggableTemplate tmp = dte.createTemplate('Blah\n<% assert 1 == 2 %>')
+
+        when:
+        tmp.make().writeTo(new StringWriter())
+
+        then:
+        AssertionError th = thrown()
+        th.stackTrace.find { it.className.contains('DebuggableTemplateScript') }.lineNumber == 2
+    }
+
+    @Unroll
+    def "Template declaring its model is compiled statically with streaming #streaming"() {
+        dte.streaming = streaming
+        DebuggableTemplate tmp = dte.createTemplate('''<%@ model name="String" items="List<Integer>" %>Hello ${name.toUpperCase()}!
+<% items.each { Integer item -> %><li>${item + 1}</li><% } %>''')
+
+        expect:
+        tmp.model == [name: 'String', items: 'List<Integer>']
+        tmp.make(name: 'World', items: [1, 2]).toString() == 'Hello WORLD!\n<li>2</li><li>3</li>'
+        tmp.make(name: 'World', items: []).toString() == 'Hello WORLD!\n'
+
+        where:
+        streaming << [false, true]
+    }
+
+    @Unroll
+    def "Type checking error #expected in template declaring its model is reported at the template position"() {
+        when:
+        dte.createTemplate(template)
+
+        then:
+        TemplateParsingException e = thrown(TemplateParsingException)
+        SyntaxException error = e.cause.errorCollector.errors[0].cause
+        e.positionIndex.get(error.startLine, error.startColumn) == expected
+        e.message.contains(message)
+
+        where:
+        template                                                    | expected          | message
+        '<%@ model name="String" %>Hello\n${name.size()} ${other}'  | Position.at(2, 17) | 'The variable [other] is undeclared'
+        '<%@ model name="String" %>\n\nHello ${name.foo()}'         | Position.at(3, 8)  | 'Cannot find matching method java.lang.String#foo()'
+        'Hello\n<%@ model name="Strin" %>'                          | Position.at(2, 3)  | 'unable to resolve class Strin'
+    }
+
+    def "Template without model is compiled dynamically"() {
+        when:
+        dte.createTemplate('Hello ${name.foo()}')
+
+        then:
+        noExceptionThrown()
+    }
+
+    @Unroll
+    def "Large template is split into several methods with streaming #streaming"() {
+        DebuggableTemplateEngine engine = new DebuggableTemplateEngine()
+        engine.streaming = streaming
+        String source = '<% def total = 0; def names = [] %>\n' + (1..150).collect { "<li>\${item${it}.name} and \${x * 2}</li><% total += x; names << 'n$it' %>\n<% if (x > $it) { %>yes<% } %>\n" }.join() + '${total} <%= names.collect { it.toUpperCase() }.last() %>'
+        Map binding = [x: 2]
+        (1..150).each { binding["item$it"] = [name: "i$it"] }
+
+        when:
+        DebuggableTemplate template = engine.createTemplate(source)
+        String result = template.make(binding).toString()
+
+        then:
+        template.script.class.declaredMethods.count { it.name.startsWith(ScriptSplitter.METHOD_PREFIX) } > 1
+        result.startsWith('\n<li>i1 and 4</li>\nyes\n<li>i2 and 4</li>\n\n')
+        result.endsWith('<li>i150 and 4</li>\n\n300 N150')
+
+        where:
+        streaming << [false, true]
+    }
+
+    def "Exceptions thrown by split template are reported at the template line"() {
+        DebuggableTemplateEngine engine = new DebuggableTemplateEngine()
+        String source = (1..300).collect { "<li>\${x * $it}</li>" }.join('\n') + '\n${x.foo()}'
+
+        when:
+        engine.createTemplate(source).make(x: 2).toString()
+
+        then:
+        Throwable th = thrown(MissingMethodException)
+        th.stackTrace.find { it.className.contains('DebuggableTemplateScript') }.lineNumber == 301
+    }
+
+    @Unroll
+    def "Template #description is not split"() {
+        DebuggableTemplateEngine engine = new DebuggableTemplateEngine()
+        engine.maximumMethodWeight = weight
+
+        when:
+        DebuggableTemplate template = engine.createTemplate((1..300).collect { "<li>\${x * $it}</li>" }.join('\n') + suffix)
+
+        then:
+        template.make(x: 1).toString().startsWith('<li>1</li>\n<li>2</li>')
+        !template.script.class.declaredMethods.any { it.name.startsWith(ScriptSplitter.METHOD_PREFIX) }
+
+        where:
+        description                     | weight                                 | suffix
+        'with splitting disabled'       | 0                                      | ''
+        'returning from the top level'  | ScriptSplitter.DEFAULT_MAXIMUM_WEIGHT  | '<% if (x > 1) return %>'
+        'declaring untyped variable'    | ScriptSplitter.DEFAULT_MAXIMUM_WEIGHT  | '<% def a, b %>'
+        'smaller than the maximum'      | 10000                                  | ''
+    }
+
+    @Unroll
+    def "Template with thousand expressions using top-level variable compiles with weight #weight"() {
+        DebuggableTemplateEngine engine = new DebuggableTemplateEngine()
+        engine.maximumMethodWeight = weight
+        String source = '<% def item = [name: \'a\', value: 1] %>\n' + (1..1000).collect { "<li>\${item.name} $it \${item.value + $it}</li>" }.join('\n')
+
+        when:
+        DebuggableTemplate template = engine.createTemplate(source)
+        String result = template.make().toString()
+
+        then:
+        result.startsWith('\n<li>a 1 2</li>\n<li>a 2 3</li>\n')
+        result.endsWith('<li>a 1000 1001</li>')
+        template.script.class.declaredMethods.any { it.name.startsWith(ScriptSplitter.METHOD_PREFIX) } == split
+
+        where:
+        weight                                 | split
+        0                                      | false
+        ScriptSplitter.DEFAULT_MAXIMUM_WEIGHT  | true
+    }
+
+    def "Template with top-level statement heavier than the maximum is not split"() {
+        DebuggableTemplateEngine engine = new DebuggableTemplateEngine()
+        String source = '<% def shown = true %>\n<% if (shown) { %>' + (1..300).collect { "<li>\${x * $it}</li>" }.join('\n') + '<% } %>\n' + (1..300).collect { "<li>\${x * $it}</li>" }.join('\n')
+
+        when:
+        DebuggableTemplate template = engine.createTemplate(source)
+
+        then:
+        template.make(x: 1).toString().startsWith('\n<li>1</li>\n<li>2</li>')
+        !template.script.class.declaredMethods.any { it.name.startsWith(ScriptSplitter.METHOD_PREFIX) }
+    }
+
+    @Unroll
+    def "Large template referencing the binding variable before declaring the variable of the same name with weight #weight"() {
+        DebuggableTemplateEngine engine = new DebuggableTemplateEngine()
+        engine.maximumMethodWeight = weight
+        String source = '[${name}]<% def name = "local-" + user %>\n' + (1..300).collect { "<li>\${x * $it}</li>" }.join('\n') + '\n[${name}]'
+
+        when:
+        String result = engine.createTemplate(source).make(name: 'binding', user: 'u', x: 1).toString()
+
+        then:
+        result.startsWith('[binding]\n<li>1</li>')
+        result.endsWith('<li>300</li>\n[local-u]')
+
+        where:
+        weight << [0, ScriptSplitter.DEFAULT_MAXIMUM_WEIGHT]
+    }
+
+    def "Pooled split template doesn't keep the variables of the previous render"() {
+        DebuggableTemplateEngine engine = new DebuggableTemplateEngine()
+        engine.scriptPoolSize = 4
+        String source = '<% def user = current; int count = user.size() %>\n' + (1..300).collect { "<li>\${x * $it}</li>" }.join('\n') + '\n${user}:${count}'
+
+        when:
+        DebuggableTemplate template = engine.createTemplate(source)
+        String first = template.make(current: 'alice', x: 1).toString()
+        Script idle = template.scriptPool.idle.peek()
+
+        then:
+        template.script.class.declaredMethods.count { it.name.startsWith(ScriptSplitter.METHOD_PREFIX) } > 1
+        first.endsWith('alice:5')
+        idle.@user == null
+        idle.@count == 0
+        template.make(current: 'bob', x: 1).toString().endsWith('bob:3')
+        template.scriptPool.idle.peek().is(idle)
+    }
+
+    def "Negative maximum method weight is rejected"() {
+        when:
+        dte.maximumMethodWeight = -1
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    @Unroll
+    def "White space of the literal text is collapsed with streaming #streaming"() {
+        DebuggableTemplateEngine engine = new DebuggableTemplateEngine()
+        engine.streaming = streaming
+        engine.compactWhitespace = true
+        String source = '''<ul>
+            <% items.each { %>
+                <li>  ${it}  </li>
+
+            <% } %>
+        </ul>
+        <PRE>  keep
+            this  </pre>   <textarea>${text}  \n  </textarea>
+        <script>
+            var a = 1
+            var b = 2
+        </script>
+        <p>a \\
+           b</p>'''
+
+        when:
+        String result = engine.createTemplate(source).make(items: [1, 2], text: 'x').toString()
+
+        then:
+        result == '''<ul>
+
+<li> 1 </li>
+
+<li> 2 </li>
+
+</ul>
+<PRE>  keep
+            this  </pre> <textarea>x  \n  </textarea>
+<script>
+            var a = 1
+            var b = 2
+        </script>
+<p>a  b</p>'''
+
+        where:
+        streaming << [false, true]
+    }
+
+    @Unroll
+    def "Compacted template reports the original lines with streaming #streaming and lazy position index #lazy"() {
+        DebuggableTemplateEngine engine = new DebuggableTemplateEngine()
+        engine.streaming = streaming
+        engine.lazyPositionIndex = lazy
+        engine.compactWhitespace = true
+
+        when:
+        engine.createTemplate('<div>\n\n\n      <p>\n\n   ${name}   \n\n     ${name.foo()}</p></div>').make(name: 'World').toString()
+
+        then:
+        Throwable th = thrown(MissingMethodException)
+        th.stackTrace.find { it.className.contains('DebuggableTemplateScript') }.lineNumber == 8
+
+        when:
+        engine.createTemplate('<div>\n\n\n      <p>\n\n   <% if (true) %>   \n\n   </p>')
+
+        then:
+        TemplateParsingException e = thrown(TemplateParsingException)
+        SyntaxException error = e.cause.errorCollector.errors[0].cause
+        e.positionIndex.get(error.startLine, error.startColumn).line == 6
+
+        where:
+        streaming | lazy
+        false     | false
+        false     | true
+        true      | false
+        true      | true
+    }
+
+    @Unroll
+    def "Constant expressions are folded into the literal text with streaming #streaming"() {
+        DebuggableTemplateEngine engine = new DebuggableTemplateEngine()
+        engine.streaming = streaming
+        engine.escaping = Escaping.HTML
+        engine.constantFolding = true
+        String source = 'a${1 + 2}b<%= \'x\'.toUpperCase() + "y" %>${10 / 4}|${true && !false}|${\'Tom & Jerry\'}|<%== \'<b>\' %>|${-3.abs()}|${1 > 2 ? \'yes\' : \'no\'}|${\'\' ?: \'empty\'}|${"\\\\"}|${name}'
+
+        when:
+        DebuggableTemplate template = engine.createTemplate(source)
+        String result = template.make(name: '<i>').toString()
+        engine.constantFolding = false
+
+        then:
+        result == 'a3bXy2.5|true|Tom &amp; Jerry|<b>|-3|no|empty|\\|&lt;i&gt;'
+        result == engine.createTemplate(source).make(name: '<i>').toString()
+        !streaming || template.staticTexts == ['a3bXy2.5|true|Tom &amp; Jerry|<b>|-3|no|empty|\\|']
+
+        where:
+        streaming << [false, true]
+    }
+
+    @Unroll
+    def "Expressions #expression are not folded"() {
+        DebuggableTemplateEngine engine = new DebuggableTemplateEngine()
+        engine.streaming = true
+        engine.constantFolding = true
+
+        when:
+        DebuggableTemplate template = engine.createTemplate('<' + expression + '>')
+
+        then:
+        template.staticTexts == ['<', '>']
+        template.make(name: 'x').toString() == '<' + result + '>'
+
+        where:
+        expression              | result
+        '${name}'               | 'x'
+        '${"x" * 3}'            | 'xxx'
+        '${"a$name"}'           | 'ax'
+        '${ -> "a" }'           | 'a'
+        '${null}'               | 'null'
+        '${Math.max(1, 2)}'     | '2'
+        '${"a".concat("b")}'    | 'ab'
+    }
+
+    @Unroll
+    def "Folded template reports the original positions with streaming #streaming and lazy position index #lazy"() {
+        DebuggableTemplateEngine engine = new DebuggableTemplateEngine()
+        engine.streaming = streaming
+        engine.lazyPositionIndex = lazy
+        engine.constantFolding = true
+
+        expect:
+        engine.createTemplate('\\${1 + 1} \\\\${1 + 1}').make().toString() == '${1 + 1} \\2'
+
+        when:
+        engine.createTemplate('${1 + 1}\n${"a" + "b"}\n<% x = 1 / 0 %>').make().toString()
+
+        then:
+        Throwable th = thrown(ArithmeticException)
+        th.stackTrace.find { it.className.contains('DebuggableTemplateScript') }.lineNumber == 3
+
+        when:
+        engine.createTemplate('${1 + 1}\n${"a" + "b"}\n   <% if (true) %>')
+
+        then:
+        TemplateParsingException e = thrown(TemplateParsingException)
+        SyntaxException error = e.cause.errorCollector.errors[0].cause
+        e.positionIndex.get(error.startLine, error.startColumn).line == 3
+
+        where:
+        streaming | lazy
+        false     | false
+        false     | true
+        true      | false
+        true      | true
+    }
+
 }
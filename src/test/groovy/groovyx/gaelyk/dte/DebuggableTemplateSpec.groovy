@@ -0,0 +1,331 @@
+package groovyx.gaelyk.dte
+
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
+import java.nio.charset.Charset
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class DebuggableTemplateSpec extends Specification {
+
+    @Unroll
+    def "Template #template is parsed into the same script as before"() {
+        DebuggableTemplate fromString = new DebuggableTemplate()
+        DebuggableTemplate fromReader = new DebuggableTemplate()
+
+        expect:
+        fromString.parse(template) == script
+        fromReader.parse(new StringReader(template)) == script
+        fromString.positionIndex.asMap() == fromReader.positionIndex.asMap()
+
+        where:
+        template | script
+        'Hello world!' | 'out.print("""Hello world!""");\n\n/* Generated by SimpleTemplateEngine */'
+        'Dear <%= firstname %> \$lastname,\n\nWe <% if (accepted) print \'are pleased\' else print \'regret\' %> to inform "you"\r\n\'\$title\' was \${ accepted ?\n \'accepted\' : \'rejected\' }.\r<a href="x">' | 'out.print("""Dear \${ firstname } \$lastname,\n\nWe """); if (accepted) print \'are pleased\' else print \'regret\' ;\nout.print(""" to inform \\"you\\"\n\'\$title\' was \${ accepted ? \'accepted\' : \'rejected\' }.\n<a href=\\"x\\">""");\n\n/* Generated by SimpleTemplateEngine */'
+        '<% items.each { %>\n  <li>\${it}</li>\n<% } %>' | 'out.print(""""""); items.each { ;\nout.print("""\n  <li>\${it}</li>\n"""); } ;\nout.print("""""");\n\n/* Generated by SimpleTemplateEngine */'
+        'a < b \$ c <%= x %% y %> 100% \${z}' | 'out.print("""a < b \$ c \${ x %% y } 100% \${z}""");\n\n/* Generated by SimpleTemplateEngine */'
+        '<%= a\r\nb %><%\r\ndef x = 1\r\n%>tail' | 'out.print("""\${ ab }""");\ndef x = 1\n;\nout.print("""tail""");\n\n/* Generated by SimpleTemplateEngine */'
+        'unterminated \${ abc' | 'out.print("""unterminated \${ abc""");\n\n/* Generated by SimpleTemplateEngine */'
+        'unterminated <%= abc' | 'out.print("""unterminated \${ abc}""");\n\n/* Generated by SimpleTemplateEngine */'
+        'unterminated <% abc' | 'out.print("""unterminated """); abc;\nout.print("""""");\n\n/* Generated by SimpleTemplateEngine */'
+        'ends with <' | 'out.print("""ends with <""");\n\n/* Generated by SimpleTemplateEngine */'
+        'ends with \$' | 'out.print("""ends with \$""");\n\n/* Generated by SimpleTemplateEngine */'
+        '<%' | 'out.print("""""");;\nout.print("""""");\n\n/* Generated by SimpleTemplateEngine */'
+        '\\\${escaped} \\"q\\"' | 'out.print("""\\\${escaped} \\\\"q\\\\"""");\n\n/* Generated by SimpleTemplateEngine */'
+    }
+
+    def "Copied text and generated code are mapped to the template positions"() {
+        DebuggableTemplate template = new DebuggableTemplate()
+
+        when:
+        template.parse('Hi "you"\n<% def x = 1 %>${x}')
+        PositionIndex index = template.positionIndex
+
+        then: "text is mapped char by char"
+        index.get(1, 14) == Position.at(1, 1)
+        index.get(1, 15) == Position.at(1, 2)
+
+        and: "escaped quotes are mapped to the original quote"
+        index.get(1, 17) == Position.at(1, 4)
+        index.get(1, 18) == Position.at(1, 4)
+
+        and: "new lines are mapped to the beginning of the next line"
+        index.get(1, 24) == Position.at(2, 0)
+
+        and: "section content is mapped to the original code"
+        index.get(2, 6) == Position.at(2, 3)
+        index.get(2, 7) == Position.at(2, 4)
+    }
+
+    def "Template can be rendered directly to the writer"() {
+        DebuggableTemplate template = new DebuggableTemplateEngine().createTemplate(new StringReader('Hello ${name}!'))
+        StringWriter writer = new StringWriter()
+
+        when:
+        template.render(name: 'World', writer)
+
+        then:
+        writer.toString() == 'Hello World!'
+    }
+
+    def "Script instances are reused only if the pool is enabled"() {
+        DebuggableTemplateEngine engine = new DebuggableTemplateEngine()
+        engine.scriptPoolSize = poolSize
+        DebuggableTemplate template = engine.createTemplate(new StringReader('<% out << System.identityHashCode(this) %>:${name}'))
+
+        when:
+        String first = template.make(name: 'a').toString()
+        String second = template.make(name: 'b').toString()
+
+        then:
+        first.endsWith(':a')
+        second.endsWith(':b')
+        (first - ':a' == second - ':b') == reused
+
+        where:
+        poolSize | reused
+        0        | false
+        1        | true
+    }
+
+    @Unroll
+    def "Streaming template #template renders the same output as GString template"() {
+        DebuggableTemplateEngine engine = new DebuggableTemplateEngine()
+        DebuggableTemplateEngine streamingEngine = new DebuggableTemplateEngine()
+        streamingEngine.streaming = true
+        Map binding = [name: 'World', items: ['a', 'b'], user: [name: 'Joe'], n: null]
+
+        expect:
+        streamingEngine.createTemplate(new StringReader(template)).make(binding).toString() == engine.createTemplate(new StringReader(template)).make(binding).toString()
+
+        where:
+        template << [
+            'Hello world!',
+            'Hello ${name}!',
+            'Hello $name and $user.name, $user.name.empty $name()',
+            'Hello <%= name %>, "quoted" \'single\'',
+            '<% items.each { %>\n  <li>${it}</li>\r\n<% } %>',
+            'escaped \\${name} \\$name \\\\${name} \\"q\\" \\\\ \\t \\u0041 \\101',
+            'continued \\\nline',
+            'null ${n} ${ } <%= n %>',
+            'closures ${ -> name } ${ w -> w << name }',
+            'a < b 100% ${name}',
+            '<% if (name) { %>yes<% } else { %>no<% } %>',
+        ]
+    }
+
+    def "Streaming template keeps the literal text as interned static texts"() {
+        DebuggableTemplate template = new DebuggableTemplate()
+        template.streaming = true
+
+        when:
+        String script = template.parse('${a}<br>\n${b}<br>\n')
+
+        then:
+        template.staticTexts as List == ['<br>\n']
+        template.staticTexts[0].is('<br>\n'.intern())
+        script == 'out.writeValue(a);\nout.writeStatic(0);\nout.writeValue(b);\nout.writeStatic(0);\n\n/* Generated by DebuggableTemplateEngine */'
+
+        and: "static text is mapped to its first character"
+        template.positionIndex.get(2, 1) == Position.at(1, 5)
+        template.positionIndex.get(4, 1) == Position.at(2, 5)
+    }
+
+    def "Streaming template writes the output as it goes"() {
+        DebuggableTemplateEngine engine = new DebuggableTemplateEngine()
+        engine.streaming = true
+        DebuggableTemplate template = engine.createTemplate(new StringReader('Hello <% throw new IllegalStateException("failed") %>'))
+        StringWriter writer = new StringWriter()
+
+        when:
+        template.render([:], writer)
+
+        then:
+        thrown(IllegalStateException)
+        writer.toString() == 'Hello '
+    }
+
+    @Unroll
+    def "Template is rendered into the output stream using #charset charset with streaming #streaming"() {
+        DebuggableTemplateEngine engine = new DebuggableTemplateEngine()
+        engine.streaming = streaming
+        engine.charset = Charset.forName(charset)
+        String text = 'Žluťoučký ${name} 😀 <% out << "kůň" %> ' + ('ü' * 10000) + ' $name'
+        DebuggableTemplate template = engine.createTemplate(new StringReader(text))
+        ByteArrayOutputStream out = new ByteArrayOutputStream()
+        ByteArrayOutputStream channelOut = new ByteArrayOutputStream()
+        String expected = template.make(name: 'kůň').toString()
+
+        when:
+        template.render(name: 'kůň', out)
+        template.render(name: 'kůň', Channels.newChannel(channelOut))
+
+        then:
+        out.toByteArray() == expected.getBytes(charset)
+        channelOut.toByteArray() == expected.getBytes(charset)
+
+        where:
+        charset      | streaming
+        'UTF-8'      | true
+        'UTF-8'      | false
+        'ISO-8859-2' | true
+        'UTF-16BE'   | true
+    }
+
+    def "Static texts are encoded when the template is compiled"() {
+        DebuggableTemplateEngine engine = new DebuggableTemplateEngine()
+        engine.streaming = true
+        engine.charset = Charset.forName('ISO-8859-2')
+
+        when:
+        DebuggableTemplate template = engine.createTemplate(new StringReader('ů${name}'))
+
+        then:
+        template.charset.name() == 'ISO-8859-2'
+        template.encodedStaticTexts.length == 1
+        template.encodedStaticTexts[0] == 'ů'.getBytes('ISO-8859-2')
+    }
+
+    def "Template rendered into string reuses the pooled buffer sized by the estimated length"() {
+        DebuggableTemplateEngine engine = new DebuggableTemplateEngine()
+        DebuggableTemplate template = engine.createTemplate(new StringReader('<% items.each { %>${it},<% } %>'))
+
+        when:
+        String first = template.make(items: 1..1000).toString()
+        int estimate = template.estimatedLength
+        String second = template.renderToString(items: 1..10)
+
+        then:
+        first == (1..1000).join(',') + ','
+        second == '1,2,3,4,5,6,7,8,9,10,'
+        estimate == first.length()
+        template.estimatedLength == estimate + (second.length() - estimate).intdiv(8)
+        engine.renderBufferPool.idleCount == 1
+        engine.renderBufferPool.acquire(0).capacity() >= first.length()
+    }
+
+    def "Buffers are not pooled if the pool is disabled or the buffer is too large"() {
+        expect:
+        !new RenderBufferPool(0, 1024).with { release(new RenderBuffer(16)); idleCount }
+        !new RenderBufferPool(1, 1024).with { release(new RenderBuffer(2048)); idleCount }
+        new RenderBufferPool(1, 1024).with { release(new RenderBuffer(16)); release(new RenderBuffer(16)); idleCount } == 1
+    }
+
+    def "Failed render returns the buffer into the pool"() {
+        DebuggableTemplateEngine engine = new DebuggableTemplateEngine()
+        DebuggableTemplate template = engine.createTemplate(new StringReader('Hello <% throw new IllegalStateException() %>'))
+
+        when:
+        template.make().toString()
+
+        then:
+        thrown(IllegalStateException)
+        engine.renderBufferPool.idleCount == 1
+        template.estimatedLength == 0
+        engine.renderBufferPool.acquire(0).length() == 0
+    }
+
+    @Unroll
+    def "Template is rendered asynchronously in chunks flushed with policy #policy"() {
+        DebuggableTemplateEngine engine = new DebuggableTemplateEngine()
+        engine.streaming = true
+        engine.flushPolicy = policy
+        DebuggableTemplate template = engine.createTemplate(new StringReader('Ž${x}B<% out.print(y) %>C'))
+        List<String> chunks = []
+        ChunkSink sink = { ByteBuffer chunk ->
+            byte[] bytes = new byte[chunk.remaining()]
+            chunk.get(bytes)
+            chunks << new String(bytes, 'UTF-8')
+            CompletableFuture.completedFuture(null)
+        } as ChunkSink
+        ExecutorService executor = Executors.newSingleThreadExecutor()
+
+        when:
+        template.renderAsync([x: 1, y: 2], sink, executor).toCompletableFuture().get(10, TimeUnit.SECONDS)
+
+        then:
+        chunks == expected
+
+        cleanup:
+        executor.shutdown()
+
+        where:
+        policy                    | expected
+        FlushPolicy.END           | ['Ž1B2C']
+        FlushPolicy.STATIC_TEXT   | ['Ž', '1B', '2C']
+        FlushPolicy.EVERY_SEGMENT | ['Ž', '1', 'B', '2C']
+    }
+
+    def "Failure of the sink stops the asynchronous render"() {
+        DebuggableTemplateEngine engine = new DebuggableTemplateEngine()
+        engine.streaming = true
+        engine.flushPolicy = FlushPolicy.STATIC_TEXT
+        DebuggableTemplate template = engine.createTemplate(new StringReader('<% 100.times { %>Hello<% } %>'))
+        int calls = 0
+        ChunkSink sink = { ByteBuffer chunk ->
+            calls++
+            CompletableFuture<Void> failed = new CompletableFuture<Void>()
+            failed.completeExceptionally(new IOException('Connection closed'))
+            failed
+        } as ChunkSink
+        ExecutorService executor = Executors.newSingleThreadExecutor()
+
+        when:
+        template.renderAsync([:], sink, executor).toCompletableFuture().get(10, TimeUnit.SECONDS)
+
+        then:
+        ExecutionException e = thrown(ExecutionException)
+        e.cause instanceof IOException
+        e.cause.cause.message == 'Connection closed'
+        calls == 1
+
+        cleanup:
+        executor.shutdown()
+    }
+
+    def "Exception thrown by asynchronously rendered template completes the stage"() {
+        DebuggableTemplate template = new DebuggableTemplateEngine().createTemplate(new StringReader('Hello\n<% throw new IllegalStateException("failed") %>'))
+        ExecutorService executor = Executors.newSingleThreadExecutor()
+
+        when:
+        template.renderAsync([:], { CompletableFuture.completedFuture(null) } as ChunkSink, executor).toCompletableFuture().get(10, TimeUnit.SECONDS)
+
+        then:
+        ExecutionException e = thrown(ExecutionException)
+        e.cause instanceof IllegalStateException
+        e.cause.stackTrace.find { it.className.contains('DebuggableTemplateScript') }.lineNumber == 2
+
+        cleanup:
+        executor.shutdown()
+    }
+
+    def "Template writer doesn't lock the underlying writer"() {
+        List<Boolean> locked = []
+        Writer writer = new Writer() {
+            void write(char[] cbuf, int off, int len) { locked << Thread.holdsLock(this) }
+            void write(String str, int off, int len) { locked << Thread.holdsLock(this) }
+            void write(int c) { locked << Thread.holdsLock(this) }
+            void flush() { locked << Thread.holdsLock(this) }
+            void close() { }
+        }
+        TemplateWriter out = new TemplateWriter(writer, ['static'] as String[])
+
+        when:
+        out.writeStatic(0)
+        out.writeValue(1)
+        out.println('line')
+        out.printf('%d', 2)
+        out.flush()
+
+        then:
+        !locked.empty
+        locked.every { !it }
+    }
+
+}
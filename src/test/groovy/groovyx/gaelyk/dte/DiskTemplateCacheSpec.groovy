@@ -0,0 +1,220 @@
+package groovyx.gaelyk.dte
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+
+import org.codehaus.groovy.control.CompilerConfiguration
+import org.codehaus.groovy.control.customizers.ImportCustomizer
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class DiskTemplateCacheSpec extends Specification {
+
+    File root = Files.createTempDirectory('disk-cache').toFile()
+
+    def cleanup() {
+        root.deleteDir()
+    }
+
+    @Unroll
+    def "Template compiled by one engine is defined from the disk cache by another engine with streaming #streaming"() {
+        String text = 'Hello ${name}!\n<% items.each { %><li>$it</li><% } %>\n<% if (fail) throw new IllegalStateException("Ooops") %>'
+        DebuggableTemplateEngine first = newEngine(streaming)
+        DebuggableTemplateEngine second = newEngine(streaming)
+
+        when:
+        DebuggableTemplate compiled = first.createTemplate(new StringReader(text), 'index.gtpl')
+        DebuggableTemplate loaded = second.createTemplate(new StringReader(text), 'index.gtpl')
+
+        then:
+        first.diskTemplateCache.missCount == 1
+        first.diskTemplateCache.storeCount == 1
+        second.diskTemplateCache.hitCount == 1
+        second.diskTemplateCache.storeCount == 0
+        !loaded.scriptClass.is(compiled.scriptClass)
+        loaded.scriptClass.name == compiled.scriptClass.name
+        loaded.staticTexts == compiled.staticTexts
+        loaded.positionsMap == compiled.positionsMap
+        loaded.weight == compiled.weight
+        loaded.make(name: 'World', items: [1, 2], fail: false).toString() == 'Hello World!\n<li>1</li><li>2</li>\n'
+
+        when:
+        loaded.make(name: 'World', items: [], fail: true).toString()
+
+        then:
+        IllegalStateException e = thrown(IllegalStateException)
+        e.stackTrace.find { it.className == loaded.scriptClass.name }.lineNumber == 3
+
+        where:
+        streaming << [false, true]
+    }
+
+    def "Templates without name are cached by their source"() {
+        when:
+        newEngine(false).createTemplate(new StringReader('Hello ${name}'))
+        DebuggableTemplateEngine engine = newEngine(false)
+        DebuggableTemplate template = engine.createTemplate(new StringReader('Hello ${name}'))
+
+        then:
+        engine.diskTemplateCache.hitCount == 1
+        template.make(name: 'World').toString() == 'Hello World'
+    }
+
+    def "Changed template is compiled again"() {
+        DebuggableTemplateEngine engine = newEngine(false)
+
+        when:
+        engine.createTemplate(new StringReader('Hello'), 'index.gtpl')
+        DebuggableTemplate changed = newEngine(false).createTemplate(new StringReader('Bye'), 'index.gtpl')
+        DebuggableTemplate renamed = newEngine(false).createTemplate(new StringReader('Hello'), 'other.gtpl')
+        DebuggableTemplate streaming = newEngine(true).createTemplate(new StringReader('Hello'), 'index.gtpl')
+
+        then:
+        changed.make().toString() == 'Bye'
+        renamed.make().toString() == 'Hello'
+        streaming.make().toString() == 'Hello'
+        entries().size() == 4
+    }
+
+    def "Corrupted entry is ignored and replaced"() {
+        newEngine(false).createTemplate(new StringReader('Hello ${name}'), 'index.gtpl')
+        Path entry = entries()[0]
+        byte[] bytes = Files.readAllBytes(entry)
+        bytes[bytes.length.intdiv(2)]++
+        Files.write(entry, bytes)
+        DebuggableTemplateEngine engine = newEngine(false)
+
+        when:
+        DebuggableTemplate template = engine.createTemplate(new StringReader('Hello ${name}'), 'index.gtpl')
+
+        then:
+        template.make(name: 'World').toString() == 'Hello World'
+        engine.diskTemplateCache.hitCount == 0
+        engine.diskTemplateCache.storeCount == 1
+
+        when:
+        Files.write(entry, Arrays.copyOf(bytes, 10))
+        template = newEngine(false).createTemplate(new StringReader('Hello ${name}'), 'index.gtpl')
+
+        then:
+        template.make(name: 'World').toString() == 'Hello World'
+
+        when:
+        engine = newEngine(false)
+        engine.createTemplate(new StringReader('Hello ${name}'), 'index.gtpl')
+
+        then:
+        engine.diskTemplateCache.hitCount == 1
+    }
+
+    def "Templates with directives are restored from the disk cache"() {
+        DebuggableTemplateEngine first = newEngine(true)
+        DebuggableTemplateEngine second = newEngine(true)
+        first.templateResolver = second.templateResolver = { String name -> new StringReader(name == 'layout.gtpl' ? '[<%@ body %>]' : '<%@ model count="int" %>${count + 1}') } as TemplateResolver
+        String text = '<%@ layout file="layout.gtpl" %><%@ include file="count.gtpl" %>'
+
+        when:
+        first.createTemplate(new StringReader(text), 'index.gtpl')
+        DebuggableTemplate loaded = second.createTemplate(new StringReader(text), 'index.gtpl')
+
+        then:
+        second.diskTemplateCache.hitCount == 3
+        loaded.make(count: 41).toString() == '[42]'
+    }
+
+    def "Several engines share the disk cache concurrently"() {
+        ExecutorService executor = Executors.newFixedThreadPool(8)
+        List<Future<String>> results = (1..32).collect { int i ->
+            executor.submit({
+                newEngine(false).createTemplate(new StringReader("Template ${i % 4} \${name}"), "t${i % 4}.gtpl").make(name: i).toString()
+            } as Callable<String>)
+        }
+
+        expect:
+        results.collect { it.get() } == (1..32).collect { "Template ${it % 4} $it".toString() }
+        entries().size() == 4
+        root.list().every { it.endsWith(DiskTemplateCache.ENTRY_EXTENSION) }
+
+        when:
+        DebuggableTemplateEngine engine = newEngine(false)
+        (0..3).each { engine.createTemplate(new StringReader("Template $it \${name}"), "t${it}.gtpl") }
+
+        then:
+        engine.diskTemplateCache.hitCount == 4
+
+        when:
+        engine.diskTemplateCache.clear()
+
+        then:
+        entries().empty
+
+        cleanup:
+        executor.shutdown()
+    }
+
+    private DebuggableTemplateEngine newEngine(boolean streaming) {
+        DebuggableTemplateEngine engine = new DebuggableTemplateEngine()
+        engine.streaming = streaming
+        engine.diskTemplateCache = new DiskTemplateCache(root.toPath())
+        engine
+    }
+
+    private List<Path> entries() {
+        root.listFiles().findAll { it.name.endsWith(DiskTemplateCache.ENTRY_EXTENSION) }*.toPath()
+    }
+
+    @Unroll
+    def "Engine created for the shell keeps the configuration of the shell with model #model"() {
+        CompilerConfiguration configuration = new CompilerConfiguration()
+        configuration.scriptBaseClass = GreetingScript.name
+        configuration.addCompilationCustomizers(new ImportCustomizer().addImports(TimeUnit.name))
+        String text = (model ? '<%@ model name="String" %>' : '') + '${greet(name)} ${TimeUnit.SECONDS.toMillis(1)}'
+
+        when:
+        DebuggableTemplateEngine first = newEngine(new GroovyShell(configuration))
+        String compiled = first.createTemplate(new StringReader(text), 'index.gtpl').make(name: 'Grace').toString()
+        DebuggableTemplateEngine second = newEngine(new GroovyShell(configuration))
+        String loaded = second.createTemplate(new StringReader(text), 'index.gtpl').make(name: 'Grace').toString()
+
+        then:
+        compiled == 'Hello Grace 1000'
+        loaded == 'Hello Grace 1000'
+        second.diskTemplateCache.hitCount == 1
+
+        where:
+        model << [false, true]
+    }
+
+    def "Keys differ for different customizers and fingerprints"() {
+        CompilerConfiguration imports = new CompilerConfiguration()
+        imports.addCompilationCustomizers(new ImportCustomizer())
+        DiskTemplateCache cache = new DiskTemplateCache(root.toPath())
+        DiskTemplateCache fingerprinted = new DiskTemplateCache(root.toPath(), 'imports: java.util.concurrent.TimeUnit')
+
+        expect:
+        cache.key('hash', 'index.gtpl', false, false, null, null, 0) == cache.key('hash', 'index.gtpl', false, false, null, new CompilerConfiguration(), 0)
+        cache.key('hash', 'index.gtpl', false, false, null, null, 0) != cache.key('hash', 'index.gtpl', false, false, null, imports, 0)
+        cache.key('hash', 'index.gtpl', false, false, null, imports, 0) != fingerprinted.key('hash', 'index.gtpl', false, false, null, imports, 0)
+    }
+
+    private DebuggableTemplateEngine newEngine(GroovyShell shell) {
+        DebuggableTemplateEngine engine = new DebuggableTemplateEngine(shell)
+        engine.diskTemplateCache = new DiskTemplateCache(root.toPath())
+        engine
+    }
+
+}
+
+abstract class GreetingScript extends Script {
+
+    String greet(String name) {
+        "Hello $name"
+    }
+
+}
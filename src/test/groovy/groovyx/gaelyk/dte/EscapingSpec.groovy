@@ -0,0 +1,128 @@
+package groovyx.gaelyk.dte
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class EscapingSpec extends Specification {
+
+    DebuggableTemplateEngine engine = new DebuggableTemplateEngine()
+
+    @Unroll
+    def "Value #value is escaped as #expected by #escaping"() {
+        StringWriter string = new StringWriter()
+        StringWriter chars = new StringWriter()
+
+        when:
+        escaping.escape(value, 0, value.length(), string)
+        escaping.escape(value.toCharArray(), 0, value.length(), chars)
+
+        then:
+        string.toString() == expected
+        chars.toString() == expected
+
+        where:
+        escaping            | value                           | expected
+        Escaping.NONE       | '<a href="x">&</a>'             | '<a href="x">&</a>'
+        Escaping.HTML       | '<a href="x">Tom & Jerry\'s</a>' | '&lt;a href=&quot;x&quot;&gt;Tom &amp; Jerry&#39;s&lt;/a&gt;'
+        Escaping.HTML       | 'Žluťoučký kůň'                 | 'Žluťoučký kůň'
+        Escaping.ATTRIBUTE  | 'a b=`c`\n'                      | 'a&#32;b&#61;&#96;c&#96;&#10;'
+        Escaping.JAVASCRIPT | 'It\'s "</script>"\n\t\\ \u2028' | 'It\\\'s \\"\\u003C\\/script\\u003E\\"\\n\\t\\\\ \\u2028'
+        Escaping.JAVASCRIPT | '\u0001&'                       | '\\u0001\\u0026'
+        Escaping.URL        | 'a b&c=d/é~_.-'                 | 'a%20b%26c%3Dd%2F%C3%A9~_.-'
+        Escaping.URL        | '€ \uD83D\uDE00'                | '%E2%82%AC%20%F0%9F%98%80'
+        Escaping.URL        | '\uD83D'                        | '%3F'
+    }
+
+    def "Only part of the value is escaped"() {
+        StringWriter out = new StringWriter()
+
+        when:
+        Escaping.HTML.escape('x<b>&y', 1, 4, out)
+        Escaping.HTML.escape((int) '<' as char, out)
+
+        then:
+        out.toString() == '&lt;b&gt;&amp;&lt;'
+    }
+
+    @Unroll
+    def "Values of the expressions are escaped with streaming #streaming"() {
+        engine.streaming = streaming
+        engine.escaping = Escaping.HTML
+
+        when:
+        String result = engine.createTemplate('<p title="${title}">$name <%= 1 < 2 %> <%== html %> ${ -> html } ${ w -> w << html }</p><% out.print(html) %>').make(name: 'Tom & Jerry', title: '"quoted"', html: '<b>').toString()
+
+        then:
+        result == '<p title="&quot;quoted&quot;">Tom &amp; Jerry true <b> &lt;b&gt; &lt;b&gt;</p><b>'
+
+        where:
+        streaming << [false, true]
+    }
+
+    @Unroll
+    def "Raw expressions are written as they are without escaping with streaming #streaming"() {
+        engine.streaming = streaming
+
+        when:
+        DebuggableTemplate template = engine.createTemplate('<%== html %>${html}<%== 1 +\n 2 %>')
+
+        then:
+        template.escaping == Escaping.NONE
+        template.make(html: '<b>').toString() == '<b><b>3'
+
+        where:
+        streaming << [false, true]
+    }
+
+    @Unroll
+    def "Values are escaped when rendered into output stream with streaming #streaming"() {
+        engine.streaming = streaming
+        engine.escaping = Escaping.URL
+        ByteArrayOutputStream out = new ByteArrayOutputStream()
+
+        when:
+        engine.createTemplate('/search?q=${query}&page=<%= page %>').render([query: 'kůň & vůz', page: 2], out)
+
+        then:
+        out.toString('UTF-8') == '/search?q=k%C5%AF%C5%88%20%26%20v%C5%AFz&page=2'
+
+        where:
+        streaming << [false, true]
+    }
+
+    def "Values of included templates are escaped"() {
+        engine.escaping = Escaping.HTML
+        engine.templateResolver = { name -> new StringReader('<li>${item}</li><%== item %>') } as TemplateResolver
+
+        when:
+        String result = engine.createTemplate('<h1>${title}</h1><% items.each { item = it %><%@ include file="item.gtpl" %><% } %>').make(title: 'A & B', items: ['<i>']).toString()
+
+        then:
+        result == '<h1>A &amp; B</h1><li>&lt;i&gt;</li><i>'
+    }
+
+    @Unroll
+    def "Values of statically compiled template are escaped with streaming #streaming"() {
+        engine.streaming = streaming
+        engine.escaping = Escaping.HTML
+
+        when:
+        String result = engine.createTemplate('<%@ model name="String" %><b>${name}</b><%== name %>').make(name: '<i>').toString()
+
+        then:
+        result == '<b>&lt;i&gt;</b><i>'
+
+        where:
+        streaming << [false, true]
+    }
+
+    def "Exception thrown by raw expression is reported at the template line"() {
+        when:
+        engine.createTemplate('Hello\n<%== name.foo() %>').make(name: 'World').toString()
+
+        then:
+        Throwable th = thrown(MissingMethodException)
+        th.stackTrace.find { it.className.contains('DebuggableTemplateScript') }.lineNumber == 2
+    }
+
+}
@@ -0,0 +1,188 @@
+package groovyx.gaelyk.dte
+
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.atomic.AtomicInteger
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class FragmentCacheSpec extends Specification {
+
+    DebuggableTemplateEngine engine = new DebuggableTemplateEngine()
+
+    @Unroll
+    def "Fragments are cached under the key with streaming #streaming"() {
+        engine.streaming = streaming
+        engine.fragmentCache = new FragmentCache(10)
+        DebuggableTemplate template = engine.createTemplate('Hello ${name}! <%@ cache key=\'"nav-" + locale\' %><nav>${menu}<% out << "!" %></nav><%@ endcache %> ${name}')
+
+        expect:
+        template.make(name: 'A', locale: 'en', menu: 'Home').toString() == 'Hello A! <nav>Home!</nav> A'
+        template.make(name: 'B', locale: 'en', menu: 'Other').toString() == 'Hello B! <nav>Home!</nav> B'
+        template.make(name: 'C', locale: 'cs', menu: 'Domů').toString() == 'Hello C! <nav>Domů!</nav> C'
+        engine.fragmentCache.hitCount == 1
+        engine.fragmentCache.missCount == 2
+        engine.fragmentCache.loadCount == 2
+        engine.fragmentCache.size() == 2
+        engine.fragmentCache.weight == '<nav>Home!</nav>'.length() + '<nav>Domů!</nav>'.length()
+
+        when:
+        ByteArrayOutputStream out = new ByteArrayOutputStream()
+        template.render([name: 'D', locale: 'cs', menu: 'Jiné'], out)
+
+        then:
+        out.toString('UTF-8') == 'Hello D! <nav>Domů!</nav> D'
+
+        where:
+        streaming << [false, true]
+    }
+
+    @Unroll
+    def "Regions are rendered every time without fragment cache with streaming #streaming"() {
+        engine.streaming = streaming
+        DebuggableTemplate template = engine.createTemplate('<%@ cache %>${name}<%@ endcache %>')
+
+        expect:
+        template.make(name: 'A').toString() == 'A'
+        template.make(name: 'B').toString() == 'B'
+
+        where:
+        streaming << [false, true]
+    }
+
+    def "Fragments expire after their time to live"() {
+        engine.fragmentCache = new FragmentCache(10)
+        DebuggableTemplate template = engine.createTemplate('<%@ cache ttl="50ms" %>${name}<%@ endcache %>|<%@ cache ttl="1h" %>${name}<%@ endcache %>')
+
+        when:
+        String first = template.make(name: 'A').toString()
+        Thread.sleep(100)
+        String second = template.make(name: 'B').toString()
+
+        then:
+        first == 'A|A'
+        second == 'B|A'
+    }
+
+    def "Least recently used fragments are evicted"() {
+        engine.fragmentCache = new FragmentCache(2)
+        DebuggableTemplate template = engine.createTemplate('<%@ cache key="key" %>${value}<%@ endcache %>')
+
+        when:
+        template.make(key: 1, value: 'a').toString()
+        template.make(key: 2, value: 'b').toString()
+        template.make(key: 3, value: 'c').toString()
+
+        then:
+        engine.fragmentCache.size() == 2
+        engine.fragmentCache.evictionCount == 1
+        template.make(key: 1, value: 'd').toString() == 'd'
+        template.make(key: 3, value: 'e').toString() == 'c'
+    }
+
+    @Unroll
+    def "Fragments inside included templates are cached with streaming #streaming"() {
+        engine.streaming = streaming
+        engine.fragmentCache = new FragmentCache(10)
+        engine.escaping = Escaping.HTML
+        engine.templateResolver = { name -> new StringReader('<%@ cache %><footer>${year}</footer><%@ endcache %>') } as TemplateResolver
+        DebuggableTemplate template = engine.createTemplate('<%@ cache key="page" %><h1>${title}</h1><%@ include file="footer.gtpl" %><%@ endcache %><p>${title}</p>')
+
+        expect:
+        template.make(page: 1, title: 'A & B', year: 2024).toString() == '<h1>A &amp; B</h1><footer>2024</footer><p>A &amp; B</p>'
+        template.make(page: 2, title: 'C', year: 2025).toString() == '<h1>C</h1><footer>2024</footer><p>C</p>'
+        template.make(page: 1, title: 'D', year: 2025).toString() == '<h1>A &amp; B</h1><footer>2024</footer><p>D</p>'
+
+        where:
+        streaming << [false, true]
+    }
+
+    def "Failed fragment is not cached and the failure is reported at the template line"() {
+        engine.fragmentCache = new FragmentCache(10)
+        DebuggableTemplate template = engine.createTemplate('<%@ cache %>\n${name.toUpperCase()}<%@ endcache %>!')
+
+        when:
+        template.make(name: null).toString()
+
+        then:
+        Throwable th = thrown(NullPointerException)
+        th.stackTrace.find { it.className.contains('DebuggableTemplateScript') }.lineNumber == 2
+        engine.fragmentCache.size() == 0
+        template.make(name: 'World').toString() == '\nWORLD!'
+    }
+
+    def "Concurrent renders of missing fragment render it only once"() {
+        engine.fragmentCache = new FragmentCache(10)
+        DebuggableTemplate template = engine.createTemplate('<%@ cache %>${compute()}<%@ endcache %>')
+        AtomicInteger computed = new AtomicInteger()
+        Closure compute = { Thread.sleep(200); computed.incrementAndGet() }
+        ExecutorService executor = Executors.newFixedThreadPool(8)
+        CountDownLatch start = new CountDownLatch(1)
+
+        when:
+        List<Future<String>> results = (1..8).collect {
+            executor.submit({ start.await(); template.make(compute: compute).toString() } as Callable<String>)
+        }
+        start.countDown()
+
+        then:
+        results*.get() == ['1'] * 8
+        computed.get() == 1
+        engine.fragmentCache.loadCount == 1
+
+        cleanup:
+        executor.shutdown()
+    }
+
+    def "Invalid limits are rejected"() {
+        when:
+        new FragmentCache(0)
+
+        then:
+        thrown(IllegalArgumentException)
+
+        when:
+        new FragmentCache(1, 0)
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    def "Fragments are kept under the source of the template so the template compiled again finds them"() {
+        engine.fragmentCache = new FragmentCache(10)
+        String text = '<%@ cache %>${name}<%@ endcache %>'
+
+        expect:
+        engine.createTemplate(new StringReader(text), 'index.gtpl').make(name: 'A').toString() == 'A'
+        engine.createTemplate(new StringReader(text), 'index.gtpl').make(name: 'B').toString() == 'A'
+        engine.createTemplate(new StringReader('[' + text), 'index.gtpl').make(name: 'C').toString() == '[C'
+        engine.fragmentCache.hitCount == 1
+        engine.fragmentCache.entries.keySet().every { List key -> !key.any { it instanceof DebuggableTemplate } }
+    }
+
+    def "Fragments of the invalidated template are removed"() {
+        engine.fragmentCache = new FragmentCache(10)
+        engine.createTemplate(new StringReader('<%@ cache %>${name}<%@ endcache %>'), 'index.gtpl').make(name: 'A').toString()
+        engine.createTemplate(new StringReader('<%@ cache %>${name}<%@ endcache %>'), 'other.gtpl').make(name: 'B').toString()
+
+        when:
+        engine.invalidate('index.gtpl')
+
+        then:
+        engine.fragmentCache.size() == 1
+        engine.fragmentCache.weight == 1
+        engine.createTemplate(new StringReader('<%@ cache %>${name}<%@ endcache %>'), 'index.gtpl').make(name: 'C').toString() == 'C'
+        engine.createTemplate(new StringReader('<%@ cache %>${name}<%@ endcache %>'), 'other.gtpl').make(name: 'D').toString() == 'B'
+
+        when:
+        engine.invalidateAll()
+
+        then:
+        engine.fragmentCache.size() == 0
+    }
+
+}
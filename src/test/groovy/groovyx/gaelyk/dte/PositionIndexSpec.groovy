@@ -0,0 +1,116 @@
+package groovyx.gaelyk.dte
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class PositionIndexSpec extends Specification {
+
+    def "Continuous runs are merged into single segment"() {
+        PositionIndex.Builder builder = new PositionIndex.Builder()
+
+        when: "generated code followed by copied text is added char by char"
+        (1..5).each   { builder.add(1, it, 1, 0) }
+        (6..10).each  { builder.add(1, it, 1, it - 5) }
+        builder.add(1, 11, 2, 0)
+        PositionIndex index = builder.build()
+
+        then: "only three segments are kept"
+        index.lineCount == 1
+        index.segmentCount == 3
+        index.size() == 11
+
+        and: "every position can be looked up"
+        index.get(1, 3)  == Position.at(1, 0)
+        index.get(1, 6)  == Position.at(1, 1)
+        index.get(1, 10) == Position.at(1, 5)
+        index.get(1, 11) == Position.at(2, 0)
+
+        and: "positions outside of the script are not found"
+        index.get(1, 12) == null
+        index.get(2, 1) == null
+        index.get(0, 1) == null
+    }
+
+    def "Positions must be added in ascending order"() {
+        PositionIndex.Builder builder = new PositionIndex.Builder()
+        builder.add(2, 5, 1, 1)
+
+        when:
+        builder.add(2, 5, 1, 2)
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    @Unroll
+    def "Index matches the per character map for #description"() {
+        Map<Position, Position> expected = [:]
+        PositionIndex.Builder builder = new PositionIndex.Builder()
+        int line = 0
+        int column = 0
+        boolean wasNewLine = true
+
+        when:
+        text.each { String ch ->
+            if (wasNewLine) {
+                line++
+                column = 1
+            } else {
+                column++
+            }
+            wasNewLine = ch == '\n'
+            Position templatePosition = Position.at(expected.size().intdiv(7) + 1, expected.size() % 3 == 0 ? 0 : expected.size())
+            builder.add(line, column, templatePosition.line, templatePosition.column)
+            expected[Position.at(line, column)] = templatePosition
+        }
+        PositionIndex index = builder.build()
+
+        then:
+        expected.every { key, value -> index.get(key) == value }
+        index.toOffHeap().asMap() == expected
+        index.asMap().size() == expected.size()
+
+        where:
+        description     | text
+        "single line"   | "Hello world!"
+        "multiple lines"| "Hello\nworld\n\n!"
+    }
+
+    def "Off-heap index gives the same results as the heap one"() {
+        PositionIndex.Builder builder = new PositionIndex.Builder()
+        builder.add(1, 1, 10, 3, 5, 1)
+        builder.add(2, 1, 4, 3, 15, 0)
+        builder.add(2, 5, 2, 4, 1, 1)
+        PositionIndex heap = builder.build()
+
+        when:
+        PositionIndex offHeap = heap.toOffHeap()
+
+        then:
+        offHeap.offHeap
+        !heap.offHeap
+        offHeap.asMap() == heap.asMap()
+        offHeap.toHeap().asMap() == heap.asMap()
+        offHeap.get(1, 10) == Position.at(3, 14)
+        offHeap.get(2, 6) == Position.at(4, 2)
+    }
+
+    def "Index is created from the per character map"() {
+        Map<Position, Position> positions = [
+            (Position.at(1, 1)): Position.at(1, 3),
+            (Position.at(1, 2)): Position.at(1, 4),
+            (Position.at(2, 1)): Position.at(5, 1),
+            (Position.at(1, 3)): Position.at(1, 5),
+            (Position.at(2, 2)): Position.at(5, 1),
+        ]
+
+        when:
+        PositionIndex index = PositionIndex.of(positions)
+
+        then:
+        index.asMap() == positions
+        index.segmentCount == 2
+        index.get(3, 1) == null
+    }
+
+}
@@ -0,0 +1,162 @@
+package groovyx.gaelyk.dte
+
+import java.nio.file.Files
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class PrecompiledTemplateSpec extends Specification {
+
+    File templatesDir = Files.createTempDirectory('templates').toFile()
+    File outputDir = Files.createTempDirectory('precompiled').toFile()
+
+    def cleanup() {
+        templatesDir.deleteDir()
+        outputDir.deleteDir()
+    }
+
+    @Unroll
+    def "Precompiled template renders the same output with streaming #streaming"() {
+        new File(templatesDir, 'views').mkdirs()
+        new File(templatesDir, 'views/index.gtpl').text = 'Hello ${name}!\n<% items.each { %><li>$it</li><% } %>'
+        TemplatePrecompiler precompiler = new TemplatePrecompiler()
+        precompiler.streaming = streaming
+        DebuggableTemplateEngine engine = new DebuggableTemplateEngine()
+        engine.precompiledTemplateLoader = new PrecompiledTemplateLoader(outputDir)
+
+        when:
+        List<String> names = precompiler.precompileAll(templatesDir, outputDir)
+        DebuggableTemplate template = engine.createPrecompiledTemplate('views/index.gtpl')
+
+        then:
+        names == ['views/index.gtpl']
+        new File(outputDir, TemplatePrecompiler.getClassName('views/index.gtpl') + '.class').exists()
+        template.scriptClass.name == TemplatePrecompiler.getClassName('views/index.gtpl')
+        template.make(name: 'World', items: [1, 2]).toString() == 'Hello World!\n<li>1</li><li>2</li>'
+
+        where:
+        streaming << [false, true]
+    }
+
+    def "Template files are read using the charset of the precompiler"() {
+        new File(templatesDir, 'czech.gtpl').setText('Žluťoučký ${name}', 'ISO-8859-2')
+        TemplatePrecompiler precompiler = new TemplatePrecompiler()
+        precompiler.charset = java.nio.charset.Charset.forName('ISO-8859-2')
+        DebuggableTemplateEngine engine = new DebuggableTemplateEngine()
+        engine.precompiledTemplateLoader = new PrecompiledTemplateLoader(outputDir)
+
+        when:
+        precompiler.precompileAll(templatesDir, outputDir)
+
+        then:
+        engine.createPrecompiledTemplate('czech.gtpl').make(name: 'kůň').toString() == 'Žluťoučký kůň'
+    }
+
+    def "Constants are folded by the precompiler with its escaping"() {
+        TemplatePrecompiler precompiler = new TemplatePrecompiler()
+        precompiler.constantFolding = true
+        precompiler.escaping = Escaping.HTML
+        precompiler.streaming = true
+        precompiler.precompile('folded.gtpl', 'a${"<" + 1}b${name}', outputDir)
+        DebuggableTemplateEngine engine = new DebuggableTemplateEngine()
+        engine.precompiledTemplateLoader = new PrecompiledTemplateLoader(outputDir)
+        engine.escaping = Escaping.HTML
+
+        when:
+        DebuggableTemplate template = engine.createTemplate(new StringReader('a${"<" + 1}b${name}'), 'folded.gtpl')
+
+        then:
+        template.scriptClass.name.startsWith(TemplatePrecompiler.CLASS_PREFIX)
+        template.staticTexts == ['a&lt;1b']
+        template.make(name: '>').toString() == 'a&lt;1b&gt;'
+
+        when:
+        engine.escaping = Escaping.URL
+        template = engine.createTemplate(new StringReader('a${"<" + 1}b${name}'), 'folded.gtpl')
+
+        then:
+        !template.scriptClass.name.startsWith(TemplatePrecompiler.CLASS_PREFIX)
+        template.make(name: '>').toString() == 'a%3C1b%3E'
+
+        when:
+        engine.createPrecompiledTemplate('folded.gtpl')
+
+        then:
+        thrown(IllegalStateException)
+    }
+
+    def "Errors thrown by precompiled template are reported with template lines"() {
+        new TemplatePrecompiler().precompile('failing.gtpl', 'Blah\n<% throw new RuntimeException("Ooops") %>\n', outputDir)
+        DebuggableTemplateEngine engine = new DebuggableTemplateEngine()
+        engine.precompiledTemplateLoader = new PrecompiledTemplateLoader(outputDir)
+
+        when:
+        engine.createPrecompiledTemplate('failing.gtpl').make().writeTo(new StringWriter())
+
+        then:
+        RuntimeException e = thrown(RuntimeException)
+        e.stackTrace.find { it.className.startsWith(TemplatePrecompiler.CLASS_PREFIX) }.lineNumber == 2
+    }
+
+    def "Precompiled template is used only if the text of the template is the same"() {
+        new TemplatePrecompiler().precompile('hello.gtpl', 'Hello ${name}', outputDir)
+        DebuggableTemplateEngine engine = new DebuggableTemplateEngine()
+        engine.precompiledTemplateLoader = new PrecompiledTemplateLoader(outputDir)
+
+        when:
+        DebuggableTemplate same = engine.createTemplate(new StringReader('Hello ${name}'), 'hello.gtpl')
+        DebuggableTemplate changed = engine.createTemplate(new StringReader('Bye ${name}'), 'hello.gtpl')
+
+        then:
+        same.scriptClass.name.startsWith(TemplatePrecompiler.CLASS_PREFIX)
+        !changed.scriptClass.name.startsWith(TemplatePrecompiler.CLASS_PREFIX)
+        changed.make(name: 'World').toString() == 'Bye World'
+    }
+
+    def "Template declaring its model is precompiled statically"() {
+        DebuggableTemplateEngine engine = new DebuggableTemplateEngine()
+        engine.precompiledTemplateLoader = new PrecompiledTemplateLoader(outputDir)
+
+        when:
+        new TemplatePrecompiler().precompile('typed.gtpl', '<%@ model count="int" %>${count * 2}', outputDir)
+
+        then:
+        engine.createPrecompiledTemplate('typed.gtpl').make(count: 21).toString() == '42'
+
+        when:
+        new TemplatePrecompiler().precompile('invalid.gtpl', '<%@ model count="int" %>\n${count.foo}', outputDir)
+
+        then:
+        TemplateParsingException e = thrown(TemplateParsingException)
+        e.message.contains('2   :${count.foo}')
+    }
+
+    def "Missing precompiled template is reported"() {
+        DebuggableTemplateEngine engine = new DebuggableTemplateEngine()
+        engine.precompiledTemplateLoader = new PrecompiledTemplateLoader(outputDir)
+
+        when:
+        engine.createPrecompiledTemplate('missing.gtpl')
+
+        then:
+        thrown(FileNotFoundException)
+    }
+
+    def "Invalid template is reported when it is precompiled"() {
+        when:
+        new TemplatePrecompiler().precompile('invalid.gtpl', 'Hello\n<% if (true) %>\n<% } %>', outputDir)
+
+        then:
+        TemplateParsingException e = thrown(TemplateParsingException)
+        e.message.contains('<% if (true) %>')
+    }
+
+    def "Class names of precompiled templates are unique"() {
+        expect:
+        TemplatePrecompiler.getClassName('views/index.gtpl') == 'PrecompiledTemplate_views_2findex_2egtpl'
+        TemplatePrecompiler.getClassName('a_b/c') != TemplatePrecompiler.getClassName('a/b_c')
+        TemplatePrecompiler.getClassName('views\\index.gtpl') == TemplatePrecompiler.getClassName('views/index.gtpl')
+        TemplatePrecompiler.getClassName('ž') == 'PrecompiledTemplate__u017e'
+    }
+
+}
@@ -0,0 +1,90 @@
+package groovyx.gaelyk.dte
+
+import java.nio.charset.Charset
+import java.nio.file.Files
+import java.util.concurrent.TimeUnit
+
+import spock.lang.Specification
+
+class ReloadingTemplateEngineSpec extends Specification {
+
+    File root = Files.createTempDirectory('templates').toFile()
+    ReloadingTemplateEngine reloading
+
+    def setup() {
+        new File(root, 'views').mkdirs()
+        new File(root, 'views/index.gtpl').text = 'Hello ${name}'
+        reloading = new ReloadingTemplateEngine(new DebuggableTemplateEngine(), Charset.forName('UTF-8'), root.toPath())
+        reloading.setDebounceDelay(50, TimeUnit.MILLISECONDS)
+    }
+
+    def cleanup() {
+        reloading.close()
+        root.deleteDir()
+    }
+
+    def "Changed template is compiled again and swapped in"() {
+        ReloadableTemplate template = reloading.getTemplate(root.toPath().resolve('views/index.gtpl'))
+        Writable before = template.make(name: 'World')
+
+        when:
+        new File(root, 'views/index.gtpl').text = 'Bye ${name}'
+        waitFor { template.reloadCount == 1 }
+
+        then:
+        template.make(name: 'World').toString() == 'Bye World'
+        before.toString() == 'Hello World'
+        reloading.getTemplate(root.toPath().resolve('views/../views/index.gtpl')).is(template)
+    }
+
+    def "Template in new directory is reloaded"() {
+        new File(root, 'views/nested').mkdirs()
+        File file = new File(root, 'views/nested/page.gtpl')
+        file.text = 'Page ${name}'
+        Thread.sleep(200)
+        ReloadableTemplate template = reloading.getTemplate(file.toPath())
+
+        when:
+        file.text = 'Other ${name}'
+        waitFor { template.reloadCount == 1 }
+
+        then:
+        template.make(name: 'World').toString() == 'Other World'
+    }
+
+    def "Previous version is kept if the changed template fails to compile"() {
+        ReloadableTemplate template = reloading.getTemplate(root.toPath().resolve('views/index.gtpl'))
+
+        when:
+        new File(root, 'views/index.gtpl').text = '<% if (true) %>\n<% } %>'
+        waitFor { template.failure != null }
+
+        then:
+        template.failure instanceof TemplateParsingException
+        template.reloadCount == 0
+        template.make(name: 'World').toString() == 'Hello World'
+    }
+
+    def "Template is compiled again when the included template changes"() {
+        new File(root, 'views/item.gtpl').text = '<li>${name}</li>'
+        new File(root, 'views/list.gtpl').text = '<ul><%@ include file="views/item.gtpl" %></ul>'
+        reloading.engine.templateResolver = new DirectoryTemplateResolver(root.toPath(), Charset.forName('UTF-8'))
+        ReloadableTemplate template = reloading.getTemplate(root.toPath().resolve('views/list.gtpl'))
+
+        when:
+        new File(root, 'views/item.gtpl').text = '<p>${name}</p>'
+        waitFor { template.reloadCount == 1 }
+
+        then:
+        template.make(name: 'World').toString() == '<ul><p>World</p></ul>'
+    }
+
+    private static void waitFor(Closure<Boolean> condition) {
+        long deadline = System.currentTimeMillis() + 20000
+        while (!condition() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20)
+        }
+        assert condition()
+    }
+
+}
@@ -0,0 +1,225 @@
+package groovyx.gaelyk.dte
+
+import java.nio.charset.Charset
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.atomic.AtomicInteger
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class TemplateCacheSpec extends Specification {
+
+    DebuggableTemplateEngine engine = new DebuggableTemplateEngine()
+
+    def "Templates are compiled only once"() {
+        engine.templateCache = new TemplateCache(10)
+
+        when:
+        DebuggableTemplate first = engine.createTemplate(new StringReader('Hello ${name}'))
+        DebuggableTemplate second = engine.createTemplate(new StringReader('Hello ${name}'))
+        DebuggableTemplate third = engine.createTemplate(new StringReader('Bye ${name}'))
+
+        then:
+        first.is(second)
+        !first.is(third)
+        engine.templateCache.hitCount == 1
+        engine.templateCache.missCount == 2
+        engine.templateCache.loadCount == 2
+        engine.templateCache.size() == 2
+        second.make(name: 'World').toString() == 'Hello World'
+    }
+
+    def "Changed files are compiled again"() {
+        engine.templateCache = new TemplateCache(10)
+        File file = File.createTempFile('dte', '.gtpl')
+        file.deleteOnExit()
+        file.text = 'Hello'
+
+        when:
+        DebuggableTemplate first = engine.createTemplate(file)
+        DebuggableTemplate second = engine.createTemplate(file)
+
+        then:
+        first.is(second)
+
+        when:
+        file.text = 'Hello World'
+        file.lastModified = file.lastModified() + 1000
+        DebuggableTemplate third = engine.createTemplate(file)
+
+        then:
+        !third.is(first)
+        third.make().toString() == 'Hello World'
+        engine.templateCache.size() == 1
+    }
+
+    def "Template created from the file is found when it is requested by the path in the default charset"() {
+        engine.templateCache = new TemplateCache(10)
+        File file = File.createTempFile('dte', '.gtpl')
+        file.deleteOnExit()
+        file.text = 'Hello'
+
+        when:
+        DebuggableTemplate first = engine.createTemplate(file)
+        DebuggableTemplate second = engine.createTemplate(file.toPath(), Charset.defaultCharset())
+
+        then:
+        first.is(second)
+        engine.templateCache.hitCount == 1
+        engine.templateCache.loadCount == 1
+    }
+
+    def "Least recently used templates are evicted"() {
+        engine.templateCache = new TemplateCache(2)
+
+        when:
+        DebuggableTemplate a = engine.createTemplate(new StringReader('a'), 'a')
+        engine.createTemplate(new StringReader('b'), 'b')
+        engine.createTemplate(new StringReader('a'), 'a')
+        engine.createTemplate(new StringReader('c'), 'c')
+
+        then:
+        engine.templateCache.size() == 2
+        engine.templateCache.evictionCount == 1
+        engine.createTemplate(new StringReader('a'), 'a').is(a)
+    }
+
+    def "Templates are evicted when the weight is exceeded"() {
+        DebuggableTemplate template = engine.createTemplate(new StringReader('x' * 100))
+        engine.templateCache = new TemplateCache(100, template.weight * 2)
+
+        when:
+        3.times { engine.createTemplate(new StringReader(('x' * 100) + it), "t$it") }
+
+        then:
+        engine.templateCache.size() == 1
+        engine.templateCache.evictionCount == 2
+        engine.templateCache.weight <= template.weight * 2
+    }
+
+    def "Concurrent requests compile the template only once"() {
+        setup:
+        TemplateCache cache = new TemplateCache(10)
+        AtomicInteger compilations = new AtomicInteger()
+        CountDownLatch compiling = new CountDownLatch(1)
+        CountDownLatch release = new CountDownLatch(1)
+        ExecutorService executor = Executors.newFixedThreadPool(4)
+        Callable<DebuggableTemplate> loader = {
+            compilations.incrementAndGet()
+            compiling.countDown()
+            release.await()
+            engine.createTemplate(new StringReader('Hello'))
+        } as Callable<DebuggableTemplate>
+
+        when:
+        List<Future<DebuggableTemplate>> results = (1..4).collect {
+            executor.submit({ cache.get('hello', null, loader) } as Callable<DebuggableTemplate>)
+        }
+        compiling.await()
+        Thread.sleep(100)
+        release.countDown()
+
+        then:
+        results*.get().unique { System.identityHashCode(it) }.size() == 1
+        compilations.get() == 1
+        cache.loadCount == 1
+        cache.missCount + cache.hitCount == 4
+
+        cleanup:
+        executor.shutdown()
+    }
+
+    @Unroll
+    def "Template compiled while #invalidation is called is not stored"() {
+        setup:
+        TemplateCache cache = new TemplateCache(10)
+        CountDownLatch compiling = new CountDownLatch(1)
+        CountDownLatch release = new CountDownLatch(1)
+        ExecutorService executor = Executors.newSingleThreadExecutor()
+        DebuggableTemplate old = engine.createTemplate(new StringReader('Old'))
+
+        when:
+        Future<DebuggableTemplate> result = executor.submit({
+            cache.get('hello', null, { compiling.countDown(); release.await(); old } as Callable<DebuggableTemplate>)
+        } as Callable<DebuggableTemplate>)
+        compiling.await()
+        invalidate.call(cache)
+        release.countDown()
+
+        then:
+        result.get().is(old)
+        cache.size() == 0
+        !cache.get('hello', null, { engine.createTemplate(new StringReader('New')) } as Callable<DebuggableTemplate>).is(old)
+
+        cleanup:
+        executor.shutdown()
+
+        where:
+        invalidation    | invalidate
+        'invalidate'    | { it.invalidate('hello') }
+        'invalidateAll' | { it.invalidateAll() }
+    }
+
+    def "Template compiled by older load doesn't replace the newer one"() {
+        setup:
+        TemplateCache cache = new TemplateCache(10)
+        CountDownLatch compiling = new CountDownLatch(1)
+        CountDownLatch release = new CountDownLatch(1)
+        ExecutorService executor = Executors.newSingleThreadExecutor()
+        DebuggableTemplate older = engine.createTemplate(new StringReader('Older'))
+        DebuggableTemplate newer = engine.createTemplate(new StringReader('Newer'))
+
+        when:
+        Future<DebuggableTemplate> result = executor.submit({
+            cache.get('hello', 1, { compiling.countDown(); release.await(); older } as Callable<DebuggableTemplate>)
+        } as Callable<DebuggableTemplate>)
+        compiling.await()
+        cache.get('hello', 2, { newer } as Callable<DebuggableTemplate>)
+        release.countDown()
+
+        then:
+        result.get().is(older)
+        cache.get('hello', 2, { throw new IllegalStateException('Compiled again') } as Callable<DebuggableTemplate>).is(newer)
+        cache.size() == 1
+        cache.weight == newer.weight
+
+        cleanup:
+        executor.shutdown()
+    }
+
+    @Unroll
+    def "Hash of the parser buffer is the same as the hash of the #description"() {
+        char[] buffer = (text + 'unused').toCharArray()
+
+        expect:
+        TemplateCache.hash(buffer, text.length()) == TemplateCache.hash(text)
+
+        where:
+        description                 | text
+        'empty text'                | ''
+        'text longer than chunk'    | 'Hello ${name} žluťoučký kůň 😀 ' * 1000
+        'unpaired surrogate'        | 'a\uD83D' + 'b' * 9000
+    }
+
+    def "Hash is the SHA-256 digest of the UTF-8 encoded text"() {
+        expect:
+        TemplateCache.hash('') == 'e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855'
+        TemplateCache.hash('abc'.toCharArray(), 3) == 'ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad'
+    }
+
+    def "Source hash is computed only if it is used"() {
+        when:
+        DebuggableTemplate plain = engine.createTemplate(new StringReader('Hello ${name}'))
+        engine.fragmentCache = new FragmentCache(10)
+        DebuggableTemplate fragments = engine.createTemplate(new StringReader('Hello ${name}'))
+
+        then:
+        plain.sourceHash == null
+        fragments.sourceHash == TemplateCache.hash('Hello ${name}')
+    }
+
+}
@@ -0,0 +1,73 @@
+package groovyx.gaelyk.dte
+
+import java.util.concurrent.TimeUnit
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class TemplateStatisticsSpec extends Specification {
+
+    TemplateStatistics statistics = new TemplateStatistics()
+    DebuggableTemplateEngine engine = new DebuggableTemplateEngine()
+
+    def setup() {
+        engine.templateListener = statistics
+    }
+
+    @Unroll
+    def "Compilations and renders are reported with streaming #streaming"() {
+        engine.streaming = streaming
+        engine.templateResolver = { name -> new StringReader('<li>${item}</li>') } as TemplateResolver
+        DebuggableTemplate template = engine.createTemplate(new StringReader('Hello ${name}!<% items.each { item = it %><%@ include file="item.gtpl" %><% } %>'), 'hello.gtpl')
+
+        when:
+        template.make(name: 'World', items: [1, 2]).toString()
+        template.render([name: 'Žluťoučký', items: []], new ByteArrayOutputStream())
+
+        then:
+        statistics.templateNames == ['hello.gtpl', 'item.gtpl'] as Set
+        statistics.getCompileCount('hello.gtpl') == 1
+        statistics.getCompileCount('item.gtpl') == 1
+        statistics.getCompileTime('hello.gtpl', TimeUnit.NANOSECONDS) > 0
+        statistics.getParseTime('hello.gtpl', TimeUnit.NANOSECONDS) > 0
+        statistics.getPositionIndexSize('hello.gtpl') > 0
+        statistics.getRenderCount('hello.gtpl') == 2
+        statistics.getRenderCount('item.gtpl') == 0
+        statistics.getFailureCount('hello.gtpl') == 0
+        statistics.getCharactersWritten('hello.gtpl') == 'Hello World!<li>1</li><li>2</li>'.length() + 'Hello Žluťoučký!'.length()
+        statistics.getRenderTime('hello.gtpl', 99, TimeUnit.NANOSECONDS) > 0
+        statistics.toString().contains('hello.gtpl')
+
+        where:
+        streaming << [false, true]
+    }
+
+    def "Failed renders are reported"() {
+        DebuggableTemplate template = engine.createTemplate(new StringReader('<% throw new IllegalStateException() %>'), 'failing.gtpl')
+
+        when:
+        template.make().toString()
+
+        then:
+        thrown(IllegalStateException)
+        statistics.getRenderCount('failing.gtpl') == 1
+        statistics.getFailureCount('failing.gtpl') == 1
+    }
+
+    def "Percentiles are approximated by the buckets"() {
+        LatencyHistogram histogram = new LatencyHistogram()
+
+        when:
+        (1..100).each { histogram.record(it * 1000) }
+
+        then:
+        histogram.count == 100
+        histogram.max == 100000
+        histogram.mean == 50500
+        histogram.getPercentile(50) >= 50000
+        histogram.getPercentile(50) < 100000
+        histogram.getPercentile(100) == 100000
+        new LatencyHistogram().getPercentile(99) == 0
+    }
+
+}